@@ -20,7 +20,6 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import javax.security.auth.Subject;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
@@ -293,8 +292,8 @@ public class CosignAuthenticationFilterIII implements Filter {
                         currentPath.lastIndexOf('/') + 1);
             }
 
-            String locationUrl = (String) CosignConfig.INSTANCE.getPropertyValue(
-                    CosignConfig.LOCATION_HANDLER_URL);
+            final CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+            String locationUrl = config.getLocationHandlerUrl();
             log.debug("Location URL: " + locationUrl);
             log.debug("Request URL: " + currentReqUrl);
             log.debug("Current path: " + currentPath);
@@ -312,16 +311,14 @@ public class CosignAuthenticationFilterIII implements Filter {
                 String[] sp = cookie.split("=");
                 //String[] sq = sp[0].split("-");
                 String cookieName = sp[0];
-                serviceConfig = CosignConfig.INSTANCE.matchServiceWithName(
-                        cookieName);
+                serviceConfig = config.getServiceByName(cookieName);
                 log.debug("Cookie name is: " + cookieName);
                 if (serviceConfig != null) {
                     log.debug("Location handler: service config not null");
                     String reDirect = theSplits[1];
-                    String reDirRegEx = (String) CosignConfig.INSTANCE.getPropertyValue(CosignConfig.REDIRECT_REGEX);
-                    Pattern pattern = Pattern.compile(reDirRegEx);
-                    Matcher m = pattern.matcher(reDirect);
-                    if (m.matches()) {
+                    // compiled once per config load; null if the regex is invalid
+                    Pattern pattern = config.getRedirectPattern();
+                    if ((pattern != null) && pattern.matcher(reDirect).matches()) {
                         CosignLocationHandler handler = new CosignLocationHandler();
                         if (handler.check(sp[1], serviceConfig, reDirect, httpResponse)) {
                             log.debug("Location handler checked ok");
@@ -333,9 +330,9 @@ public class CosignAuthenticationFilterIII implements Filter {
                         }
                     } else {
 
-                        if (CosignConfig.INSTANCE.getPropertyValue(CosignConfig.VALIDATION_ERROR_REDIRECT) != null) {
+                        if (config.getValidationErrorRedirect() != null) {
                             log.debug("Location handler refused redirect URL, pattern did not match.");
-                            httpResponse.sendRedirect((String) CosignConfig.INSTANCE.getPropertyValue(CosignConfig.VALIDATION_ERROR_REDIRECT));
+                            httpResponse.sendRedirect(config.getValidationErrorRedirect());
                             return;
                         } else {
                             throw new ServletException("Redirect URL does not match redirection configuration Regular Expression.");
@@ -348,8 +345,8 @@ public class CosignAuthenticationFilterIII implements Filter {
             }
 
 
-            serviceConfig = CosignConfig.INSTANCE.hasServiceOveride(currentPath,
-                    resource, httpRequest.getQueryString());
+            serviceConfig = config.getService(currentPath, resource,
+                                              httpRequest.getQueryString());
 
             if ((serviceConfig != null) && serviceConfig.isPublicAccess()) {
                 log.debug("Anonymous user permitted access to site.");
@@ -9,6 +9,15 @@ import org.apache.commons.logging.*;
 import org.w3c.dom.*;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.TimeUnit;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 
 
 /**
@@ -34,6 +43,13 @@ public class CosignConfig {
     public static final String COOKIE_EXPIRE_SECS = "CookieExpireSecs";
     public static final String COOKIE_CACHE_EXPIRE_SECS =
             "CookieCacheExpireSecs";
+    public static final String COOKIE_CACHE_SIZE = "CookieCacheSize";
+    public static final String COOKIE_CACHE_REFRESH_AHEAD_SECS =
+            "CookieCacheRefreshAheadSecs";
+    public static final String COOKIE_CACHE_GRACE_SECS = "CookieCacheGraceSecs";
+    public static final String NEGATIVE_COOKIE_CACHE_SIZE = "NegativeCookieCacheSize";
+    public static final String NEGATIVE_COOKIE_CACHE_EXPIRE_SECS =
+            "NegativeCookieCacheExpireSecs";
     public static final String LOGIN_REDIRECT_URL = "LoginRedirectUrl";
     public static final String LOGIN_SITE_ENTRY_URL = "LoginSiteEntryUrl";
     public static final String LOGIN_POST_ERROR_URL = "LoginPostErrorUrl";
@@ -48,6 +64,9 @@ public class CosignConfig {
     public static final String KERBEROS_TICKET_CACHE_DIRECTORY = "KerberosTicketCachDirectory";
     public static final String KERBEROS_KERB5_CONF = "KerberosKrb5Conf";
     public static final String KERBEROS_KERB5_DEBUG = "KerberosKrb5Debug";
+    public static final String KERBEROS_IN_MEMORY_CREDENTIALS = "KerberosInMemoryCredentials";
+    public static final String KERBEROS_CREDENTIAL_CACHE_SIZE = "KerberosCredentialCacheSize";
+    public static final String ASYNC_CREDENTIAL_RETRIEVAL = "AsyncCredentialRetrieval";
     public static final String COSIGN_GET_PROXIES = "CosignGetProxies";
     public static final String CLEAR_SESSION_ON_LOGIN = "ClearSessionOnLogin";
     public static final String CONFIG_FILE_MONITOR_INT_SECS =
@@ -56,6 +75,20 @@ public class CosignConfig {
     public static final String VALIDATION_ERROR_REDIRECT = "ValidationErrorRedirect";
      public static final String REDIRECT_REGEX = "RedirectRegex";
     public static final String COSIGN_SERVER_HOST_IP_CHECK = "CosignServerHostIpCheck";
+    public static final String COSIGN_NIO_TRANSPORT = "CosignNioTransport";
+    public static final String COSIGN_NIO_IO_THREADS = "CosignNioIoThreads";
+    public static final String COSIGN_PIPELINE_DEPTH = "CosignPipelineDepth";
+    public static final String COSIGN_PIPELINE_CONNECTIONS = "CosignPipelineConnections";
+    public static final String COSIGN_HEDGE_REQUESTS = "CosignHedgeRequests";
+    public static final String COSIGN_HEDGE_DELAY_PERCENTILE = "CosignHedgeDelayPercentile";
+    public static final String COSIGN_HEDGE_MIN_DELAY_MILLIS = "CosignHedgeMinDelayMillis";
+    public static final String COSIGN_HOST_SELECTION = "CosignHostSelection";
+    public static final String SSL_SESSION_CACHE_SIZE = "SSLSessionCacheSize";
+    public static final String SSL_SESSION_TIMEOUT_SECS = "SSLSessionTimeoutSecs";
+    public static final String COSIGN_CIRCUIT_BREAKER = "CosignCircuitBreaker";
+    public static final String COSIGN_CIRCUIT_BREAKER_FAILURE_PERCENT = "CosignCircuitBreakerFailurePercent";
+    public static final String COSIGN_CIRCUIT_BREAKER_SLOW_CALL_MILLIS = "CosignCircuitBreakerSlowCallMillis";
+    public static final String COSIGN_CIRCUIT_BREAKER_OPEN_SECS = "CosignCircuitBreakerOpenSecs";
 
     // List of all the properties that will be read from the XML file
     // along with their default values (if not required)
@@ -84,6 +117,16 @@ public class CosignConfig {
             COOKIE_EXPIRE_SECS, new Integer(86400), 0, Integer.MAX_VALUE),
                                                  new IntegerProperty(
             COOKIE_CACHE_EXPIRE_SECS, new Integer(120), 0, Integer.MAX_VALUE),
+                                                 new IntegerProperty(
+            COOKIE_CACHE_SIZE, new Integer(10000), 0, Integer.MAX_VALUE),
+                                                 new IntegerProperty(
+            COOKIE_CACHE_REFRESH_AHEAD_SECS, new Integer(0), 0, Integer.MAX_VALUE), //0 disables refresh-ahead
+                                                 new IntegerProperty(
+            COOKIE_CACHE_GRACE_SECS, new Integer(0), 0, Integer.MAX_VALUE), //0 disables grace mode
+                                                 new IntegerProperty(
+            NEGATIVE_COOKIE_CACHE_SIZE, new Integer(10000), 0, Integer.MAX_VALUE),
+                                                 new IntegerProperty(
+            NEGATIVE_COOKIE_CACHE_EXPIRE_SECS, new Integer(10), 0, Integer.MAX_VALUE),
                                                  new StringProperty(
             LOGIN_REDIRECT_URL),
                                                  new StringProperty(
@@ -108,7 +151,13 @@ public class CosignConfig {
             KERBEROS_TICKET_CACHE_DIRECTORY, new String("")),
                                                  new StringProperty(
             KERBEROS_KERB5_CONF, new String("")),
+                                                 new BooleanProperty(KERBEROS_IN_MEMORY_CREDENTIALS,
+            new Boolean(false)),
+                                                 new IntegerProperty(
+            KERBEROS_CREDENTIAL_CACHE_SIZE, new Integer(1000), 0, Integer.MAX_VALUE), //0 disables the cache
                                                  new BooleanProperty(COSIGN_GET_PROXIES,
+            new Boolean(false)),
+                                                 new BooleanProperty(ASYNC_CREDENTIAL_RETRIEVAL,
             new Boolean(false)),
                                                  new IntegerProperty(HTTPS_PORT,
             new Integer(443), 0, 65535),
@@ -117,7 +166,35 @@ public class CosignConfig {
                                                  new BooleanProperty(
             CLEAR_SESSION_ON_LOGIN, new Boolean(false)),
                                                  new StringProperty(
-            COSIGN_SERVER_HOST_IP_CHECK, new String("60000")), //default 1 hour ip check delay
+            COSIGN_SERVER_HOST_IP_CHECK, new String("60")), //default 1 hour ip check delay, in minutes
+                                                 new BooleanProperty(
+            COSIGN_NIO_TRANSPORT, new Boolean(false)),
+                                                 new IntegerProperty(
+            COSIGN_NIO_IO_THREADS, new Integer(2), 1, 64),
+                                                 new IntegerProperty(
+            COSIGN_PIPELINE_DEPTH, new Integer(0), 0, 1024), //0 disables pipelining
+                                                 new IntegerProperty(
+            COSIGN_PIPELINE_CONNECTIONS, new Integer(1), 1, 16),
+                                                 new BooleanProperty(
+            COSIGN_HEDGE_REQUESTS, new Boolean(false)),
+                                                 new IntegerProperty(
+            COSIGN_HEDGE_DELAY_PERCENTILE, new Integer(95), 50, 100),
+                                                 new IntegerProperty(
+            COSIGN_HEDGE_MIN_DELAY_MILLIS, new Integer(20), 1, 10000),
+                                                 new StringProperty(
+            COSIGN_HOST_SELECTION, "ordered"), //ordered, p2c or leastOutstanding
+                                                 new IntegerProperty(
+            SSL_SESSION_CACHE_SIZE, new Integer(100), 0, Integer.MAX_VALUE), //0 means unlimited
+                                                 new IntegerProperty(
+            SSL_SESSION_TIMEOUT_SECS, new Integer(3600), 0, Integer.MAX_VALUE), //0 means no timeout
+                                                 new BooleanProperty(
+            COSIGN_CIRCUIT_BREAKER, new Boolean(false)),
+                                                 new IntegerProperty(
+            COSIGN_CIRCUIT_BREAKER_FAILURE_PERCENT, new Integer(50), 1, 100),
+                                                 new IntegerProperty(
+            COSIGN_CIRCUIT_BREAKER_SLOW_CALL_MILLIS, new Integer(3000), 1, Integer.MAX_VALUE),
+                                                 new IntegerProperty(
+            COSIGN_CIRCUIT_BREAKER_OPEN_SECS, new Integer(10), 1, 3600),
                                                  new IntegerProperty(
             CONFIG_FILE_MONITOR_INT_SECS, new Integer(30), 5,
             Integer.MAX_VALUE / 1000)
@@ -126,7 +203,7 @@ public class CosignConfig {
     // Last update time of the config file
     private long lastUpdate = 0;
 
-    // How often we monitor the config file change
+    // How often we check the config file where it cannot be watched
     private long configFileMonitoringIntervalSecs = 30;
 
     // Flag is true when the Cosign config is completely valid
@@ -141,8 +218,18 @@ public class CosignConfig {
     // Array of registered UpdateListeners
     private ArrayList updateListeners = new ArrayList();
 
-    // Reader/writer lock to prevent software from reading our
-    // properties while we are updating them
+    // Keys whose values changed in the most recent reload
+    private Set changedKeys = Collections.EMPTY_SET;
+
+    // The <services> element of the most recent reload, to tell if it changed
+    private Element servicesElement = null;
+
+    // Path, modification time and length of the keystore at the most recent
+    // reload, to tell if it was replaced in place
+    private String keyStoreFingerprint = null;
+
+    // Reader/writer lock to keep reloads from overlapping; readers use
+    // the snapshot instead
     private RWLock rwLock = new RWLock();
 
     // Commons Logging log instance
@@ -151,6 +238,16 @@ public class CosignConfig {
     // Map to hold override configs
     private Vector servicePaths = new Vector();
 
+    // The service paths compiled for lookups by request path
+    private ServiceRouter serviceRouter = ServiceRouter.EMPTY;
+
+    // The services by lower case name and cookie name, for the location handler
+    private Map serviceNames = Collections.EMPTY_MAP;
+
+    // The configuration readers see, replaced under the writer lock
+    // whenever the properties change
+    private volatile CosignConfigSnapshot snapshot = CosignConfigSnapshot.EMPTY;
+
     /********************************************************************************
      * This interface provides a callback to notify registered classes whenever
      * the config file is reloaded.
@@ -166,6 +263,26 @@ public class CosignConfig {
     }
 
 
+    /********************************************************************************
+     * This interface lets a registered class find out which properties a
+     * reload changed, so that it only rebuilds what depends on them.
+     * Listeners are not notified of reloads that changed nothing.
+     ********************************************************************************/
+    public interface KeyedUpdateListener extends UpdateListener {
+
+        /**
+         * This method is called instead of <code>configUpdated()</code>
+         * whenever the config file is reloaded by the file monitoring thread.
+         * @param changedKeys   The keys of the properties whose values
+         *            changed, including <code>SERVICES</code> if any service
+         *            changed.  All keys are included if the config became
+         *            valid or invalid.
+         */
+        void configUpdated(Set changedKeys);
+
+    }
+
+
     /********************************************************************************
      * This class maps a propertyKey from the config XML file to a data-type, marks
      * it as required or optional, and gives a default value.
@@ -329,19 +446,33 @@ public class CosignConfig {
 
     /********************************************************************************
      * This class monitors a given configFile for changes.  When an ipdate occurs,
-     * it will re-read the properties from the file.
+     * it will re-read the properties from the file.  The directory of the file
+     * is watched, so a change is picked up as soon as the file has been left
+     * alone for DEBOUNCE_MILLIS, however many writes it took, and also when the
+     * file is replaced by renaming another file over it.  Where the file system
+     * cannot be watched, the file is checked every
+     * ConfigFileMonitoringIntervalSecs instead.
      ********************************************************************************/
     private class MonitoringThread extends Thread {
 
+        // How long the file must go unchanged before it is re-read
+        private static final long DEBOUNCE_MILLIS = 500;
+
         private final File configFile;
+        // The identity of the file when it was last read, to tell when it
+        // has been replaced
+        private Object fileKey;
         // Commons Logging log instance
         private Log log = LogFactory.getLog(CosignConfig.class);
         /**
          * Constructor for MonitoringThread
          */
         public MonitoringThread(File configFile) {
+            super("CosignConfigMonitor");
             this.configFile = configFile;
+            this.fileKey = getFileKey();
             this.setPriority(Thread.MIN_PRIORITY);
+            this.setDaemon(true);
         }
 
         /**
@@ -357,6 +488,115 @@ public class CosignConfig {
          * file change.
          */
         public void run() {
+            WatchService watchService = openWatchService();
+            if (watchService != null) {
+                try {
+                    watch(watchService);
+                } finally {
+                    try {
+                        watchService.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+            }
+            poll();
+        }
+
+        /**
+         * Registers the directory of the config file with a new WatchService.
+         * @return    The WatchService, or null if the directory cannot be watched
+         */
+        private WatchService openWatchService() {
+            Path directory = configFile.getAbsoluteFile().getParentFile().toPath();
+            WatchService watchService = null;
+            try {
+                watchService = directory.getFileSystem().newWatchService();
+                directory.register(watchService, new WatchEvent.Kind[] {
+                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY,
+                                   StandardWatchEventKinds.ENTRY_DELETE});
+                if (log.isDebugEnabled()) {
+                    log.debug("Watching " + directory + " for changes to " +
+                              configFile.getName());
+                }
+                return watchService;
+            } catch (Exception e) {
+                if (log.isInfoEnabled()) {
+                    log.info("Unable to watch " + directory + ", checking " +
+                             configFile.getPath() + " every " +
+                             configFileMonitoringIntervalSecs + " seconds: " + e);
+                }
+                if (watchService != null) {
+                    try {
+                        watchService.close();
+                    } catch (IOException ioe) {
+                    }
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Re-reads the config file whenever the watched directory reports a
+         * change to it.  Returns if the directory can no longer be watched.
+         */
+        private void watch(WatchService watchService) {
+            Thread thisThread = Thread.currentThread();
+            while (thisThread == monitoringThread) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException ie) {
+                    continue;
+                } catch (ClosedWatchServiceException cwse) {
+                    return;
+                }
+                boolean changed = isConfigFileChanged(key);
+                boolean valid = key.reset();
+
+                // Wait for the writes to settle, so that a file written in
+                // several steps is read once and complete
+                long quietUntil = System.currentTimeMillis() + DEBOUNCE_MILLIS;
+                while (changed && valid) {
+                    long remaining = quietUntil - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        continue;
+                    }
+                    if (key == null) {
+                        break;
+                    }
+                    if (isConfigFileChanged(key)) {
+                        quietUntil = System.currentTimeMillis() + DEBOUNCE_MILLIS;
+                    }
+                    valid = key.reset();
+                }
+
+                if (changed) {
+                    if (log.isInfoEnabled()) {
+                        log.info(configFile.getPath() + " got updated!");
+                    }
+                    reload();
+                }
+                if (!valid) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("No longer able to watch " + configFile.getPath() +
+                                 ", checking it every " +
+                                 configFileMonitoringIntervalSecs + " seconds");
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Checks the config file every ConfigFileMonitoringIntervalSecs.
+         */
+        private void poll() {
             Thread thisThread = Thread.currentThread();
             while (thisThread == monitoringThread) {
                 try {
@@ -367,8 +607,10 @@ public class CosignConfig {
                     final boolean wasDeleted = ((!configFile.exists()) &&
                                                 (isConfigValid));
                     final boolean wasUpdated = ((configFile.exists()) &&
-                                                (configFile.lastModified() >
-                                                 lastUpdate));
+                                                ((configFile.lastModified() >
+                                                  lastUpdate) ||
+                                                 !CosignConfig.equals(fileKey,
+                            getFileKey())));
                     if (wasDeleted && log.isInfoEnabled()) {
                         log.info(configFile.getPath() + " got deleted!");
                     }
@@ -376,14 +618,51 @@ public class CosignConfig {
                         log.info(configFile.getPath() + " got updated!");
                     }
                     if (wasDeleted || wasUpdated) {
-                        readPropertiesFromConfig(configFile);
-                        notifyUpdateListeners();
+                        reload();
                     }
                 } catch (InterruptedException ie) {
                 }
             }
         }
 
+        /**
+         * Returns true if the events of the given key concern the config
+         * file.  If the config file is a symbolic link, any change in the
+         * directory might have re-pointed it.
+         */
+        private boolean isConfigFileChanged(WatchKey key) {
+            boolean changed = false;
+            boolean isLink = Files.isSymbolicLink(configFile.toPath());
+            Iterator events = key.pollEvents().iterator();
+            while (events.hasNext()) {
+                WatchEvent event = (WatchEvent) events.next();
+                if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || isLink ||
+                    configFile.getName().equals(event.context().toString())) {
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private void reload() {
+            readPropertiesFromConfig(configFile);
+            fileKey = getFileKey();
+            notifyUpdateListeners();
+        }
+
+        /**
+         * Returns the identity of the config file (on most systems its
+         * inode), which changes when another file is renamed over it.
+         */
+        private Object getFileKey() {
+            try {
+                return Files.readAttributes(configFile.toPath(),
+                                            BasicFileAttributes.class).fileKey();
+            } catch (IOException ioe) {
+                return null;
+            }
+        }
+
     }
 
 
@@ -397,12 +676,16 @@ public class CosignConfig {
      * This method returns true if the configuration is valid, false otherwise
      */
     public boolean isConfigValid() {
-        rwLock.getReadLock();
-        try {
-            return isConfigValid;
-        } finally {
-            rwLock.releaseLock();
-        }
+        return snapshot.isValid();
+    }
+
+    /**
+     * This method returns the current configuration.  The snapshot never
+     * changes, so a caller reading several properties should get it once
+     * and read them all from it.
+     */
+    public CosignConfigSnapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
@@ -465,12 +748,7 @@ public class CosignConfig {
      * @return    The <code>Object</code> value of the property.
      */
     public Object getPropertyValue(String propertyKey) {
-        rwLock.getReadLock();
-        try {
-            return propertyKeyToValue.get(propertyKey);
-        } finally {
-            rwLock.releaseLock();
-        }
+        return snapshot.getPropertyValue(propertyKey);
     }
 
     /**
@@ -481,126 +759,60 @@ public class CosignConfig {
      */
     public Object getPropertyValueinContext(String propertyKey,
                                             String path, String resource, String qString) {
-        rwLock.getReadLock();
-
-        try {
-            if (path != null && path.length() > 0) {
-                ServiceConfig sConfig = hasServiceOveride(path, resource, qString);
-                if (sConfig != null) {
-                    if (propertyKey.equalsIgnoreCase(this.SERVICE_NAME)) {
-                        return sConfig.getName();
-                    }
-                } else {
-                    return propertyKeyToValue.get(propertyKey);
-                }
+        CosignConfigSnapshot snapshot = this.snapshot;
+        if (path != null && path.length() > 0) {
+            ServiceConfig sConfig = snapshot.getService(path, resource, qString);
+            if ((sConfig != null) &&
+                propertyKey.equalsIgnoreCase(SERVICE_NAME)) {
+                return sConfig.getName();
             }
-            return propertyKeyToValue.get(propertyKey);
-        } finally {
-            rwLock.releaseLock();
         }
+        return snapshot.getPropertyValue(propertyKey);
     }
 
 
+    /**
+     * This method returns the service with the given name or cookie name,
+     * ignoring case.  If several services share the name, the first one in
+     * the config file is returned.
+     * @param serviceName   The service or cookie name e.g. cosign-wolverineaccess
+     * @return  The service, or null if there is none
+     */
     public ServiceConfig matchServiceWithName( String serviceName ) {
-        rwLock.getReadLock();
-   boolean matchedName = false;
-
-   try {
-       Iterator it = servicePaths.iterator();
-       ServiceConfig theService;
-
-
-
-
-       while (it.hasNext()) {
-           //do the resou
-           theService = (ServiceConfig) it.next();
-
-           log.info("Service name in: " + serviceName);
-           log.info("Service name in compared to read in services: " + theService.getName());
-
-           if(theService.getName().equalsIgnoreCase(serviceName))
-               return theService;
-
-       }
-
-   } finally {
-       rwLock.releaseLock();
-   }
-
-   return null; //default service
-
+        return snapshot.getServiceByName(serviceName);
     }
+
     /**
-     * This method returns a ServiceConfig Object on the basis of whether the services
-     * map contains the requested path.
+     * Builds the index of matchServiceWithName.  Names are indexed before
+     * cookie names, so a service named after another one's cookie wins.
      */
-    public ServiceConfig hasServiceOveride(String path, String resource,
-                                           String qString) {
-        rwLock.getReadLock();
-        boolean matchedPath = false;
-        boolean matchedResource = false;
-        boolean matchedQuery = false;
-        try {
-            Iterator it = servicePaths.iterator();
-            ServiceConfig theService;
-            while (it.hasNext()) {
-                //do the resou
-                theService = (ServiceConfig) it.next();
-                matchedPath = false;
-                matchedResource = false;
-                matchedQuery = false;
-                //check for exact match first
-                if (theService.getPath().equalsIgnoreCase(path))
-                    matchedPath = true;
-                else if((theService.getPath().charAt(theService.getPath().length()-1) == '/')
-                        && theService.getPath().substring(0,theService.getPath().length()-1).equalsIgnoreCase(path)
-                        ){
-                    matchedPath = true;
-                }
-                else{
-                    log.info("Service path end char: " + theService.getPath().charAt(theService.getPath().length()-1));
-                    log.info("Service path substring: " + theService.getPath().substring(0,theService.getPath().length()-1));
-                    log.info("request Path: " + path);
-
-                    if(theService.getPath().charAt(theService.getPath().length()-1) =='*'){
-                        String subPath = theService.getPath().substring(0,theService.getPath().length() - 1);
-                        boolean isThere = path.startsWith(subPath);
-                        if( isThere ){
-                            log.info("Path found, matched path = true.");
-                            matchedPath = true;
-                          }
-                    }
+    private static Map indexServiceNames(List services) {
+        Map index = new HashMap();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int idx = 0; idx < services.size(); idx++) {
+                ServiceConfig serviceConfig = (ServiceConfig) services.get(idx);
+                String key = (pass == 0) ? serviceConfig.getName() :
+                             serviceConfig.getCookieName();
+                if (key == null) {
+                    continue;
                 }
-                if (theService.hasResource() && (resource != null)){
-                    if (theService.getResource().equalsIgnoreCase(resource))
-                        matchedResource = true;
+                key = key.toLowerCase(Locale.ENGLISH);
+                if (!index.containsKey(key)) {
+                    index.put(key, serviceConfig);
                 }
-                else
-                if (!theService.hasResource())
-                    matchedResource = true;
-
-
-                if (theService.hasQs() && (qString != null)){
-                    log.info("Service qs: " + theService.getQs());
-                    log.info("path qs: " + qString);
-                    if (theService.getQs().equalsIgnoreCase(qString))
-                        matchedQuery = true;
-                }
-                else
-                if (!theService.hasQs() )
-                     matchedQuery = true;
-
-
-                if(matchedPath && matchedResource && matchedQuery)
-                     return theService;
             }
-
-        } finally {
-            rwLock.releaseLock();
         }
+        return Collections.unmodifiableMap(index);
+    }
 
-        return null; //default service
+    /**
+     * This method returns a ServiceConfig Object on the basis of whether the services
+     * map contains the requested path.  The paths are looked up in a
+     * ServiceRouter compiled when the config file is read.
+     */
+    public ServiceConfig hasServiceOveride(String path, String resource,
+                                           String qString) {
+        return snapshot.getService(path, resource, qString);
     }
 
 
@@ -609,18 +821,7 @@ public class CosignConfig {
      * of the Cosign configurations.
      */
     public String toString() {
-        rwLock.getReadLock();
-        try {
-            Object[] keys = propertyKeyToValue.keySet().toArray();
-            Arrays.sort(keys);
-            StringBuffer sb = new StringBuffer();
-            for (int i = 0; i < keys.length; i++) {
-                sb.append(keys[i] + " = " + propertyKeyToValue.get(keys[i]) + "\n");
-            }
-            return sb.toString();
-        } finally {
-            rwLock.releaseLock();
-        }
+        return snapshot.toString();
     }
 
     /**
@@ -629,6 +830,9 @@ public class CosignConfig {
      */
     private boolean readPropertiesFromConfig(File configFile) {
         rwLock.getWriteLock();
+        // the previous properties, to work out what changed
+        HashMap oldProperties = new HashMap(propertyKeyToValue);
+        Element oldServicesElement = servicesElement;
         try {
             // update the file modification time stamp (returns 0 if file doesn't exist)
             lastUpdate = configFile.lastModified();
@@ -636,6 +840,9 @@ public class CosignConfig {
             // reset the previous properties
             propertyKeyToValue.clear();
             servicePaths.clear();
+            serviceRouter = ServiceRouter.EMPTY;
+            serviceNames = Collections.EMPTY_MAP;
+            servicesElement = null;
             isConfigValid = false;
 
             // Make sure that we have a semi-valid config file
@@ -660,6 +867,7 @@ public class CosignConfig {
                             SERVICES);
                     int length = servicesNode.getLength();
                     if (length == 1) {
+                        servicesElement = (Element) servicesNode.item(0);
 
                         NodeList services = document.getElementsByTagName(
                                 "service");
@@ -746,6 +954,8 @@ public class CosignConfig {
                             log.debug("Service Paths: " + servicePaths);
                             /* End of service parsing */
                         }
+                        serviceRouter = new ServiceRouter(servicePaths);
+                        serviceNames = indexServiceNames(servicePaths);
                     }
                     propertyKeyToValue.put(property.propertyKey,
                                            new
@@ -825,6 +1035,9 @@ public class CosignConfig {
             return false;
 
         } finally {
+            changedKeys = diffProperties(oldProperties, oldServicesElement);
+            snapshot = new CosignConfigSnapshot(isConfigValid,
+                    propertyKeyToValue, serviceRouter, serviceNames);
             rwLock.releaseLock();
 
             // Now that the writer lock is released, if we had a valid config file
@@ -843,18 +1056,106 @@ public class CosignConfig {
 
     }
 
+    /**
+     * This method works out which properties changed compared to the
+     * given previous ones.  Must have the writer lock.
+     * @return    The keys of the changed properties
+     */
+    private Set diffProperties(Map oldProperties, Element oldServicesElement) {
+        // The server version is negotiated with cosignd rather than read
+        // from the file; keep it while we still talk to the same server
+        String oldVersion = (String) oldProperties.get(COSIGN_SERVER_VERSION);
+        String newVersion = (String) propertyKeyToValue.get(COSIGN_SERVER_VERSION);
+        if ((oldVersion != null) && (newVersion != null) &&
+            (newVersion.length() == 0) &&
+            equals(oldProperties.get(COSIGN_SERVER_HOST),
+                   propertyKeyToValue.get(COSIGN_SERVER_HOST)) &&
+            equals(oldProperties.get(COSIGN_SERVER_PORT),
+                   propertyKeyToValue.get(COSIGN_SERVER_PORT))) {
+            propertyKeyToValue.put(COSIGN_SERVER_VERSION, oldVersion);
+        }
+
+        Set changed = new HashSet();
+        for (int propIdx = 0; propIdx < PROPERTIES.length; propIdx++) {
+            String propertyKey = PROPERTIES[propIdx].propertyKey;
+            if (propertyKey.equals(SERVICES)) {
+                // The value is only a placeholder, compare the XML instead
+                boolean same = (oldServicesElement == null) ?
+                               (servicesElement == null) :
+                               ((servicesElement != null) &&
+                                oldServicesElement.isEqualNode(servicesElement));
+                if (!same ||
+                    (oldProperties.containsKey(SERVICES) !=
+                     propertyKeyToValue.containsKey(SERVICES))) {
+                    changed.add(SERVICES);
+                }
+            } else if (!equals(oldProperties.get(propertyKey),
+                               propertyKeyToValue.get(propertyKey))) {
+                changed.add(propertyKey);
+            }
+        }
+
+        // A keystore replaced in place keeps its path, so look at the file too
+        String fingerprint = getKeyStoreFingerprint();
+        if (!equals(keyStoreFingerprint, fingerprint)) {
+            changed.add(KEY_STORE_PATH);
+        }
+        keyStoreFingerprint = fingerprint;
+
+        if (log.isDebugEnabled()) {
+            log.debug("Changed config properties: " + changed);
+        }
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * This method returns the path, modification time and length of the
+     * configured keystore, or null if there is none.  Must have the writer
+     * lock.
+     */
+    private String getKeyStoreFingerprint() {
+        String keyStorePath = (String) propertyKeyToValue.get(KEY_STORE_PATH);
+        if (keyStorePath == null) {
+            return null;
+        }
+        File keyStoreFile = new File(keyStorePath);
+        return keyStorePath + ":" + keyStoreFile.lastModified() + ":" +
+               keyStoreFile.length();
+    }
+
+    private static boolean equals(Object oldValue, Object newValue) {
+        return (oldValue == null) ? (newValue == null) : oldValue.equals(newValue);
+    }
+
     /**
      * This method notifies all registered listeners that the config has
-     * been reloaded
+     * been reloaded.  Nobody is notified if nothing changed.
      */
     private void notifyUpdateListeners() {
+        Set changedKeys;
+        rwLock.getReadLock();
+        try {
+            changedKeys = this.changedKeys;
+        } finally {
+            rwLock.releaseLock();
+        }
+        if (changedKeys.isEmpty()) {
+            log.debug("Config file reloaded without changes");
+            return;
+        }
+
         // Notify all registered listeners that the config has been
         // reloaded
         synchronized (updateListeners) {
             for (int idx = 0; idx < updateListeners.size(); idx++) {
                 UpdateListener updateListener = (UpdateListener)
                                                 updateListeners.get(idx);
-                updateListener.configUpdated();
+                if (updateListener instanceof KeyedUpdateListener) {
+                    ((KeyedUpdateListener) updateListener).configUpdated(
+                            changedKeys);
+                } else {
+                    updateListener.configUpdated();
+                }
             }
         }
     }
@@ -889,12 +1190,17 @@ public class CosignConfig {
     }
 
 public void setServerVersion(String version){
-    propertyKeyToValue.put(COSIGN_SERVER_VERSION, version);
+    rwLock.getWriteLock();
+    try {
+        propertyKeyToValue.put(COSIGN_SERVER_VERSION, version);
+        snapshot = snapshot.withServerVersion(version);
+    } finally {
+        rwLock.releaseLock();
+    }
 }
 
 public boolean isServerVersion2(){
-    String version = (String)propertyKeyToValue.get(COSIGN_SERVER_VERSION);
-    return (((String)propertyKeyToValue.get(COSIGN_SERVER_VERSION)).equalsIgnoreCase("2"));
+    return snapshot.isServerVersion2();
 }
 }
 
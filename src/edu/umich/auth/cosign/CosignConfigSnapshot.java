@@ -0,0 +1,475 @@
+package edu.umich.auth.cosign;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.util.ServiceConfig;
+import edu.umich.auth.cosign.util.ServiceRouter;
+
+/**
+ * This class is an immutable copy of the Cosign configuration as it was
+ * after one reload of the config file.  <code>CosignConfig</code> swaps in
+ * a new snapshot whenever the file is reloaded, so a request that keeps
+ * the snapshot it started with sees a consistent config throughout, and
+ * reading it takes no lock.  The properties used on every request are
+ * parsed into primitive fields once, so callers do not have to unbox them.
+ *
+ * @see edu.umich.auth.cosign.CosignConfig#getSnapshot()
+ */
+public final class CosignConfigSnapshot {
+
+  /**
+   * The snapshot of a config that has not been loaded yet.
+   */
+  static final CosignConfigSnapshot EMPTY = new CosignConfigSnapshot( false,
+      Collections.EMPTY_MAP, ServiceRouter.EMPTY, Collections.EMPTY_MAP );
+
+  private final boolean valid;
+
+  // All the properties by key
+  private final Map properties;
+
+  // The services by request path and by lower case name or cookie name
+  private final ServiceRouter serviceRouter;
+  private final Map serviceNames;
+
+  private final String keyStorePath;
+  private final String keyStorePassword;
+  private final String serverHost;
+  private final int serverPort;
+  private final int connectionPoolSize;
+  private final long cookieExpireMillis;
+  private final int cookieCacheSize;
+  private final long cookieCacheExpireMillis;
+  private final long cookieCacheRefreshAheadMillis;
+  private final long cookieCacheGraceMillis;
+  private final int negativeCookieCacheSize;
+  private final long negativeCookieCacheExpireMillis;
+  private final boolean checkClientIP;
+  private final boolean clearSessionOnLogin;
+  private final boolean httpsOnly;
+  private final int httpsPort;
+  private final String loginRedirectUrl;
+  private final String loginPostErrorUrl;
+  private final String loginSiteEntryUrl;
+  private final String locationHandlerUrl;
+  private final String validationErrorRedirect;
+  private final Pattern redirectPattern;
+  private final String factorSuffix;
+  private final boolean factorSuffixIgnore;
+  private final String serverVersion;
+  private final boolean kerberosGetTickets;
+  private final boolean kerberosInMemoryCredentials;
+  private final String kerberosTicketCacheDirectory;
+  private final String kerberosKrb5Conf;
+  private final boolean kerberosKrb5Debug;
+  private final int kerberosCredentialCacheSize;
+  private final boolean asyncCredentialRetrieval;
+  private final boolean hedgeRequests;
+  private final int hedgeDelayPercentile;
+  private final int hedgeMinDelayMillis;
+  private final String hostSelection;
+  private final boolean circuitBreaker;
+  private final int circuitBreakerFailurePercent;
+  private final int circuitBreakerSlowCallMillis;
+  private final long circuitBreakerOpenMillis;
+  private final int sslSessionCacheSize;
+  private final int sslSessionTimeoutSecs;
+  private final long hostIpCheckMillis;
+  private final boolean nioTransport;
+  private final int nioIoThreads;
+  private final int pipelineDepth;
+  private final int pipelineConnections;
+
+  /**
+   * Constructor for CosignConfigSnapshot.
+   * @param valid           True if the config file was valid
+   * @param properties      The properties by key, which are copied
+   * @param serviceRouter   The services by request path
+   * @param serviceNames    The services by lower case name or cookie name
+   */
+  CosignConfigSnapshot( boolean valid, Map properties, ServiceRouter serviceRouter, Map serviceNames ) {
+    this.valid = valid;
+    this.properties = Collections.unmodifiableMap( new HashMap( properties ) );
+    this.serviceRouter = serviceRouter;
+    this.serviceNames = serviceNames;
+
+    keyStorePath = (String)this.properties.get( CosignConfig.KEY_STORE_PATH );
+    keyStorePassword = (String)this.properties.get( CosignConfig.KEY_STORE_PASSWORD );
+    serverHost = (String)this.properties.get( CosignConfig.COSIGN_SERVER_HOST );
+    serverPort = getInt( CosignConfig.COSIGN_SERVER_PORT );
+    connectionPoolSize = getInt( CosignConfig.CONNECTION_POOL_SIZE );
+    cookieExpireMillis = getInt( CosignConfig.COOKIE_EXPIRE_SECS ) * 1000L;
+    cookieCacheSize = getInt( CosignConfig.COOKIE_CACHE_SIZE );
+    cookieCacheExpireMillis = getInt( CosignConfig.COOKIE_CACHE_EXPIRE_SECS ) * 1000L;
+    cookieCacheRefreshAheadMillis = getInt( CosignConfig.COOKIE_CACHE_REFRESH_AHEAD_SECS ) * 1000L;
+    cookieCacheGraceMillis = getInt( CosignConfig.COOKIE_CACHE_GRACE_SECS ) * 1000L;
+    negativeCookieCacheSize = getInt( CosignConfig.NEGATIVE_COOKIE_CACHE_SIZE );
+    negativeCookieCacheExpireMillis = getInt( CosignConfig.NEGATIVE_COOKIE_CACHE_EXPIRE_SECS ) * 1000L;
+    checkClientIP = getBoolean( CosignConfig.CHECK_CLIENT_IP );
+    clearSessionOnLogin = getBoolean( CosignConfig.CLEAR_SESSION_ON_LOGIN );
+    httpsOnly = getBoolean( CosignConfig.HTTPS_ONLY );
+    httpsPort = getInt( CosignConfig.HTTPS_PORT );
+    loginRedirectUrl = (String)this.properties.get( CosignConfig.LOGIN_REDIRECT_URL );
+    loginPostErrorUrl = (String)this.properties.get( CosignConfig.LOGIN_POST_ERROR_URL );
+    loginSiteEntryUrl = (String)this.properties.get( CosignConfig.LOGIN_SITE_ENTRY_URL );
+    locationHandlerUrl = (String)this.properties.get( CosignConfig.LOCATION_HANDLER_URL );
+    validationErrorRedirect = (String)this.properties.get( CosignConfig.VALIDATION_ERROR_REDIRECT );
+    redirectPattern = compile( (String)this.properties.get( CosignConfig.REDIRECT_REGEX ) );
+    factorSuffix = (String)this.properties.get( CosignConfig.COSIGN_FACTOR_SUFFIX );
+    factorSuffixIgnore = "true".equalsIgnoreCase( (String)this.properties.get( CosignConfig.COSIGN_FACTOR_SUFFIX_IGNORE ) );
+    String version = (String)this.properties.get( CosignConfig.COSIGN_SERVER_VERSION );
+    serverVersion = ( version == null ) ? "" : version;
+    kerberosGetTickets = getBoolean( CosignConfig.KERBEROS_GET_TICKETS );
+    kerberosInMemoryCredentials = getBoolean( CosignConfig.KERBEROS_IN_MEMORY_CREDENTIALS );
+    kerberosTicketCacheDirectory = (String)this.properties.get( CosignConfig.KERBEROS_TICKET_CACHE_DIRECTORY );
+    kerberosKrb5Conf = (String)this.properties.get( CosignConfig.KERBEROS_KERB5_CONF );
+    kerberosKrb5Debug = getBoolean( CosignConfig.KERBEROS_KERB5_DEBUG );
+    kerberosCredentialCacheSize = getInt( CosignConfig.KERBEROS_CREDENTIAL_CACHE_SIZE );
+    asyncCredentialRetrieval = getBoolean( CosignConfig.ASYNC_CREDENTIAL_RETRIEVAL );
+    hedgeRequests = getBoolean( CosignConfig.COSIGN_HEDGE_REQUESTS );
+    hedgeDelayPercentile = getInt( CosignConfig.COSIGN_HEDGE_DELAY_PERCENTILE );
+    hedgeMinDelayMillis = getInt( CosignConfig.COSIGN_HEDGE_MIN_DELAY_MILLIS );
+    hostSelection = (String)this.properties.get( CosignConfig.COSIGN_HOST_SELECTION );
+    circuitBreaker = getBoolean( CosignConfig.COSIGN_CIRCUIT_BREAKER );
+    circuitBreakerFailurePercent = getInt( CosignConfig.COSIGN_CIRCUIT_BREAKER_FAILURE_PERCENT );
+    circuitBreakerSlowCallMillis = getInt( CosignConfig.COSIGN_CIRCUIT_BREAKER_SLOW_CALL_MILLIS );
+    circuitBreakerOpenMillis = getInt( CosignConfig.COSIGN_CIRCUIT_BREAKER_OPEN_SECS ) * 1000L;
+    sslSessionCacheSize = getInt( CosignConfig.SSL_SESSION_CACHE_SIZE );
+    sslSessionTimeoutSecs = getInt( CosignConfig.SSL_SESSION_TIMEOUT_SECS );
+    hostIpCheckMillis = parseMinutes( (String)this.properties.get( CosignConfig.COSIGN_SERVER_HOST_IP_CHECK ) ) * 60000L;
+    nioTransport = getBoolean( CosignConfig.COSIGN_NIO_TRANSPORT );
+    nioIoThreads = getInt( CosignConfig.COSIGN_NIO_IO_THREADS );
+    pipelineDepth = getInt( CosignConfig.COSIGN_PIPELINE_DEPTH );
+    pipelineConnections = getInt( CosignConfig.COSIGN_PIPELINE_CONNECTIONS );
+  }
+
+  /**
+   * This method returns true if the config file was valid.
+   */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * This method returns a property in <code>Object</code>.
+   * @param propertyKey The key of the property
+   * @return    The <code>Object</code> value of the property, or null
+   */
+  public Object getPropertyValue( String propertyKey ) {
+    return properties.get( propertyKey );
+  }
+
+  /**
+   * This method returns the first service in config order protecting the
+   * given request, or null if there is none.
+   */
+  public ServiceConfig getService( String path, String resource, String qString ) {
+    return serviceRouter.route( path, resource, qString );
+  }
+
+  /**
+   * This method returns the service with the given name or cookie name,
+   * ignoring case, or null if there is none.
+   */
+  public ServiceConfig getServiceByName( String serviceName ) {
+    if ( serviceName == null ) {
+      return null;
+    }
+    return (ServiceConfig)serviceNames.get( serviceName.toLowerCase( Locale.ENGLISH ) );
+  }
+
+  public String getKeyStorePath() {
+    return keyStorePath;
+  }
+
+  public String getKeyStorePassword() {
+    return keyStorePassword;
+  }
+
+  public String getServerHost() {
+    return serverHost;
+  }
+
+  public int getServerPort() {
+    return serverPort;
+  }
+
+  public int getConnectionPoolSize() {
+    return connectionPoolSize;
+  }
+
+  public long getCookieExpireMillis() {
+    return cookieExpireMillis;
+  }
+
+  public int getCookieCacheSize() {
+    return cookieCacheSize;
+  }
+
+  public long getCookieCacheExpireMillis() {
+    return cookieCacheExpireMillis;
+  }
+
+  public long getCookieCacheRefreshAheadMillis() {
+    return cookieCacheRefreshAheadMillis;
+  }
+
+  public long getCookieCacheGraceMillis() {
+    return cookieCacheGraceMillis;
+  }
+
+  public int getNegativeCookieCacheSize() {
+    return negativeCookieCacheSize;
+  }
+
+  public long getNegativeCookieCacheExpireMillis() {
+    return negativeCookieCacheExpireMillis;
+  }
+
+  public boolean isCheckClientIP() {
+    return checkClientIP;
+  }
+
+  public boolean isClearSessionOnLogin() {
+    return clearSessionOnLogin;
+  }
+
+  public boolean isHttpsOnly() {
+    return httpsOnly;
+  }
+
+  public int getHttpsPort() {
+    return httpsPort;
+  }
+
+  public String getLoginRedirectUrl() {
+    return loginRedirectUrl;
+  }
+
+  public String getLoginPostErrorUrl() {
+    return loginPostErrorUrl;
+  }
+
+  public String getLoginSiteEntryUrl() {
+    return loginSiteEntryUrl;
+  }
+
+  public String getLocationHandlerUrl() {
+    return locationHandlerUrl;
+  }
+
+  public String getValidationErrorRedirect() {
+    return validationErrorRedirect;
+  }
+
+  /**
+   * This method returns RedirectRegex compiled, or null if it is missing
+   * or not a valid regular expression.
+   */
+  public Pattern getRedirectPattern() {
+    return redirectPattern;
+  }
+
+  public String getFactorSuffix() {
+    return factorSuffix;
+  }
+
+  public boolean isFactorSuffixIgnore() {
+    return factorSuffixIgnore;
+  }
+
+  /**
+   * This method returns the cosignd protocol version, or an empty string
+   * if it has not been negotiated yet.
+   */
+  public String getServerVersion() {
+    return serverVersion;
+  }
+
+  public boolean isServerVersion2() {
+    return serverVersion.equalsIgnoreCase( "2" );
+  }
+
+  public boolean isKerberosGetTickets() {
+    return kerberosGetTickets;
+  }
+
+  public boolean isKerberosInMemoryCredentials() {
+    return kerberosInMemoryCredentials;
+  }
+
+  public String getKerberosTicketCacheDirectory() {
+    return kerberosTicketCacheDirectory;
+  }
+
+  public String getKerberosKrb5Conf() {
+    return kerberosKrb5Conf;
+  }
+
+  public boolean isKerberosKrb5Debug() {
+    return kerberosKrb5Debug;
+  }
+
+  public int getKerberosCredentialCacheSize() {
+    return kerberosCredentialCacheSize;
+  }
+
+  public boolean isAsyncCredentialRetrieval() {
+    return asyncCredentialRetrieval;
+  }
+
+  public boolean isHedgeRequests() {
+    return hedgeRequests;
+  }
+
+  public int getHedgeDelayPercentile() {
+    return hedgeDelayPercentile;
+  }
+
+  public int getHedgeMinDelayMillis() {
+    return hedgeMinDelayMillis;
+  }
+
+  public String getHostSelection() {
+    return hostSelection;
+  }
+
+  public boolean isCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public int getCircuitBreakerFailurePercent() {
+    return circuitBreakerFailurePercent;
+  }
+
+  public int getCircuitBreakerSlowCallMillis() {
+    return circuitBreakerSlowCallMillis;
+  }
+
+  public long getCircuitBreakerOpenMillis() {
+    return circuitBreakerOpenMillis;
+  }
+
+  public int getSslSessionCacheSize() {
+    return sslSessionCacheSize;
+  }
+
+  public int getSslSessionTimeoutSecs() {
+    return sslSessionTimeoutSecs;
+  }
+
+  /**
+   * This method returns CosignServerHostIpCheck in milliseconds, or 0 if it
+   * is not a whole number of minutes.
+   */
+  public long getHostIpCheckMillis() {
+    return hostIpCheckMillis;
+  }
+
+  public boolean isNioTransport() {
+    return nioTransport;
+  }
+
+  public int getNioIoThreads() {
+    return nioIoThreads;
+  }
+
+  public int getPipelineDepth() {
+    return pipelineDepth;
+  }
+
+  public int getPipelineConnections() {
+    return pipelineConnections;
+  }
+
+  /**
+   * This method returns the snapshot with the given cosignd protocol
+   * version, or this snapshot if the version is the same.
+   */
+  CosignConfigSnapshot withServerVersion( String version ) {
+    if ( serverVersion.equals( version ) ) {
+      return this;
+    }
+    Map copy = new HashMap( properties );
+    copy.put( CosignConfig.COSIGN_SERVER_VERSION, version );
+    return new CosignConfigSnapshot( valid, copy, serviceRouter, serviceNames );
+  }
+
+  /**
+   * This method returns a string with all key/value pairs.
+   */
+  public String toString() {
+    Object[] keys = properties.keySet().toArray();
+    Arrays.sort( keys );
+    StringBuffer sb = new StringBuffer();
+    for ( int i = 0; i < keys.length; i++ ) {
+      sb.append( keys[i] + " = " + properties.get( keys[i] ) + "\n" );
+    }
+    return sb.toString();
+  }
+
+  private int getInt( String propertyKey ) {
+    Object value = properties.get( propertyKey );
+    return ( value instanceof Integer ) ? ( (Integer)value ).intValue() : 0;
+  }
+
+  private boolean getBoolean( String propertyKey ) {
+    Object value = properties.get( propertyKey );
+    return ( value instanceof Boolean ) && ( (Boolean)value ).booleanValue();
+  }
+
+  private static long parseMinutes( String minutes ) {
+    if ( minutes == null ) {
+      return 0;
+    }
+    try {
+      return Long.parseLong( minutes.trim() );
+    } catch ( NumberFormatException nfe ) {
+      return 0;
+    }
+  }
+
+  private static Pattern compile( String regex ) {
+    if ( regex == null ) {
+      return null;
+    }
+    try {
+      return Pattern.compile( regex );
+    } catch ( PatternSyntaxException pse ) {
+      Log log = LogFactory.getLog( CosignConfigSnapshot.class );
+      if ( log.isErrorEnabled() ) {
+        log.error( "Invalid " + CosignConfig.REDIRECT_REGEX + ": " + regex, pse );
+      }
+      return null;
+    }
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
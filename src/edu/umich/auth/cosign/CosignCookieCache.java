@@ -0,0 +1,135 @@
+package edu.umich.auth.cosign;
+
+import java.security.MessageDigest;
+import java.util.Vector;
+
+import edu.umich.auth.cosign.util.Base64;
+import edu.umich.auth.cosign.util.ExpiringCache;
+
+/**
+ * This singleton class caches the principals of service cookies that the
+ * cosignd server recently validated, so that the same cookie presented in
+ * another session or another web application in this JVM does not have to
+ * be checked again.  Entries are keyed by a digest of the service name and
+ * cookie nonce and expire CookieCacheExpireSecs after validation.  Cookies
+ * the server said were not authenticated are remembered separately for
+ * NegativeCookieCacheExpireSecs so that repeated bad cookies are rejected
+ * locally.
+ * @see edu.umich.auth.cosign.CosignLoginModule
+ */
+public class CosignCookieCache {
+
+  /**
+   * Singleton object of the CosignCookieCache
+   */
+  public static final CosignCookieCache INSTANCE = new CosignCookieCache();
+
+  // Validated principals, keyed by digest of service name and nonce
+  private final ExpiringCache principals;
+
+  // Keys of service cookies the cosignd server rejected
+  private final ExpiringCache rejected;
+
+  /**
+   * Constructor for CosignCookieCache.
+   */
+  private CosignCookieCache() {
+    CosignConfigSnapshot snapshot = CosignConfig.INSTANCE.getSnapshot();
+    principals = new ExpiringCache( snapshot.getCookieCacheSize() );
+    rejected = new ExpiringCache( snapshot.getNegativeCookieCacheSize() );
+    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.UpdateListener () {
+
+      public void configUpdated() {
+        CosignConfigSnapshot snapshot = CosignConfig.INSTANCE.getSnapshot();
+        principals.setMaxSize( snapshot.getCookieCacheSize() );
+        rejected.setMaxSize( snapshot.getNegativeCookieCacheSize() );
+      }
+
+    });
+  }
+
+  /**
+   * This method returns a copy of the principal cached for the given
+   * service cookie, or null if it is not cached.  The timestamp of the
+   * copy is the time the cookie was validated by the cosignd server.
+   */
+  public CosignPrincipal getPrincipal( String serviceName, String nonce ) {
+    CosignPrincipal principal = (CosignPrincipal)principals.get( getKey( serviceName, nonce ) );
+    return ( principal == null ) ? null : copyPrincipal( principal );
+  }
+
+  /**
+   * This method caches a copy of the principal the cosignd server returned
+   * for the given service cookie.
+   */
+  public void putPrincipal( String serviceName, String nonce, CosignPrincipal principal ) {
+    long ttlMillis = CosignConfig.INSTANCE.getSnapshot().getCookieCacheExpireMillis();
+    ttlMillis -= System.currentTimeMillis() - principal.getTimestamp();
+    String key = getKey( serviceName, nonce );
+    rejected.remove( key );
+    principals.put( key, copyPrincipal( principal ), ttlMillis );
+  }
+
+  /**
+   * This method returns true if the cosignd server recently said the given
+   * service cookie was not authenticated.
+   */
+  public boolean isRejected( String serviceName, String nonce ) {
+    return rejected.get( getKey( serviceName, nonce ) ) != null;
+  }
+
+  /**
+   * This method remembers that the cosignd server said the given service
+   * cookie was not authenticated.
+   */
+  public void putRejected( String serviceName, String nonce ) {
+    long ttlMillis = CosignConfig.INSTANCE.getSnapshot().getNegativeCookieCacheExpireMillis();
+    rejected.put( getKey( serviceName, nonce ), Boolean.TRUE, ttlMillis );
+  }
+
+  /**
+   * This method returns the cache key for a service cookie.  Only a digest
+   * is kept so that the cache never holds usable cookies.
+   */
+  private static String getKey( String serviceName, String nonce ) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+      digest.update( serviceName.getBytes( "UTF-8" ) );
+      digest.update( (byte)'=' );
+      digest.update( nonce.getBytes( "UTF-8" ) );
+      return Base64.encode( digest.digest() );
+    } catch ( Exception e ) {
+      throw new IllegalStateException( "SHA-256 is not available: " + e.getMessage() );
+    }
+  }
+
+  private static CosignPrincipal copyPrincipal( CosignPrincipal principal ) {
+    CosignPrincipal copy = new CosignPrincipal();
+    copy.setAddress( principal.getAddress() );
+    copy.setName( principal.getName() );
+    copy.setRealm( principal.getRealm() );
+    copy.setFactors( new Vector( principal.getFactors() ) );
+    copy.setTimestamp( principal.getTimestamp() );
+    return copy;
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,95 @@
+package edu.umich.auth.cosign;
+
+import javax.security.auth.kerberos.KerberosTicket;
+
+import edu.umich.auth.cosign.util.ExpiringCache;
+
+/**
+ * This singleton class keeps the Kerberos ticket granting tickets retrieved
+ * from the cosignd server in memory, keyed by principal name, so that
+ * further logins of the same user within the lifetime of the ticket do not
+ * have to retrieve it again.  Each entry expires shortly before the end
+ * time of its ticket.  Only copies of the cached tickets are handed out,
+ * so destroying a ticket in one subject does not affect the cache.
+ * @see edu.umich.auth.cosign.pool.CosignConnection#retrieveTGT
+ */
+public class CosignCredentialCache {
+
+  /**
+   * Singleton object of the CosignCredentialCache
+   */
+  public static final CosignCredentialCache INSTANCE = new CosignCredentialCache();
+
+  // Tickets are dropped this long before they expire
+  private static final long EXPIRY_MARGIN_MILLIS = 60000;
+
+  // Ticket granting tickets, keyed by principal name
+  private final ExpiringCache tickets;
+
+  /**
+   * Constructor for CosignCredentialCache.
+   */
+  private CosignCredentialCache() {
+    tickets = new ExpiringCache( getCacheSize() );
+    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.UpdateListener () {
+
+      public void configUpdated() {
+        tickets.setMaxSize( getCacheSize() );
+      }
+
+    });
+  }
+
+  /**
+   * This method returns a copy of the ticket cached for the given
+   * principal, or null if none is cached.
+   * @param principalName   The principal name in user@REALM form
+   */
+  public KerberosTicket getTicket( String principalName ) {
+    KerberosTicket ticket = (KerberosTicket)tickets.get( principalName );
+    return ( ticket == null ) ? null : copyTicket( ticket );
+  }
+
+  /**
+   * This method caches a copy of the given ticket until shortly before
+   * its end time.
+   * @param principalName   The principal name in user@REALM form
+   */
+  public void putTicket( String principalName, KerberosTicket ticket ) {
+    long ttlMillis = ticket.getEndTime().getTime() - System.currentTimeMillis() - EXPIRY_MARGIN_MILLIS;
+    if ( ttlMillis > 0 ) {
+      tickets.put( principalName, copyTicket( ticket ), ttlMillis );
+    }
+  }
+
+  private static KerberosTicket copyTicket( KerberosTicket ticket ) {
+    return new KerberosTicket( ticket.getEncoded(), ticket.getClient(), ticket.getServer(),
+                               ticket.getSessionKey().getEncoded(), ticket.getSessionKeyType(),
+                               ticket.getFlags(), ticket.getAuthTime(), ticket.getStartTime(),
+                               ticket.getEndTime(), ticket.getRenewTill(), ticket.getClientAddresses() );
+  }
+
+  private static int getCacheSize() {
+    return CosignConfig.INSTANCE.getSnapshot().getKerberosCredentialCacheSize();
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,186 @@
+package edu.umich.auth.cosign;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.pool.CosignConnection;
+import edu.umich.auth.cosign.pool.CosignConnectionList;
+import edu.umich.auth.cosign.pool.CosignConnectionPool;
+import edu.umich.auth.cosign.pool.CosignLoginTransaction;
+
+/**
+ * This singleton class retrieves a user's Kerberos tgt and proxy cookies
+ * from the cosignd server once they have logged in.  When
+ * AsyncCredentialRetrieval is enabled the retrieval runs on a background
+ * thread so the login does not wait for it.  It only fills a subject of
+ * its own, which the next request adds to the user's subject; code that
+ * needs the credentials straight away waits with
+ * <code>CosignPrincipal.awaitCredentials</code>.  If too many retrievals
+ * are queued, the caller runs its own.
+ * @see edu.umich.auth.cosign.CosignLoginModule#commit()
+ */
+public class CosignCredentialRetriever {
+
+  /**
+   * Singleton object of the CosignCredentialRetriever
+   */
+  public static final CosignCredentialRetriever INSTANCE = new CosignCredentialRetriever();
+
+  // Number of background threads
+  private static final int NUM_THREADS = 4;
+
+  // Maximum number of retrievals waiting for a thread
+  private static final int MAX_QUEUED = 1000;
+
+  // Runs the retrievals
+  private final ThreadPoolExecutor executor;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignCredentialRetriever.class );
+
+  /**
+   * Constructor for CosignCredentialRetriever.
+   */
+  private CosignCredentialRetriever() {
+    executor = new ThreadPoolExecutor( NUM_THREADS, NUM_THREADS, 60, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue( MAX_QUEUED ), new ThreadFactory() {
+      private int threadId = 0;
+
+      public synchronized Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "CosignCredentialRetriever-" + ( threadId++ ) );
+        thread.setDaemon( true );
+        return thread;
+      }
+    }, new ThreadPoolExecutor.CallerRunsPolicy() );
+  }
+
+  /**
+   * This method retrieves the Kerberos tgt and/or proxy cookies for the
+   * given service cookie and adds them to the subject and principal.  The
+   * caller must not share them with other threads until the retrieval is
+   * done.
+   * @param serviceName   The cosign service name e.g. cosign-wolverineaccess
+   * @param nonce         The nonce of the service cookie
+   * @param subject       The subject the user logged in as
+   * @param principal     The user's principal, already in the subject
+   * @param getTicket     Whether to retrieve the Kerberos tgt
+   * @param getProxies    Whether to retrieve the proxy cookies
+   * @return  A future whose value is Boolean.TRUE if everything requested
+   *            was retrieved.  It is already done if the retrieval ran on
+   *            the calling thread.
+   */
+  public Future retrieve( String serviceName, String nonce, Subject subject,
+                          CosignPrincipal principal, boolean getTicket, boolean getProxies ) {
+    FutureTask task = new FutureTask( new Retrieval( serviceName, nonce, subject, principal,
+                                                     getTicket, getProxies ) );
+    if ( CosignConfig.INSTANCE.getSnapshot().isAsyncCredentialRetrieval() ) {
+      executor.execute( task );
+    } else {
+      task.run();
+    }
+    return task;
+  }
+
+  /**
+   * A single retrieval.
+   */
+  private class Retrieval implements Callable {
+
+    private final String serviceName;
+    private final String nonce;
+    private final Subject subject;
+    private final CosignPrincipal principal;
+    private final boolean getTicket;
+    private final boolean getProxies;
+
+    Retrieval( String serviceName, String nonce, Subject subject, CosignPrincipal principal,
+               boolean getTicket, boolean getProxies ) {
+      this.serviceName = serviceName;
+      this.nonce = nonce;
+      this.subject = subject;
+      this.principal = principal;
+      this.getTicket = getTicket;
+      this.getProxies = getProxies;
+    }
+
+    public Object call() {
+      // Both RETRs are written back to back on one borrowed connection
+      CosignLoginTransaction transaction = new CosignLoginTransaction( serviceName, nonce, subject,
+                                                                       principal, getTicket, getProxies );
+      CosignConnectionList cosignConnectionList = borrow();
+      if ( cosignConnectionList == null ) {
+        return Boolean.FALSE;
+      }
+      try {
+        cosignConnectionList.login( transaction );
+      } finally {
+        giveBack( cosignConnectionList );
+      }
+
+      boolean retrieved = true;
+      if ( getTicket && !isRetrieved( transaction.getTicketResponse() ) ) {
+        log.warn( "Failed to retrieve kerberos tgt for " + principal.getName() + ": " +
+                  transaction.getTicketResponse() );
+        retrieved = false;
+      }
+      if ( getProxies && !isRetrieved( transaction.getProxyResponse() ) ) {
+        log.warn( "Failed to retrieve proxy cookies for " + principal.getName() + ": " +
+                  transaction.getProxyResponse() );
+        retrieved = false;
+      }
+      return Boolean.valueOf( retrieved );
+    }
+
+    private boolean isRetrieved( String response ) {
+      return CosignConnection.convertResponseToCode( response ) == CosignConnection.COSIGN_USER_AUTHENTICATED;
+    }
+
+    private CosignConnectionList borrow() {
+      try {
+        return CosignConnectionPool.INSTANCE.borrowCosignConnectionList();
+      } catch ( Exception e ) {
+        log.warn( "Failed to borrow cosign connections from pool." );
+        return null;
+      }
+    }
+
+    private void giveBack( CosignConnectionList cosignConnectionList ) {
+      try {
+        CosignConnectionPool.INSTANCE.returnCosignConnectionList( cosignConnectionList );
+      } catch ( Exception e ) {
+        log.error( "Failed to return cosign connections to pool." );
+      }
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
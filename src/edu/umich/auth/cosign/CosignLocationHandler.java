@@ -2,6 +2,7 @@ package edu.umich.auth.cosign;
 
 import edu.umich.auth.cosign.util.ServiceConfig;
 import edu.umich.auth.cosign.pool.CosignConnectionList;
+import edu.umich.auth.cosign.pool.CosignCodec;
 import edu.umich.auth.cosign.pool.CosignConnection;
 import edu.umich.auth.cosign.pool.CosignConnectionPool;
 import javax.security.auth.login.LoginException;
@@ -23,10 +24,7 @@ public class CosignLocationHandler {
     }
 
 public void init() throws Exception{
-    if ((((String) CosignConfig.INSTANCE.
-               getPropertyValue(
-                       CosignConfig.
-                       COSIGN_SERVER_VERSION)).length() == 0)) {
+    if (CosignConfig.INSTANCE.getSnapshot().getServerVersion().length() == 0) {
             // Grab a connection list from the pool
             CosignConnectionList cosignConnectionList;
             try {
@@ -56,32 +54,19 @@ public void init() throws Exception{
 
         cosignCookie = new CosignCookie(cookieNounce, System.currentTimeMillis());
 
-        CosignConnectionList cosignConnectionList;
+        // Keep trying until we get a server which will serve us,
+        // or there are no servers available in the pool.
+        CosignCodec.Reply cosignResponse;
         try {
-            cosignConnectionList = CosignConnectionPool.INSTANCE.
-                                   borrowCosignConnectionList();
+            cosignResponse = CosignConnectionPool.INSTANCE.checkCookie(
+                    service.getName(), cosignCookie.getNonce());
         } catch (Exception e) {
             throw new LoginException(
                     "Failed to borrow cosign connections from pool.");
         }
 
-        // Keep trying until we get a server which will serve us,
-        // or there are no servers available in the pool.
-
-        String cosignResponse = cosignConnectionList.checkCookie(service.
-                getName(),
-                cosignCookie.getNonce());
-
         cosignCode = CosignConnection.convertResponseToCode(cosignResponse);
 
-        // Return the connection list back to the pool
-        try {
-            CosignConnectionPool.INSTANCE.returnCosignConnectionList(
-                    cosignConnectionList);
-        } catch (Exception e) {
-            log.error("Failed to return cosign connections to pool.");
-        }
-
         // Translate server response to boolean return or exception.
         // NOTE: No false return since that would tell LoginContext to ignore this module.
         if (cosignResponse == null) {
@@ -90,17 +75,21 @@ public void init() throws Exception{
         } else if (cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED) {
             throw new Exception("User not authenticated to Cosign.");
         } else if (cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED) {
+            /* The first request with the new cookie will not need to check it again. */
+            try {
+                CosignCookieCache.INSTANCE.putPrincipal(service.getName(),
+                        cosignCookie.getNonce(), CosignPrincipal.fromReply(cosignResponse));
+            } catch (Exception e) {
+                log.debug("Location Handler: not caching unparsable response");
+            }
+
             /* Generate the cookie and assign it to the response. */
-            String cookieName = service.getName();
+            String cookieName = service.getCookieName();
             Cookie cookie = new Cookie(cookieName, cosignCookie.getCookie());
             cookie.setPath("/");
             log.debug("Location Handler: user authenticated");
             // If Cosign is in HTTPS-only mode, we need to mark the cookie as secure
-            boolean isHttpsOnly = ((Boolean) CosignConfig.INSTANCE.
-                                   getPropertyValue(
-                                           CosignConfig.HTTPS_ONLY)).
-                                  booleanValue();
-            if (isHttpsOnly) {
+            if (CosignConfig.INSTANCE.getSnapshot().isHttpsOnly()) {
                 cookie.setSecure(true);
             }
             response.addCookie(cookie);
@@ -7,6 +7,7 @@ import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.TextInputCallback;
+import javax.security.auth.kerberos.KerberosPrincipal;
 
 import javax.security.auth.login.LoginException;
 import javax.security.auth.login.FailedLoginException;
@@ -15,15 +16,15 @@ import javax.security.auth.spi.LoginModule;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import edu.umich.auth.cosign.pool.CosignConnectionList;
+import edu.umich.auth.cosign.pool.CosignCodec;
 import edu.umich.auth.cosign.pool.CosignConnection;
 import edu.umich.auth.cosign.pool.CosignConnectionPool;
+import edu.umich.auth.cosign.pool.CosignLoginTransaction;
 import java.util.Vector;
 import edu.umich.auth.ServletCallbackHandler;
 import edu.umich.auth.cosign.util.FactorInputCallBack;
 import edu.umich.auth.cosign.util.ServiceConfig;
 import java.util.Enumeration;
-import javax.security.auth.kerberos.KerberosPrincipal;
 
 /**
  * A JAAS <code>LoginModule</code> for Cosign authentication.
@@ -55,6 +56,16 @@ public class CosignLoginModule implements LoginModule {
 
     private int cosignCode = CosignConnection.COSIGN_CODE_UNKNOWN;
 
+    // Credentials to retrieve in commit(), and the cookie to retrieve them with
+    private boolean retrieveTicket = false;
+    private boolean retrieveProxies = false;
+    private String retrievalServiceName = null;
+    private String retrievalNonce = null;
+
+    // Credentials already retrieved along with the CHECK in login(), and
+    // held here until commit()
+    private Subject retrievedCredentials = null;
+
     // Callbacks sent to the callback handler.
     private TextInputCallback cookieNameIn = new TextInputCallback(
             COOKIE_NAME_IN_CODE);
@@ -97,7 +108,8 @@ public class CosignLoginModule implements LoginModule {
     public boolean login() throws LoginException {
 
         // Do a quick check to make sure that the configuration is valid
-        if (!CosignConfig.INSTANCE.isConfigValid()) {
+        final CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+        if (!config.isValid()) {
             throw new LoginException(
                     "Initialization Error: Invalid configuration state.");
         }
@@ -132,92 +144,96 @@ public class CosignLoginModule implements LoginModule {
 
         // Check the timestamp on the Cosign Cookie.  If the timestamp is expired,
         // we need to fail the login so that a new cookie is issued.
-        final long cookieExpireMillis = ((Integer) CosignConfig.INSTANCE
-                                         .getPropertyValue(CosignConfig.
-                COOKIE_EXPIRE_SECS)).intValue() * 1000;
         if (System.currentTimeMillis() - cosignCookie.getTimestamp() >=
-            cookieExpireMillis) {
+            config.getCookieExpireMillis()) {
             throw new FailedLoginException(
                     "The client's service cookie has expired.");
         }
 
         // Check if a principal already exists.
-        Iterator iterator = subject.getPrincipals().iterator();
-        while (iterator.hasNext()) {
-            Object object = iterator.next();
-            if (object instanceof CosignPrincipal) {
-                userPrincipal = (CosignPrincipal) object;
-                break;
+        synchronized (subject.getPrincipals()) {
+            Iterator iterator = subject.getPrincipals().iterator();
+            while (iterator.hasNext()) {
+                Object object = iterator.next();
+                if (object instanceof CosignPrincipal) {
+                    userPrincipal = (CosignPrincipal) object;
+                    break;
+                }
             }
         }
 
+        // Pick up the credentials of a background retrieval that finished
+        // since the last request
+        if (userPrincipal != null) {
+            userPrincipal.addRetrievedCredentials(subject);
+        }
+
         // 'principal' is null if this is a first login.
-        final boolean checkClientIP = ((Boolean) CosignConfig.INSTANCE
-                                       .getPropertyValue(CosignConfig.
-                CHECK_CLIENT_IP)).booleanValue();
         if (userPrincipal != null) {
-            if (checkClientIP && !ipAddr.equals(userPrincipal.getAddress())) {
+            if (config.isCheckClientIP() && !ipAddr.equals(userPrincipal.getAddress())) {
                 throw new FailedLoginException(
                         "The client's IP address has changed.");
             }
 
             // If the locally cached cookie is not expired, we don't need to check the CoSign server
-            final long cookieCacheExpireMillis = ((Integer) CosignConfig.
-                                                  INSTANCE
-                                                  .getPropertyValue(
-                    CosignConfig.COOKIE_CACHE_EXPIRE_SECS)).intValue() * 1000;
-            if ((System.currentTimeMillis() - userPrincipal.getTimestamp()) <
-                cookieCacheExpireMillis) {
+            final long cookieCacheExpireMillis = config.getCookieCacheExpireMillis();
+            final long cachedMillis = System.currentTimeMillis() -
+                                      userPrincipal.getTimestamp();
+            if (cachedMillis < cookieCacheExpireMillis) {
                 if (log.isDebugEnabled()) {
                     log.debug(
                             "The client's cookie is still cached ... not performing validation.");
                 }
+
+                // Close to expiry, revalidate in the background so this user
+                // never has to wait for the cosignd server
+                final long refreshAheadMillis = config.getCookieCacheRefreshAheadMillis();
+                if ((refreshAheadMillis > 0) &&
+                    (cachedMillis >= cookieCacheExpireMillis - refreshAheadMillis)) {
+                    CosignRevalidator.INSTANCE.revalidate(cookieName,
+                            cosignCookie.getNonce(), userPrincipal,
+                            factorsCb.getFactors());
+                }
                 cosignServerCheckSkipped = true;
                 return true;
             }
         }
 
-        // Grab a connection list from the pool
-        CosignConnectionList cosignConnectionList;
-        try {
-            cosignConnectionList = CosignConnectionPool.INSTANCE.
-                                   borrowCosignConnectionList();
-        } catch (Exception e) {
-            throw new LoginException(
-                    "Failed to borrow cosign connections from pool.");
+        // The tgt and proxy cookies are retrieved along with the CHECK if
+        // the cookie has to be validated, otherwise once the principal has
+        // been committed to the subject
+        retrieveTicket = config.isKerberosGetTickets() &&
+                         !hasKerberosPrincipal(subject);
+        retrieveProxies = proxyValue.equalsIgnoreCase("true");
+        if (retrieveTicket || retrieveProxies) {
+            retrievalServiceName = cookieName;
+            retrievalNonce = cosignCookie.getNonce();
         }
 
-        // Keep trying until we get a server which will serve us,
-        // or there are no servers available in the pool.
-
-        String cosignResponse = cosignConnectionList.checkCookie(cookieName,
+        // The cookie may have been validated recently for another session
+        serverPrincipal = CosignCookieCache.INSTANCE.getPrincipal(cookieName,
                 cosignCookie.getNonce());
-
-        cosignCode = CosignConnection.convertResponseToCode(cosignResponse);
-
-        // Return the connection list back to the pool
-        try {
-            CosignConnectionPool.INSTANCE.returnCosignConnectionList(
-                    cosignConnectionList);
-        } catch (Exception e) {
-            log.error("Failed to return cosign connections to pool.");
-        }
-
-        // Translate server response to boolean return or exception.
-        // NOTE: No false return since that would tell LoginContext to ignore this module.
-        if (cosignResponse == null) {
-            throw new LoginException(
-                    "No cosignd servers available for authentication.");
-        } else if (cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED) {
-            throw new FailedLoginException("User not authenticated to Cosign.");
-        }
-
-        // Attempt to parse the response from the cosignd server
-        try {
-            serverPrincipal = new CosignPrincipal(cosignResponse);
-        } catch (Exception e) {
-            throw new FailedLoginException(
-                    "Cosignd server returned invalid response.");
+        if (serverPrincipal != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("The client's cookie was recently validated ... not performing validation.");
+            }
+            cosignCode = CosignConnection.COSIGN_USER_AUTHENTICATED;
+        } else {
+            try {
+                validateCookie(cookieName, cosignCookie);
+            } catch (FailedLoginException fle) {
+                throw fle;
+            } catch (LoginException le) {
+                // The cosignd servers could not be reached.  A user we
+                // validated recently may keep going for a little while.
+                if (!isWithinGracePeriod()) {
+                    throw le;
+                }
+                log.warn("Cosignd servers unavailable ... honoring cached principal for " +
+                         userPrincipal.getName());
+                cosignServerCheckSkipped = true;
+                return true;
+            }
         }
 
         //check for multi factors here.  They should have been placed in the serverPriciple above
@@ -231,7 +247,7 @@ public class CosignLoginModule implements LoginModule {
         // The user was validated against the cosign server.  We need to check their
         // user stats as returned by the server to what we expect
         if (userPrincipal != null) {
-            if (checkClientIP &&
+            if (config.isCheckClientIP() &&
                 !serverPrincipal.getAddress().equals(userPrincipal.getAddress())) {
                 throw new FailedLoginException(
                         "Server and client disagree about client's IP address");
@@ -245,27 +261,6 @@ public class CosignLoginModule implements LoginModule {
             }
         }
 
-        if (((Boolean) CosignConfig.INSTANCE.getPropertyValue(CosignConfig.
-                KERBEROS_GET_TICKETS)).booleanValue()) {
-            try {
-                boolean result = getKerbTgtTicket(cookieName, cosignCookie);
-                if(result){
-
-                }
-
-            } catch (Exception e) {
-                //do something here fool
-            }
-        }
-
-        if (proxyValue.equalsIgnoreCase("true")) {
-           try {
-               boolean result = getCosignProxyTickets(cookieName, cosignCookie);
-           } catch (Exception e) {
-               //do something here fool
-           }
-       }
-
         return true;
     }
 
@@ -289,7 +284,9 @@ public class CosignLoginModule implements LoginModule {
             // (first-time login), so create one.
             if (userPrincipal == null) {
                 userPrincipal = new CosignPrincipal();
-                subject.getPrincipals().add(userPrincipal);
+                synchronized (subject.getPrincipals()) {
+                    subject.getPrincipals().add(userPrincipal);
+                }
             }
 
             // Parse the cosign response string.
@@ -299,6 +296,29 @@ public class CosignLoginModule implements LoginModule {
             userPrincipal.setTimestamp(serverPrincipal.getTimestamp());
             userPrincipal.setFactors(serverPrincipal.getFactors());
 
+            if (retrievedCredentials != null) {
+                addRetrievedCredentials();
+            } else if (retrieveTicket || retrieveProxies) {
+                // The background retrieval fills a subject of its own, which
+                // a later request adds to this one once it is done
+                Subject credentials = new Subject();
+                CosignPrincipal retrievalPrincipal = new CosignPrincipal();
+                retrievalPrincipal.setAddress(serverPrincipal.getAddress());
+                retrievalPrincipal.setName(serverPrincipal.getName());
+                retrievalPrincipal.setRealm(serverPrincipal.getRealm());
+                if (retrieveProxies) {
+                    credentials.getPrincipals().add(retrievalPrincipal);
+                }
+                userPrincipal.setCredentialRetrieval(CosignCredentialRetriever.
+                        INSTANCE.retrieve(retrievalServiceName, retrievalNonce,
+                                          credentials, retrievalPrincipal,
+                                          retrieveTicket, retrieveProxies),
+                        credentials);
+
+                // The retrieval ran on this thread if the queue was full
+                userPrincipal.addRetrievedCredentials(subject);
+            }
+
         } else {
             throw new IllegalStateException();
         }
@@ -315,6 +335,11 @@ public class CosignLoginModule implements LoginModule {
         serverPrincipal = null;
         cosignCode = CosignConnection.COSIGN_CODE_UNKNOWN;
         cosignServerCheckSkipped = false;
+        retrieveTicket = false;
+        retrieveProxies = false;
+        retrievalServiceName = null;
+        retrievalNonce = null;
+        retrievedCredentials = null;
         return true;
     }
 
@@ -333,12 +358,20 @@ public class CosignLoginModule implements LoginModule {
      */
     public boolean checkServiceFactors(Vector factors,
                                        CosignPrincipal principle) {
-        String ignoreFactorSuffix = (String) CosignConfig.INSTANCE.
-                                    getPropertyValue(CosignConfig.
-                COSIGN_FACTOR_SUFFIX_IGNORE);
-        String factorSuffix = (String) CosignConfig.INSTANCE.getPropertyValue(
-                CosignConfig.COSIGN_FACTOR_SUFFIX);
-        Boolean ignore = new Boolean(ignoreFactorSuffix);
+        return hasServiceFactors(factors, principle);
+    }
+
+    /**
+     * This method checks required factors with factors that have been authorized
+     * from the server, without needing a login module.
+     * @return  true if all factors required have been satisfied, False if not.
+     *
+     */
+    public static boolean hasServiceFactors(Vector factors,
+                                            CosignPrincipal principle) {
+        CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+        boolean ignore = config.isFactorSuffixIgnore();
+        String factorSuffix = config.getFactorSuffix();
 
         if (factors.size() > 0) {
             Enumeration enuS = factors.elements();
@@ -351,7 +384,7 @@ public class CosignLoginModule implements LoginModule {
                 while (enuF.hasMoreElements()) {
                     curPricipleFactor = stripIgnoreFactor((String) enuF.
                             nextElement(),
-                            ignore.booleanValue(), factorSuffix);
+                            ignore, factorSuffix);
                     if (curServiceFactor.equalsIgnoreCase(curPricipleFactor)) {
                         factorFound = true;
                     }
@@ -365,7 +398,7 @@ public class CosignLoginModule implements LoginModule {
     }
 
 
-    private String stripIgnoreFactor(String factor, boolean shouldIgnore,
+    private static String stripIgnoreFactor(String factor, boolean shouldIgnore,
                                      String ignore) {
         if (!shouldIgnore) {
             return factor;
@@ -380,121 +413,139 @@ public class CosignLoginModule implements LoginModule {
 
     }
 
-    private boolean getKerbTgtTicket(String cookieName,
-                                     CosignCookie cosignCookie) throws
-            Exception {
-        String tgtResponse = null;
-        KerberosPrincipal kerbPrinciple = null;
-        try {
-            int count=0;
-            // Check if a tgt/kerb5priciple already exists.
-            Iterator iterator2 = this.subject.getPrincipals().iterator();
-            log.info("going into iterator");
-            while (iterator2.hasNext()) {
-                count++;
-                Object object = iterator2.next();
-                log.info("object connical name is: " + object.getClass().getName());
-                if (object instanceof KerberosPrincipal) {
-                    kerbPrinciple = (KerberosPrincipal) object;
-                    log.info("kerb principle found");
-                    break;
-                }
-            }
-            log.info("Kerberos iterator count: " + count);
-
-        } catch (Exception ex) {
-            throw new LoginException(
-                    "Failed to collect kerberos credentials. " + ex.getMessage());
+    /**
+     * This method returns true if the session's cached principal expired
+     * less than CookieCacheGraceSecs ago.
+     */
+    private boolean isWithinGracePeriod() {
+        if (userPrincipal == null) {
+            return false;
         }
+        CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+        final long graceMillis = config.getCookieCacheGraceMillis();
+        final long cookieCacheExpireMillis = config.getCookieCacheExpireMillis();
+        return (graceMillis > 0) &&
+                (System.currentTimeMillis() - userPrincipal.getTimestamp() <
+                 cookieCacheExpireMillis + graceMillis);
+    }
 
-        if (kerbPrinciple != null) {
-            return true;
+    /**
+     * This method checks the cookie against the cosignd server and, if the
+     * user is authenticated, parses the response into serverPrincipal and
+     * caches it.
+     */
+    private void validateCookie(String cookieName, CosignCookie cosignCookie) throws
+            LoginException {
+        // Don't bother the cosignd server with a cookie it just rejected
+        if (CosignCookieCache.INSTANCE.isRejected(cookieName,
+                                                  cosignCookie.getNonce())) {
+            cosignCode = CosignConnection.COSIGN_USER_NOT_AUTHENTICATED;
+            throw new FailedLoginException("User not authenticated to Cosign.");
         }
 
-        // Grab a connection list from the pool
-        CosignConnectionList cosignConnectionList;
-        try {
-            cosignConnectionList = CosignConnectionPool.INSTANCE.
-                                   borrowCosignConnectionList();
-        } catch (Exception e) {
-            throw new LoginException(
-                    "Failed to borrow cosign connections from pool.");
+        // Unless they are retrieved in the background, the credentials are
+        // retrieved on the same connection as the CHECK.  They are kept
+        // apart from the subject until commit().
+        CosignLoginTransaction transaction = null;
+        if ((retrieveTicket || retrieveProxies) &&
+            !CosignConfig.INSTANCE.getSnapshot().isAsyncCredentialRetrieval()) {
+            transaction = new CosignLoginTransaction(cookieName,
+                    cosignCookie.getNonce(), new Subject(), null,
+                    retrieveTicket, retrieveProxies);
         }
 
         // Keep trying until we get a server which will serve us,
         // or there are no servers available in the pool.
+        CosignCodec.Reply cosignResponse;
         try {
-            tgtResponse = cosignConnectionList.retreiveTGT(cookieName,
-                    cosignCookie.getNonce(), subject, serverPrincipal);
+            if (transaction != null) {
+                CosignConnectionPool.INSTANCE.login(transaction);
+                cosignResponse = transaction.getCheckResponse();
+            } else {
+                cosignResponse = CosignConnectionPool.INSTANCE.checkCookie(
+                        cookieName, cosignCookie.getNonce());
+            }
         } catch (Exception e) {
-            throw new FailedLoginException(
-                    "Cosignd server failed kerberos tgt.");
+            throw new LoginException(
+                    "Failed to borrow cosign connections from pool.");
         }
 
-        // Return the connection list back to the pool
-        try {
-            CosignConnectionPool.INSTANCE.returnCosignConnectionList(
-                    cosignConnectionList);
-        } catch (Exception e) {
-            log.error("Failed to return cosign connections to pool.");
-        }
+        cosignCode = CosignConnection.convertResponseToCode(cosignResponse);
 
-        cosignCode = CosignConnection.convertResponseToCode(tgtResponse);
         // Translate server response to boolean return or exception.
         // NOTE: No false return since that would tell LoginContext to ignore this module.
-        if (tgtResponse == null) {
+        if (cosignResponse == null) {
             throw new LoginException(
                     "No cosignd servers available for authentication.");
         } else if (cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED) {
+            if (cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED) {
+                CosignCookieCache.INSTANCE.putRejected(cookieName,
+                        cosignCookie.getNonce());
+            }
             throw new FailedLoginException("User not authenticated to Cosign.");
         }
-        return true;
-    }
 
-    private boolean getCosignProxyTickets(String cookieName,
-                                     CosignCookie cosignCookie) throws
-            Exception {
-        // Grab a connection list from the pool
-                CosignConnectionList cosignConnectionList;
-                String response;
-                try {
-                    cosignConnectionList = CosignConnectionPool.INSTANCE.
-                                           borrowCosignConnectionList();
-                } catch (Exception e) {
-                    throw new LoginException(
-                            "Failed to borrow cosign connections from pool.");
-                }
-
-                // Keep trying until we get a server which will serve us,
-                // or there are no servers available in the pool.
-                try {
-                    response = cosignConnectionList.retreiveProxyCookie(cookieName,
-                            cosignCookie.getNonce(), subject, serverPrincipal);
-                } catch (Exception e) {
-                    throw new FailedLoginException(
-                            "Cosignd server failed cookie proxies.");
-                }
+        // Attempt to parse the response from the cosignd server
+        if (transaction != null) {
+            serverPrincipal = transaction.getPrincipal();
+            if (serverPrincipal == null) {
+                throw new FailedLoginException(
+                        "Cosignd server returned invalid response.");
+            }
+            if (retrieveTicket &&
+                (CosignConnection.convertResponseToCode(transaction.getTicketResponse()) !=
+                 CosignConnection.COSIGN_USER_AUTHENTICATED)) {
+                log.warn("Failed to retrieve kerberos tgt for " +
+                         serverPrincipal.getName() + ": " +
+                         transaction.getTicketResponse());
+            }
+            if (retrieveProxies &&
+                (CosignConnection.convertResponseToCode(transaction.getProxyResponse()) !=
+                 CosignConnection.COSIGN_USER_AUTHENTICATED)) {
+                log.warn("Failed to retrieve proxy cookies for " +
+                         serverPrincipal.getName() + ": " +
+                         transaction.getProxyResponse());
+            }
+            retrievedCredentials = transaction.getSubject();
+        } else {
+            try {
+                serverPrincipal = CosignPrincipal.fromReply(cosignResponse);
+            } catch (Exception e) {
+                throw new FailedLoginException(
+                        "Cosignd server returned invalid response.");
+            }
+        }
+        CosignCookieCache.INSTANCE.putPrincipal(cookieName,
+                cosignCookie.getNonce(), serverPrincipal);
+    }
 
-                // Return the connection list back to the pool
-                
-                try {
-                    CosignConnectionPool.INSTANCE.returnCosignConnectionList(
-                            cosignConnectionList);
-                } catch (Exception e) {
-                    log.error("Failed to return cosign connections to pool.");
-                }
+    /**
+     * This method adds the credentials retrieved along with the CHECK to
+     * the subject and principal.
+     */
+    private void addRetrievedCredentials() {
+        synchronized (subject.getPrincipals()) {
+            subject.getPrincipals().addAll(retrievedCredentials.getPrincipals());
+            synchronized (subject.getPrivateCredentials()) {
+                subject.getPrivateCredentials().addAll(
+                        retrievedCredentials.getPrivateCredentials());
+            }
+        }
+        if (retrieveProxies) {
+            userPrincipal.setProxyCookies(serverPrincipal.getProxyCookies());
+        }
+    }
 
-                cosignCode = CosignConnection.convertResponseToCode(response);
-                // Translate server response to boolean return or exception.
-                // NOTE: No false return since that would tell LoginContext to ignore this module.
-                if (response == null) {
-                    throw new LoginException(
-                            "No cosignd servers available for authentication.");
-                } else if (cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED) {
-                    throw new FailedLoginException("User not authenticated to Cosign.");
+    private static boolean hasKerberosPrincipal(Subject subject) {
+        synchronized (subject.getPrincipals()) {
+            Iterator iterator = subject.getPrincipals().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() instanceof KerberosPrincipal) {
+                    return true;
                 }
-        return true;
-
+            }
+            return false;
+        }
     }
 }
 
@@ -3,13 +3,19 @@ package edu.umich.auth.cosign;
 import java.io.Serializable;
 
 import java.security.Principal;
-import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.security.auth.Subject;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import java.util.Vector;
 import edu.umich.auth.cosign.util.ProxyCookie;
 import java.util.Iterator;
+import edu.umich.auth.cosign.pool.CosignCodec;
 
 /**
  * This class stores the user name, realm, ip address, and "last validated"
@@ -21,9 +27,16 @@ public class CosignPrincipal implements Principal, Serializable
   private String name;
   private String address;
   private String realm;
-  private Vector factors;
-  private Vector proxies;
-  private long timestamp;
+  private volatile Vector factors;
+  private volatile Vector proxies;
+  private volatile long timestamp;
+
+  // The retrieval of the Kerberos tgt and proxy cookies, if one was started
+  private transient volatile Future credentialRetrieval;
+
+  // The subject the retrieval adds the credentials to, until they are
+  // added to the user's subject.  Guarded by this.
+  private transient Subject retrievedCredentials;
 
 
   // Used for logging info and error messages
@@ -47,15 +60,38 @@ public class CosignPrincipal implements Principal, Serializable
    */
   public CosignPrincipal ( String cosignResponse ) throws Exception {
     try {
-      StringTokenizer tokenizer = new StringTokenizer( cosignResponse );
-      tokenizer.nextToken();
       factors = new Vector();
-      setAddress( tokenizer.nextToken() );
-      setName( tokenizer.nextToken() );
-      setRealm( tokenizer.nextToken() );
-      factors.add(getRealm());
-      while(tokenizer.hasMoreElements()){
-          factors.add(tokenizer.nextToken());
+      proxies = new Vector();
+
+      // Walk the space separated fields: code, address, name, realm, factors...
+      int length = cosignResponse.length();
+      int pos = 0;
+      int fieldIdx = 0;
+      while ( pos < length ) {
+        while ( pos < length && cosignResponse.charAt( pos ) == ' ' ) {
+          pos++;
+        }
+        if ( pos == length ) {
+          break;
+        }
+        int start = pos;
+        while ( pos < length && cosignResponse.charAt( pos ) != ' ' ) {
+          pos++;
+        }
+        if ( fieldIdx == 1 ) {
+          setAddress( cosignResponse.substring( start, pos ) );
+        } else if ( fieldIdx == 2 ) {
+          setName( cosignResponse.substring( start, pos ) );
+        } else if ( fieldIdx == 3 ) {
+          setRealm( cosignResponse.substring( start, pos ) );
+          factors.add( getRealm() );
+        } else if ( fieldIdx > 3 ) {
+          factors.add( cosignResponse.substring( start, pos ) );
+        }
+        fieldIdx++;
+      }
+      if ( fieldIdx < 4 ) {
+        throw new IllegalArgumentException( "Expected at least 4 fields, found " + fieldIdx );
       }
       setTimestamp( System.currentTimeMillis() );
     } catch ( Exception e ) {
@@ -66,6 +102,33 @@ public class CosignPrincipal implements Principal, Serializable
     }
   }
 
+  /**
+   * This method builds a new principal from the fields of a CHECK reply the
+   * codec has already split up, so the reply line is not parsed again.
+   * @param reply CosignCodec.Reply The reply to the CHECK command issued
+   *    against the cosignd server.
+   * @throws IllegalArgumentException If the reply has fewer than 4 fields
+   */
+  public static CosignPrincipal fromReply ( CosignCodec.Reply reply ) {
+    CosignPrincipal principal = new CosignPrincipal();
+    int fieldCount = reply.getFieldCount();
+    if ( fieldCount < 4 ) {
+      if ( principal.log.isErrorEnabled() ) {
+        principal.log.error( "Invalid response from cosignd server: " + reply );
+      }
+      throw new IllegalArgumentException( "Expected at least 4 fields, found " + fieldCount );
+    }
+    principal.setAddress( reply.getField( 1 ) );
+    principal.setName( reply.getField( 2 ) );
+    principal.setRealm( reply.getField( 3 ) );
+    principal.factors.add( principal.getRealm() );
+    for ( int fieldIdx = 4; fieldIdx < fieldCount; fieldIdx++ ) {
+      principal.factors.add( reply.getField( fieldIdx ) );
+    }
+    principal.setTimestamp( System.currentTimeMillis() );
+    return principal;
+  }
+
   /**
    * This method sets the name associated with this principal.
    * @uml.property name="name"
@@ -132,6 +195,85 @@ public class CosignPrincipal implements Principal, Serializable
     this.timestamp = timestamp;
   }
 
+  /**
+   * This method sets the retrieval of the Kerberos tgt and proxy cookies
+   * started for this principal.  The retrieval adds them to a subject of
+   * its own, which is only read once the retrieval is done.
+   * @param credentialRetrieval     The retrieval
+   * @param retrievedCredentials    The subject the retrieval adds the
+   *            credentials to.  The proxy cookies are held by the
+   *            <code>CosignPrincipal</code> in it, if any.
+   */
+  public void setCredentialRetrieval(Future credentialRetrieval, Subject retrievedCredentials) {
+    synchronized ( this ) {
+      this.retrievedCredentials = retrievedCredentials;
+    }
+    this.credentialRetrieval = credentialRetrieval;
+  }
+
+  /**
+   * This method waits until the Kerberos tgt and proxy cookies of this
+   * principal have been retrieved and adds them to it and the given
+   * subject.  Only code that uses those credentials needs to call this.
+   * @param subject         The subject this principal belongs to
+   * @param timeoutMillis   How long to wait at most
+   * @return  True if the retrieval succeeded or none was started, false
+   *            if it failed or did not finish in time.
+   */
+  public boolean awaitCredentials(Subject subject, long timeoutMillis) throws InterruptedException {
+    Future retrieval = credentialRetrieval;
+    if ( retrieval == null ) {
+      return true;
+    }
+    try {
+      boolean retrieved = ( (Boolean)retrieval.get( timeoutMillis, TimeUnit.MILLISECONDS ) ).booleanValue();
+      addRetrievedCredentials( subject );
+      return retrieved;
+    } catch ( TimeoutException te ) {
+      return false;
+    } catch ( ExecutionException ee ) {
+      return false;
+    }
+  }
+
+  /**
+   * This method adds the credentials of a finished retrieval to this
+   * principal and the given subject.  Request threads call it, and the
+   * subject's sets are only changed while holding the lock of its
+   * principal set, which is also held while iterating over it.  Does
+   * nothing if no retrieval is done or its credentials were already added.
+   * @param subject     The subject this principal belongs to
+   */
+  public void addRetrievedCredentials(Subject subject) {
+    Future retrieval = credentialRetrieval;
+    if ( ( retrieval == null ) || !retrieval.isDone() ) {
+      return;
+    }
+    Subject credentials;
+    synchronized ( this ) {
+      credentials = retrievedCredentials;
+      retrievedCredentials = null;
+    }
+    if ( credentials == null ) {
+      return;
+    }
+
+    synchronized ( subject.getPrincipals() ) {
+      Iterator iterator = credentials.getPrincipals().iterator();
+      while ( iterator.hasNext() ) {
+        Principal principal = (Principal)iterator.next();
+        if ( principal instanceof CosignPrincipal ) {
+          setProxyCookies( ( (CosignPrincipal)principal ).getProxyCookies() );
+        } else {
+          subject.getPrincipals().add( principal );
+        }
+      }
+      synchronized ( subject.getPrivateCredentials() ) {
+        subject.getPrivateCredentials().addAll( credentials.getPrivateCredentials() );
+      }
+    }
+  }
+
 public void setFactors(Vector factors){
     this.factors = factors;
 }
@@ -153,6 +295,15 @@ public boolean addProxyCookie(ProxyCookie cookie){
 
 }
 
+public Vector getProxyCookies(){
+    return proxies;
+}
+
+// Replaces the proxy cookies in one step, so readers never see a half-filled list
+public void setProxyCookies(Vector proxies){
+    this.proxies = new Vector(proxies);
+}
+
 public ProxyCookie getProxy(String serviceName, String host){
     Iterator itr = this.proxies.iterator();
     ProxyCookie p = null;
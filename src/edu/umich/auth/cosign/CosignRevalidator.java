@@ -0,0 +1,183 @@
+package edu.umich.auth.cosign;
+
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.pool.CosignCodec;
+import edu.umich.auth.cosign.pool.CosignConnection;
+import edu.umich.auth.cosign.pool.CosignConnectionPool;
+
+/**
+ * This singleton class revalidates cached principals in the background.
+ * When a request arrives shortly before the session's cached principal
+ * expires, CosignLoginModule serves it from the cache and hands the cookie
+ * to this class, which checks it against the cosignd server and, if the
+ * user is still authenticated, moves the principal's timestamp forward.
+ * @see edu.umich.auth.cosign.CosignLoginModule
+ */
+public class CosignRevalidator {
+
+  /**
+   * Singleton object of the CosignRevalidator
+   */
+  public static final CosignRevalidator INSTANCE = new CosignRevalidator();
+
+  // Number of background threads
+  private static final int NUM_THREADS = 2;
+
+  // Maximum number of revalidations waiting for a thread
+  private static final int MAX_QUEUED = 1000;
+
+  // Runs the revalidations
+  private final ThreadPoolExecutor executor;
+
+  // Cookies being revalidated, so that each is only queued once
+  private final ConcurrentHashMap pending = new ConcurrentHashMap();
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignRevalidator.class );
+
+  /**
+   * Constructor for CosignRevalidator.
+   */
+  private CosignRevalidator() {
+    executor = new ThreadPoolExecutor( NUM_THREADS, NUM_THREADS, 60, TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue( MAX_QUEUED ), new ThreadFactory() {
+      private int threadId = 0;
+
+      public synchronized Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "CosignRevalidator-" + ( threadId++ ) );
+        thread.setDaemon( true );
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * This method queues a background CHECK of the given service cookie.
+   * If the user is still authenticated, the timestamp of the principal is
+   * set to the time of the CHECK; if not, the timestamp is cleared so that
+   * the next request validates the cookie itself.  Nothing is queued if the
+   * cookie is already being revalidated or too many are waiting.
+   * @param serviceName       The cosign service name e.g. cosign-wolverineaccess
+   * @param nonce             The nonce of the service cookie
+   * @param principal         The principal held in the user's session
+   * @param requiredFactors   The factors the service requires, or null
+   */
+  public void revalidate( String serviceName, String nonce, CosignPrincipal principal,
+                          Vector requiredFactors ) {
+    String key = serviceName + "=" + nonce;
+    if ( pending.putIfAbsent( key, principal ) != null ) {
+      return;
+    }
+    try {
+      executor.execute( new Revalidation( key, serviceName, nonce, principal, requiredFactors ) );
+    } catch ( RejectedExecutionException ree ) {
+      pending.remove( key );
+      if ( log.isDebugEnabled() ) {
+        log.debug( "Too many revalidations queued, leaving cookie to be checked on expiry" );
+      }
+    }
+  }
+
+  /**
+   * This method applies the principal returned by a successful CHECK to the
+   * principal held in the user's session.  If the server disagrees about the
+   * user, or the user no longer has every factor the service requires, the
+   * timestamp is cleared instead so that the next request validates the
+   * cookie itself.
+   * @param principal         The principal held in the user's session
+   * @param serverPrincipal   The principal returned by cosignd
+   * @param requiredFactors   The factors the service requires, or null
+   * @return  True if the principal was refreshed
+   */
+  public boolean refresh( CosignPrincipal principal, CosignPrincipal serverPrincipal,
+                          Vector requiredFactors ) {
+    boolean checkClientIP = CosignConfig.INSTANCE.getSnapshot().isCheckClientIP();
+    if ( !serverPrincipal.getName().equals( principal.getName() ) ||
+         ( checkClientIP && !serverPrincipal.getAddress().equals( principal.getAddress() ) ) ||
+         ( ( requiredFactors != null ) &&
+           !CosignLoginModule.hasServiceFactors( requiredFactors, serverPrincipal ) ) ) {
+      principal.setTimestamp( 0 );
+      return false;
+    }
+    principal.setFactors( serverPrincipal.getFactors() );
+    principal.setTimestamp( serverPrincipal.getTimestamp() );
+    return true;
+  }
+
+  /**
+   * A single background revalidation.
+   */
+  private class Revalidation implements Runnable {
+
+    private final String key;
+    private final String serviceName;
+    private final String nonce;
+    private final CosignPrincipal principal;
+    private final Vector requiredFactors;
+
+    Revalidation( String key, String serviceName, String nonce, CosignPrincipal principal,
+                  Vector requiredFactors ) {
+      this.key = key;
+      this.serviceName = serviceName;
+      this.nonce = nonce;
+      this.principal = principal;
+      this.requiredFactors = requiredFactors;
+    }
+
+    public void run() {
+      try {
+        CosignCodec.Reply cosignResponse = CosignConnectionPool.INSTANCE.checkCookie( serviceName, nonce );
+        int cosignCode = CosignConnection.convertResponseToCode( cosignResponse );
+
+        if ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) {
+          CosignPrincipal serverPrincipal = CosignPrincipal.fromReply( cosignResponse );
+          // Otherwise the next request sorts out the disagreement
+          if ( refresh( principal, serverPrincipal, requiredFactors ) ) {
+            CosignCookieCache.INSTANCE.putPrincipal( serviceName, nonce, serverPrincipal );
+          }
+
+        } else if ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) {
+          principal.setTimestamp( 0 );
+          CosignCookieCache.INSTANCE.putRejected( serviceName, nonce );
+        }
+      } catch ( Exception e ) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "Failed to revalidate cookie in the background", e );
+        }
+      } finally {
+        pending.remove( key );
+      }
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
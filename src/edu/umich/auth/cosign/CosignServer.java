@@ -2,7 +2,6 @@ package edu.umich.auth.cosign;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,8 +15,9 @@ import org.apache.commons.pool.impl.*;
 public class CosignServer {
 
 	private final String host;
-        private  String[] hostAddrs;
-        private long startMillis;
+
+  // Replaced as a whole by refreshHostAddresses(), never modified
+  private volatile String[] hostAddrs;
 
 	private final int port;
 
@@ -25,7 +25,7 @@ public class CosignServer {
 	 * @uml.property name="config"
 	 * @uml.associationEnd multiplicity="(1 1)"
 	 */
-	private GenericObjectPool.Config config = new GenericObjectPool.Config();
+	private GenericKeyedObjectPool.Config config = new GenericKeyedObjectPool.Config();
 
   private Log log = LogFactory.getLog( CosignServer.class );
 
@@ -33,33 +33,65 @@ public class CosignServer {
 	 * Constructor for CosignServer.
 	 */
 	public CosignServer() throws UnknownHostException {
-    host = (String)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.COSIGN_SERVER_HOST);
-    port = ((Integer)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.COSIGN_SERVER_PORT)).intValue();
+    CosignConfigSnapshot snapshot = CosignConfig.INSTANCE.getSnapshot();
+    host = snapshot.getServerHost();
+    port = snapshot.getServerPort();
     hostAddrs = initHostAddresses();
     config = initObjectPoolConfig();
-    startMillis = new Date().getTime();
 }
 
   /**
-   * This method checks for a time to update host ipaddess list
-   * and calls initHostAddresses () when times up.
-   * /
-
+   * This method returns the Cosign server IP addrs found by the most
+   * recent DNS lookup.  It never does a lookup itself; the addresses are
+   * refreshed in the background by the CosignHostResolver.
+   * @return An array of <code>String</code> IP addresses.
+   */
+  public String[] getHostAddresses() {
+    return hostAddrs;
+  }
 
   /**
-   * This method get all the available Cosign server IP addrs through
-   * a DNS lookup.
-   * @return An array of <code>String</code> IP addresses.
+   * This method returns true if the given address was found by the most
+   * recent DNS lookup.
    */
-  public String[] getHostAddresses() throws UnknownHostException{
+  public boolean hasHostAddress(String hostAddr) {
+    String[] hostAddrs = this.hostAddrs;
+    for (int i = 0; i < hostAddrs.length; i++) {
+      if (hostAddrs[i].equals(hostAddr)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-      long delay = new Long(((String)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.COSIGN_SERVER_HOST_IP_CHECK))).longValue();
-      long minutes = startMillis / 60000;
-      if(minutes > delay){
-         startMillis = new Date().getTime();
-         hostAddrs = initHostAddresses();
+  /**
+   * This method looks the Cosign server IP addrs up again.  The new
+   * addresses keep the order of the ones they replace, so that requests
+   * keep going to the same servers where possible.
+   * @return The new array of <code>String</code> IP addresses.
+   * @throws UnknownHostException  If the lookup failed, in which case the
+   *            addresses are left as they were.
+   */
+  public synchronized String[] refreshHostAddresses() throws UnknownHostException {
+    String[] found = initHostAddresses();
+    String[] oldAddrs = hostAddrs;
+    String[] newAddrs = new String[found.length];
+    int count = 0;
+    for (int i = 0; i < oldAddrs.length; i++) {
+      for (int j = 0; j < found.length; j++) {
+        if (oldAddrs[i].equals(found[j])) {
+          newAddrs[count++] = found[j];
+          break;
+        }
       }
-    return hostAddrs;
+    }
+    for (int j = 0; j < found.length; j++) {
+      if (!hasHostAddress(found[j])) {
+        newAddrs[count++] = found[j];
+      }
+    }
+    hostAddrs = newAddrs;
+    return newAddrs;
   }
 
   /**
@@ -88,7 +120,7 @@ public class CosignServer {
 	 *
 	 * @uml.property name="config"
 	 */
-	public GenericObjectPool.Config getConfig() {
+	public GenericKeyedObjectPool.Config getConfig() {
 		return config;
 	}
 
@@ -125,13 +157,15 @@ public class CosignServer {
   }
 
   /**
-   * This method configures the connection pool of this Cosign server.
+   * This method configures the connection pool of this Cosign server.  The
+   * pool is keyed by host address, so the pool size applies to each address.
    * @param configString  Should be <code>null</code> for release 1.0
-   * @return  GenericObjectPool.Config
+   * @return  GenericKeyedObjectPool.Config
    */
-  private GenericObjectPool.Config initObjectPoolConfig() {
-    GenericObjectPool.Config config = new GenericObjectPool.Config();
-    config.maxActive = ((Integer)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.CONNECTION_POOL_SIZE)).intValue();
+  private GenericKeyedObjectPool.Config initObjectPoolConfig() {
+    GenericKeyedObjectPool.Config config = new GenericKeyedObjectPool.Config();
+    config.maxActive = CosignConfig.INSTANCE.getSnapshot().getConnectionPoolSize();
+    config.maxTotal = -1;
     config.maxIdle = -1;
     config.maxWait = -1l;
     config.testOnBorrow = true;
@@ -140,7 +174,7 @@ public class CosignServer {
     config.minEvictableIdleTimeMillis = 1800000l; // 30 minutes
     config.numTestsPerEvictionRun = 3;
     config.timeBetweenEvictionRunsMillis = 600000l; // 10 minutes
-    config.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_GROW;
+    config.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW;
     return config;
   }
 
@@ -40,8 +40,6 @@ import edu.umich.auth.cosign.pool.CosignConnectionList;
  */
 public class CosignServletCallbackHandler implements ServletCallbackHandler {
 
-    private static final String COOKIE_NAME_PREFIX = "cosign-";
-
     private HttpServletRequest request;
 
     private HttpServletResponse response;
@@ -107,10 +105,7 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
          **/
 
 
-        if ((((String) CosignConfig.INSTANCE.
-               getPropertyValue(
-                       CosignConfig.
-                       COSIGN_SERVER_VERSION)).length() == 0)) {
+        if (CosignConfig.INSTANCE.getSnapshot().getServerVersion().length() == 0) {
             // Grab a connection list from the pool
             CosignConnectionList cosignConnectionList;
             try {
@@ -155,6 +150,7 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
 
         String cookieName="";
         ServiceConfig serviceConfig = null;
+        final CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
         if (!(ex instanceof FailedLoginException)) {
             // we didn't handle the exception and anon access isn't enabled,
             // we want to display a 503.
@@ -170,27 +166,26 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
         // remove it.
         final CosignPrincipal oldCosignPrincipal = getCosignPrincipal();
         if (oldCosignPrincipal != null) {
-            if (!subject.getPrincipals().remove(oldCosignPrincipal)) {
+            boolean removed;
+            synchronized (subject.getPrincipals()) {
+                removed = subject.getPrincipals().remove(oldCosignPrincipal);
+            }
+            if (!removed) {
                 throw new ServletException(
                         "Failed to remove cosign principal from subject.");
             }
 
             // optionally, clear the HTTP session to prevent data xfer
             // between different user sessions
-            final boolean clearSession = ((Boolean) CosignConfig.INSTANCE.
-                                          getPropertyValue(
-                                                  CosignConfig.
-                                                  CLEAR_SESSION_ON_LOGIN)).
-                                         booleanValue();
-            if (clearSession) {
+            if (config.isClearSessionOnLogin()) {
                 log.debug("Invalidating HTTP servlet session.");
                 request.getSession().invalidate();
             }
         }
 
         // add additional filtering here. //
-        serviceConfig = CosignConfig.INSTANCE.hasServiceOveride(this.
-                currentPath, this.resource, this.queryString);
+        serviceConfig = config.getService(this.currentPath, this.resource,
+                                          this.queryString);
         if (serviceConfig != null && serviceConfig.isPublicAccess()) {
             log.debug("Anonymous user permitted access to site.");
             return true;
@@ -214,8 +209,7 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
         cookie.setPath("/");
         cookie.setMaxAge(0);
         // If Cosign is in HTTPS-only mode, we need to mark the cookie as secure
-        boolean isHttpsOnly = ((Boolean) CosignConfig.INSTANCE.getPropertyValue(
-                CosignConfig.HTTPS_ONLY)).booleanValue();
+        boolean isHttpsOnly = config.isHttpsOnly();
         if (isHttpsOnly) {
             cookie.setSecure(true);
         }
@@ -224,8 +218,7 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
 
         // If a site entry URL was provided, we will use that for the redirect,
         // not the current URL.
-        String siteEntryUrl = (String) CosignConfig.INSTANCE.getPropertyValue(
-                CosignConfig.LOGIN_SITE_ENTRY_URL);
+        String siteEntryUrl = config.getLoginSiteEntryUrl();
         if (siteEntryUrl == null) {
 
             // Construct the query string to send to weblogin server.
@@ -241,8 +234,7 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
             if (isHttpsOnly) {
                 scheme = "https";
                 if (!request.isSecure()) {
-                    port = ((Integer) CosignConfig.INSTANCE.getPropertyValue(
-                            CosignConfig.HTTPS_PORT)).intValue();
+                    port = config.getHttpsPort();
                 }
             }
 
@@ -266,18 +258,14 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
         // If the HTTP method was POST and we have a valid PostErrorRedirectUrl, we will redirect
         // to that URL.  Otherwise, we will redirect to the normal login url.
         String loginUrl;
-        String postRedirectErrorUrl = (String) CosignConfig.INSTANCE.
-                                      getPropertyValue(CosignConfig.
-                LOGIN_POST_ERROR_URL);
         if (request.getMethod().toLowerCase().equals("post")) {
-            loginUrl = postRedirectErrorUrl;
+            loginUrl = config.getLoginPostErrorUrl();
         } else {
-            loginUrl = (String) CosignConfig.INSTANCE.getPropertyValue(
-                    CosignConfig.LOGIN_REDIRECT_URL);
+            loginUrl = config.getLoginRedirectUrl();
         }
         String serviceFactors = new String();
         if (serviceConfig != null && serviceConfig.hasFactors()) {
-            if (!CosignConfig.INSTANCE.isServerVersion2()) {
+            if (!config.isServerVersion2()) {
                 throw new ServletException(
                         "Service is configured with factors but Cosign server does not support factors");
             }
@@ -424,18 +412,20 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
      */
     private CosignPrincipal getCosignPrincipal() {
         // Check if a principal already exists.
-        Iterator iterator = subject.getPrincipals().iterator();
-        Object object;
-        CosignPrincipal principal = null;
-
-        while (iterator.hasNext()) {
-            object = iterator.next();
-            if (object instanceof CosignPrincipal) {
-                principal = (CosignPrincipal) object;
-                break;
+        synchronized (subject.getPrincipals()) {
+            Iterator iterator = subject.getPrincipals().iterator();
+            Object object;
+            CosignPrincipal principal = null;
+
+            while (iterator.hasNext()) {
+                object = iterator.next();
+                if (object instanceof CosignPrincipal) {
+                    principal = (CosignPrincipal) object;
+                    break;
+                }
             }
+            return principal;
         }
-        return principal;
     }
 
     /**
@@ -443,18 +433,12 @@ public class CosignServletCallbackHandler implements ServletCallbackHandler {
      */
 
     private String getCookieName(ServiceConfig serviceConfig) {
-         String cookieName;
         if(serviceConfig != null)
-            cookieName = serviceConfig.getName();
-        else
-            cookieName = (String) CosignConfig.INSTANCE
+            return serviceConfig.getCookieName();
+        String serviceName = (String) CosignConfig.INSTANCE
                              .getPropertyValueinContext(CosignConfig.
                 SERVICE_NAME, this.currentPath, this.resource, this.queryString);
-        if ((cookieName.startsWith(COOKIE_NAME_PREFIX)) &&
-            (COOKIE_NAME_PREFIX.length() < cookieName.length())) {
-            return cookieName;
-        }
-        return COOKIE_NAME_PREFIX + cookieName;
+        return ServiceConfig.toCookieName(serviceName);
     }
 
 
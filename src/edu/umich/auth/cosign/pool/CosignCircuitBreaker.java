@@ -0,0 +1,157 @@
+package edu.umich.auth.cosign.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.CosignConfig;
+
+/**
+ * This class stops requests from waiting on cosignd servers that are
+ * failing or too slow.  The outcome of the most recent CHECKs is kept in a
+ * sliding window; once the share of failed or slow CHECKs reaches
+ * CosignCircuitBreakerFailurePercent the circuit opens and every request
+ * fails straight away for CosignCircuitBreakerOpenSecs.  After that a
+ * single trial CHECK is let through: if it succeeds the circuit closes,
+ * otherwise it opens again.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignConnectionPool#checkCookie(String, String)
+ */
+public class CosignCircuitBreaker {
+
+  // Circuit states
+  private static final int CLOSED = 0;
+  private static final int OPEN = 1;
+  private static final int HALF_OPEN = 2;
+
+  // Number of recent CHECKs the failure rate is computed over
+  private static final int WINDOW_SIZE = 20;
+
+  // Outcome of the recent CHECKs, true for a failure (guarded by this)
+  private final boolean[] window = new boolean[WINDOW_SIZE];
+  private int windowNext = 0;
+  private int windowCount = 0;
+  private int windowFailures = 0;
+
+  // Current state and when it was entered (guarded by this)
+  private int state = CLOSED;
+  private long openedAt = 0;
+
+  // Set while the trial CHECK of a half open circuit is running (guarded by this)
+  private boolean trialRunning = false;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignCircuitBreaker.class );
+
+  /**
+   * This method returns true if a CHECK may be sent to the cosignd server.
+   * When the circuit has been open long enough, the first caller is let
+   * through as the trial and must report its outcome with
+   * <code>recordResult</code>.
+   */
+  public synchronized boolean allowRequest() {
+    if ( !isEnabled() || ( state == CLOSED ) ) {
+      return true;
+    }
+    if ( ( state == OPEN ) && ( System.currentTimeMillis() - openedAt >= getOpenMillis() ) ) {
+      state = HALF_OPEN;
+    }
+    if ( ( state == HALF_OPEN ) && !trialRunning ) {
+      trialRunning = true;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * This method returns true if requests should fail without contacting
+   * the cosignd servers.  Unlike <code>allowRequest</code> it never starts
+   * a trial.
+   */
+  public synchronized boolean isOpen() {
+    return isEnabled() && ( state == OPEN ) && ( System.currentTimeMillis() - openedAt < getOpenMillis() );
+  }
+
+  /**
+   * This method records the outcome of a CHECK.
+   * @param answered        True if the cosignd server gave a definite answer
+   * @param elapsedMillis   How long the CHECK took
+   */
+  public synchronized void recordResult( boolean answered, long elapsedMillis ) {
+    if ( !isEnabled() ) {
+      return;
+    }
+    int slowCallMillis = CosignConfig.INSTANCE.getSnapshot().getCircuitBreakerSlowCallMillis();
+    boolean failed = !answered || ( elapsedMillis > slowCallMillis );
+
+    if ( state == HALF_OPEN ) {
+      trialRunning = false;
+      if ( failed ) {
+        open();
+      } else {
+        if ( log.isInfoEnabled() ) {
+          log.info( "cosignd answered the trial CHECK, closing circuit" );
+        }
+        state = CLOSED;
+        windowNext = windowCount = windowFailures = 0;
+      }
+      return;
+    }
+    if ( state == OPEN ) {
+      return;
+    }
+
+    if ( windowCount == WINDOW_SIZE ) {
+      if ( window[windowNext] ) {
+        windowFailures--;
+      }
+    } else {
+      windowCount++;
+    }
+    window[windowNext] = failed;
+    if ( failed ) {
+      windowFailures++;
+    }
+    windowNext = ( windowNext + 1 ) % WINDOW_SIZE;
+
+    int failurePercent = CosignConfig.INSTANCE.getSnapshot().getCircuitBreakerFailurePercent();
+    if ( ( windowCount == WINDOW_SIZE ) && ( windowFailures * 100 >= failurePercent * WINDOW_SIZE ) ) {
+      open();
+    }
+  }
+
+  private void open() {
+    if ( log.isWarnEnabled() ) {
+      log.warn( "too many cosignd CHECKs failed or were slow, opening circuit" );
+    }
+    state = OPEN;
+    openedAt = System.currentTimeMillis();
+  }
+
+  private static boolean isEnabled() {
+    return CosignConfig.INSTANCE.getSnapshot().isCircuitBreaker();
+  }
+
+  private static long getOpenMillis() {
+    return CosignConfig.INSTANCE.getSnapshot().getCircuitBreakerOpenMillis();
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,303 @@
+package edu.umich.auth.cosign.pool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class writes cosignd commands and reads cosignd replies directly as
+ * bytes.  Each <code>CosignConnection</code> owns one codec, and the
+ * command buffer, the input buffer and the <code>Reply</code> it parses
+ * into are reused for every command sent on that connection, so no
+ * readers, writers or intermediate strings are created per command.
+ */
+public class CosignCodec {
+
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+
+  // Longest reply line accepted, so that a server that never sends a line
+  // terminator cannot make the reply grow without bound
+  public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+  // The stream replies are read from
+  private final InputStream in;
+
+  // The stream commands are written to
+  private final OutputStream out;
+
+  // The command currently being written
+  private byte[] command = new byte[INITIAL_BUFFER_SIZE];
+  private int commandLength = 0;
+
+  // Bytes read from the stream that have not been consumed yet
+  private final byte[] input = new byte[INITIAL_BUFFER_SIZE];
+  private int inputPos = 0;
+  private int inputLimit = 0;
+
+  // The reply returned by readReply, overwritten by the next call
+  private final Reply reply = new Reply();
+
+  /**
+   * Constructor for CosignCodec.
+   * @param in    The stream replies are read from
+   * @param out   The stream commands are written to
+   */
+  public CosignCodec( InputStream in, OutputStream out ) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * This method writes a command of the form
+   * <code>VERB service=cookie argument</code> and flushes it.
+   * @param verb          The command, e.g. CHECK
+   * @param serviceName   The service name, or null if the command has none
+   * @param cookie        The service cookie; ignored if serviceName is null
+   * @param argument      A trailing argument, or null if the command has none
+   */
+  public void writeCommand( String verb, String serviceName, String cookie, String argument ) throws IOException {
+    commandLength = 0;
+    append( verb );
+    if ( serviceName != null ) {
+      append( ' ' );
+      append( serviceName );
+      append( '=' );
+      append( cookie );
+    }
+    if ( argument != null ) {
+      append( ' ' );
+      append( argument );
+    }
+    append( '\r' );
+    append( '\n' );
+    out.write( command, 0, commandLength );
+    out.flush();
+  }
+
+  /**
+   * This method reads the next reply line.  The returned object is reused
+   * by the next call to this method.
+   * @return The reply, or null if the stream ended before a line was read
+   * @throws IOException  If the line is longer than MAX_LINE_LENGTH
+   */
+  public Reply readReply() throws IOException {
+    reply.clear();
+    while ( true ) {
+      if ( inputPos == inputLimit ) {
+        int count = in.read( input, 0, input.length );
+        if ( count < 0 ) {
+          if ( reply.length == 0 ) {
+            return null;
+          }
+          break;
+        }
+        inputPos = 0;
+        inputLimit = count;
+        continue;
+      }
+      byte b = input[inputPos++];
+      if ( b == '\n' ) {
+        break;
+      }
+      if ( b != '\r' ) {
+        reply.append( b );
+      }
+    }
+    reply.parse();
+    return reply;
+  }
+
+  /**
+   * This method copies exactly <code>count</code> bytes that follow the
+   * last reply line to the given destination.  The bytes pass through the
+   * codec's input buffer only, so the amount of memory used does not
+   * depend on <code>count</code>.
+   * @throws EOFException   If the stream ends before all bytes were read
+   */
+  public void copyBytes( OutputStream dest, long count ) throws IOException {
+    while ( count > 0 ) {
+      if ( inputPos == inputLimit ) {
+        int read = in.read( input, 0, input.length );
+        if ( read < 0 ) {
+          throw new EOFException( "Stream ended with " + count + " bytes left to read" );
+        }
+        inputPos = 0;
+        inputLimit = read;
+        continue;
+      }
+      int chunk = (int)Math.min( count, inputLimit - inputPos );
+      dest.write( input, inputPos, chunk );
+      inputPos += chunk;
+      count -= chunk;
+    }
+  }
+
+  private void append( String value ) {
+    int length = value.length();
+    for ( int idx = 0; idx < length; idx++ ) {
+      append( value.charAt( idx ) );
+    }
+  }
+
+  private void append( char c ) {
+    if ( commandLength == command.length ) {
+      byte[] larger = new byte[command.length * 2];
+      System.arraycopy( command, 0, larger, 0, commandLength );
+      command = larger;
+    }
+    // The protocol is plain ASCII
+    command[commandLength++] = ( c < 0x80 ) ? (byte)c : (byte)'?';
+  }
+
+  /********************************************************************************
+   * This class holds one reply line and the positions of its space
+   * separated fields.  Field 0 is the reply code, so for a CHECK reply
+   * fields 1 to 3 are the IP address, name and realm and any further
+   * fields are factors.
+   ********************************************************************************/
+  public static class Reply {
+
+    private byte[] line = new byte[128];
+    private int length = 0;
+    private int code = -1;
+    private int fieldCount = 0;
+    private int[] fieldStart = new int[8];
+    private int[] fieldEnd = new int[8];
+
+    /**
+     * This method returns the three digit reply code, or -1 if the line
+     * does not start with one.
+     */
+    public int getCode() {
+      return code;
+    }
+
+    /**
+     * This method returns the number of fields in the reply.
+     */
+    public int getFieldCount() {
+      return fieldCount;
+    }
+
+    /**
+     * This method returns a field of the reply as a string.
+     */
+    public String getField( int idx ) {
+      if ( idx >= fieldCount ) {
+        throw new IndexOutOfBoundsException( "Reply has " + fieldCount + " fields" );
+      }
+      return newString( fieldStart[idx], fieldEnd[idx] );
+    }
+
+    /**
+     * This method returns the whole reply line as a string.
+     */
+    public String toString() {
+      return newString( 0, length );
+    }
+
+    /**
+     * This method returns a copy of the reply that is not overwritten when
+     * the codec reads the next one.
+     */
+    public Reply copy() {
+      Reply copy = new Reply();
+      copy.line = new byte[length];
+      System.arraycopy( line, 0, copy.line, 0, length );
+      copy.length = length;
+      copy.code = code;
+      copy.fieldCount = fieldCount;
+      copy.fieldStart = new int[fieldCount];
+      copy.fieldEnd = new int[fieldCount];
+      System.arraycopy( fieldStart, 0, copy.fieldStart, 0, fieldCount );
+      System.arraycopy( fieldEnd, 0, copy.fieldEnd, 0, fieldCount );
+      return copy;
+    }
+
+    private String newString( int start, int end ) {
+      char[] chars = new char[end - start];
+      for ( int idx = start; idx < end; idx++ ) {
+        chars[idx - start] = (char)( line[idx] & 0xff );
+      }
+      return new String( chars );
+    }
+
+    void clear() {
+      length = 0;
+      code = -1;
+      fieldCount = 0;
+    }
+
+    void append( byte b ) throws IOException {
+      if ( length == MAX_LINE_LENGTH ) {
+        throw new IOException( "Reply line longer than " + MAX_LINE_LENGTH + " bytes" );
+      }
+      if ( length == line.length ) {
+        byte[] larger = new byte[Math.min( Math.max( line.length * 2, 16 ), MAX_LINE_LENGTH )];
+        System.arraycopy( line, 0, larger, 0, length );
+        line = larger;
+      }
+      line[length++] = b;
+    }
+
+    void parse() {
+      fieldCount = 0;
+      int pos = 0;
+      while ( pos < length ) {
+        while ( pos < length && line[pos] == ' ' ) {
+          pos++;
+        }
+        if ( pos == length ) {
+          break;
+        }
+        if ( fieldCount == fieldStart.length ) {
+          int[] largerStart = new int[Math.max( fieldStart.length * 2, 8 )];
+          int[] largerEnd = new int[Math.max( fieldEnd.length * 2, 8 )];
+          System.arraycopy( fieldStart, 0, largerStart, 0, fieldCount );
+          System.arraycopy( fieldEnd, 0, largerEnd, 0, fieldCount );
+          fieldStart = largerStart;
+          fieldEnd = largerEnd;
+        }
+        fieldStart[fieldCount] = pos;
+        while ( pos < length && line[pos] != ' ' ) {
+          pos++;
+        }
+        fieldEnd[fieldCount++] = pos;
+      }
+
+      code = -1;
+      if ( length >= 3 ) {
+        int value = 0;
+        for ( int idx = 0; idx < 3; idx++ ) {
+          if ( line[idx] < '0' || line[idx] > '9' ) {
+            return;
+          }
+          value = value * 10 + ( line[idx] - '0' );
+        }
+        code = value;
+      }
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -13,6 +13,7 @@ import com.sun.security.auth.module.*;
 import edu.umich.auth.cosign.*;
 import org.apache.commons.logging.*;
 //import sun.security.krb5.*;
+import edu.umich.auth.cosign.util.KerberosCCache;
 import edu.umich.auth.cosign.util.ProxyCookie;
 
 
@@ -40,11 +41,22 @@ public class CosignConnection {
     private static final int COSIGN_CODE_START = COSIGN_USER_AUTHENTICATED;
     private static final int COSIGN_CODE_STOP = COSIGN_SERVER_RETRY;
 
+    // How long to wait for a reply from the cosign server
+    static final int RESPONSE_TIMEOUT_MILLIS = 10000;
+
+    // Largest ticket cache accepted in reply to RETR tgt
+    static final int MAX_TICKET_SIZE = 64 * 1024;
+
     /**
      * The unique pool Id and ip addr
      */
     private final String cosignConId;
 
+    /**
+     * The id of the connection list this connection was opened for
+     */
+    private final String cosignConListId;
+
 
     /**
      * The host addr of the cosign server
@@ -74,15 +86,17 @@ public class CosignConnection {
     private SSLSocket ss;
 
     /**
-     * Used to receive response from the cosign server in SSL mode
+     * Used to send queries to and read responses from the cosign server
+     * in SSL mode
      */
-    private BufferedReader sin;
+    private CosignCodec codec;
+
 
     /**
-     * Used to send query to the cosign server in SSL mode
+     * The non-blocking transport used instead of the sockets above when
+     * CosignNioTransport is enabled
      */
-    private PrintWriter sout;
-
+    private CosignNioConnection nio;
 
     /**
      * Used to keep protocol version
@@ -102,6 +116,7 @@ public class CosignConnection {
     public CosignConnection(String cosignConListId, String hostAddr, int port) throws
             IOException {
         this.cosignConId = cosignConListId + ":" + hostAddr + ":" + port;
+        this.cosignConListId = cosignConListId;
         this.hostAddr = hostAddr;
         this.port = port;
 
@@ -139,20 +154,49 @@ public class CosignConnection {
      *    COSIGN_CODE_DEFAULT if cosignResponse is null
      */
     public static int convertResponseToCode(String cosignResponse) {
-        if (cosignResponse == null) {
+        if ((cosignResponse == null) || (cosignResponse.length() == 0)) {
             return COSIGN_CODE_UNKNOWN;
         }
-        try {
-            int cosignCode = Integer.parseInt(cosignResponse.substring(0, 1));
-            if ((cosignCode >= COSIGN_CODE_START) &&
-                (cosignCode <= COSIGN_CODE_STOP)) {
-                return cosignCode;
-            }
-        } catch (Exception e) {
+        int cosignCode = cosignResponse.charAt(0) - '0';
+        if ((cosignCode >= COSIGN_CODE_START) &&
+            (cosignCode <= COSIGN_CODE_STOP)) {
+            return cosignCode;
+        }
+        return COSIGN_CODE_UNKNOWN;
+    }
+
+    /**
+     * This method converts a parsed Cosign reply into an int code.
+     * @param reply CosignCodec.Reply The reply received from checkCookie
+     * @return int The code for the given reply.  Returns
+     *    COSIGN_CODE_UNKNOWN if reply is null
+     */
+    public static int convertResponseToCode(CosignCodec.Reply reply) {
+        if ((reply == null) || (reply.getCode() < 0)) {
+            return COSIGN_CODE_UNKNOWN;
+        }
+        int cosignCode = reply.getCode() / 100;
+        if ((cosignCode >= COSIGN_CODE_START) &&
+            (cosignCode <= COSIGN_CODE_STOP)) {
+            return cosignCode;
         }
         return COSIGN_CODE_UNKNOWN;
     }
 
+    /**
+     * This method converts a response that is either a reply line or a
+     * parsed reply into an int code.
+     * @param cosignResponse Object A String or CosignCodec.Reply
+     * @return int The code for the given response.  Returns
+     *    COSIGN_CODE_UNKNOWN if cosignResponse is null
+     */
+    public static int getResponseCode(Object cosignResponse) {
+        if (cosignResponse instanceof CosignCodec.Reply) {
+            return convertResponseToCode((CosignCodec.Reply) cosignResponse);
+        }
+        return convertResponseToCode((String) cosignResponse);
+    }
+
     /**
      * This method checks the cosign service cookie against the
      * cosign server.  The cosign server will return a message
@@ -162,27 +206,37 @@ public class CosignConnection {
      * @return        The response from the cosign server.  Returns null
      *             if there is an IOException.
      */
-    public String checkCookie(String serviceName, String cookie) {
+    public CosignCodec.Reply checkCookie(String serviceName, String cookie) {
         try {
             if (log.isDebugEnabled()) {
                 log.debug("[" + cosignConId + "] CHECK " + serviceName + "=" +
                           cookie);
             }
 
-            // Send the cookie to the cosign server
-            this.sout.println("CHECK " + serviceName + "=" + cookie);
-
-            //this.sout.println("CHECK " +  cookie);
-            this.sout.flush();
-
-            // Gets the result from the cosign server
-            String cosignResponse = sin.readLine();
+            CosignCodec.Reply reply;
+            if (nio != null) {
+                // Let the NIO threads do the I/O and just wait for the reply
+                CosignNioConnection.LineReply lineReply =
+                        new CosignNioConnection.LineReply();
+                nio.submit("CHECK " + serviceName + "=" + cookie, lineReply).
+                        await(RESPONSE_TIMEOUT_MILLIS);
+                reply = lineReply.getReply();
+            } else {
+                // Send the cookie to the cosign server
+                codec.writeCommand("CHECK", serviceName, cookie, null);
+
+                // Gets the result from the cosign server.  The codec reuses
+                // its reply, so the caller gets a copy.
+                reply = codec.readReply();
+                if (reply != null) {
+                    reply = reply.copy();
+                }
+            }
 
             if (log.isDebugEnabled()) {
-                log.debug("[" + cosignConId + "] result CHECK: " +
-                          cosignResponse);
+                log.debug("[" + cosignConId + "] result CHECK: " + reply);
             }
-            return cosignResponse;
+            return reply;
 
         } catch (Exception e) {
             if (log.isDebugEnabled()) {
@@ -208,124 +262,13 @@ public class CosignConnection {
      */
     public String retrieveTGT(String serviceName, String cookie,
                               Subject subject, CosignPrincipal sPrinciple) {
-        KerberosPrincipal kerbPrinciple = null;
         try {
-
-            // Check if a tgt/kerb5priciple already exists.
-            Iterator iterator = subject.getPrincipals().iterator();
-            while (iterator.hasNext()) {
-                Object object = iterator.next();
-                if (object instanceof KerberosPrincipal) {
-                    kerbPrinciple = (KerberosPrincipal) object;
-                    break;
-                }
-            }
-            if( kerbPrinciple != null ){
-                return "240 Kerb creds set";
-            }
-
-            BufferedInputStream bsin = new BufferedInputStream(this.ss.
-                    getInputStream());
-
-            if (log.isDebugEnabled()) {
-                log.debug("[" + cosignConId + "] RETR " + serviceName + "=" +
-                          cookie + " tgt");
-            }
-
-            // Send the cookie to the cosign server
-            String commmand = "RETR " + serviceName + "=" + cookie + " tgt";
-            this.sout.println(commmand);
-
-            this.sout.flush();
-            byte[] buff = new byte[1024];
-            ArrayList arr = new ArrayList();
-            int numRead = bsin.read(buff);
-            int line = 0;
-            String st = new String(buff, 0, numRead - 2);
-            if (st.equalsIgnoreCase("240 retrieving file")) {
-                while ((numRead != -1) && (numRead != 0) && (numRead != 3)) {
-                    byte[] a = new byte[numRead];
-                    System.arraycopy(buff, 0, a, 0, numRead);
-                    arr.add(line++, a);
-                    buff = new byte[1024];
-                    numRead = bsin.read(buff);
-                }
-
-            } else {
-                //todo:
-                //derive error code
+            String st = useExistingTGT(subject, sPrinciple);
+            if (st != null) {
                 return st;
             }
-            log.info("Retrieved kerberos bytes - next write out tgt");
-            File file = File.createTempFile("temp", ".tmp",
-                                            new File((String) CosignConfig.
-                    INSTANCE.getPropertyValue(CosignConfig.
-                                              KERBEROS_TICKET_CACHE_DIRECTORY)));
-            log.info("Opening file: " + file.getAbsolutePath() + " - write out tgt");
-            FileOutputStream fw = new FileOutputStream(file);
-            fw.write((byte[]) arr.get(2));
-            fw.flush();
-            fw.close();
-            log.info("closing file : " + file.getAbsolutePath() + " - write out tgt");
-            //tells where kdc, and other kerb options can be found
-            System.setProperty("java.security.krb5.conf",
-                               (String) CosignConfig.
-                               INSTANCE.getPropertyValue(CosignConfig.
-                    KERBEROS_KERB5_CONF));
-
-            String pName = sPrinciple.getName() + "@" + sPrinciple.getRealm();
-
-            Map options = new HashMap();
-            options.put("principal", pName);
-            options.put("useTicketCache", "true");
-            options.put("client", "true");
-            options.put("debug",
-                        ((Boolean) CosignConfig.INSTANCE.getPropertyValue(CosignConfig.KERBEROS_KERB5_DEBUG)).booleanValue() ?
-                        "true" : "false");
-            options.put("doNotPrompt", "true");
-            options.put("ticketCache", file.getAbsolutePath());
-            //System.setProperty("java.security.krb5.realm", "UMICH.EDU");
-            //System.setProperty("java.security.krb5.kdc", "fear.ifs.umich.edu");
-            System.setProperty("useSubjectCredsOnly", "true");
-            System.setProperty("sun.security.krb5.debug",
-                               ((Boolean)
-                               CosignConfig.INSTANCE.getPropertyValue(CosignConfig.
-                    KERBEROS_KERB5_DEBUG)).booleanValue() ? "true" : "false");
-             log.info("Instantiating login module");
-
-            Krb5LoginModule lc = new Krb5LoginModule();
-
-            lc.initialize(subject, new TextCallbackHandler(),
-                          (Map)new HashMap(), options);
-            boolean ok = lc.login();
-
-
-            if (ok) {
-                log.info("kerberos login ok");
-                lc.commit();
-                iterator = subject.getPrincipals().iterator();
-           while (iterator.hasNext()) {
-               Object object = iterator.next();
-               if (object instanceof KerberosPrincipal) {
-                   kerbPrinciple = (KerberosPrincipal) object;
-                   break;
-               }
-           }
-           if( kerbPrinciple != null ){
-               return "240 Kerb creds set";
-           }
-
-            } else {
-                st = "449 Bad Ticket";
-            }
-            boolean success = file.delete();
-            if (!success) {
-                // Deletion failed
-            }
-
-
-
-            return st;
+            return receiveTGT(sendRetr(serviceName, cookie, "tgt"), subject,
+                              sPrinciple);
 
         } catch (Exception e) {
             log.info("Exception in kerberos intance: " + e.getMessage());
@@ -352,72 +295,434 @@ public class CosignConnection {
      */
     public String retrieveProxyCookies(String serviceName, String cookie,
                               Subject subject, CosignPrincipal sPrinciple) {
-        CosignPrincipal cosignPrinciple = null;
         try {
+            return receiveProxyCookies(sendRetr(serviceName, cookie, "cookies"),
+                                       serviceName, subject, sPrinciple);
 
-            // Check if proxy cookies already exists.
-            Iterator iterator = subject.getPrincipals().iterator();
-            while (iterator.hasNext()) {
-                Object object = iterator.next();
-                if (object instanceof CosignPrincipal) {
-                    cosignPrinciple = (CosignPrincipal) object;
-                    break;
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("[" + cosignConId +
+                          "] failed while validating cookie with cosign server",
+                          e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * This method runs a login transaction on this connection.  CHECK (if
+     * the transaction has no principal yet), RETR tgt and RETR cookies are
+     * all written before any reply is read, so the cosign server answers
+     * them back to back.  With in-memory Kerberos credentials, RETR tgt is
+     * only sent once the CHECK reply has named the user, so that a cached
+     * ticket can be used instead.
+     * @param transaction   The commands to run; the replies are stored in it
+     * @return        The CHECK response, or the first RETR response if no
+     *             CHECK was sent.  Returns null if there is an IOException.
+     */
+    public String runTransaction(CosignLoginTransaction transaction) {
+        String serviceName = transaction.getServiceName();
+        String cookie = transaction.getCookie();
+        Subject subject = transaction.getSubject();
+        try {
+            boolean check = (transaction.getPrincipal() == null);
+            String ticketResponse = transaction.isGetTicket() ?
+                                    useExistingTGT(subject, transaction.getPrincipal()) : null;
+            boolean getTicket = transaction.isGetTicket() && (ticketResponse == null);
+            boolean deferTicket = getTicket && check && isInMemoryCredentials();
+            boolean getProxies = transaction.isGetProxies();
+
+            if (log.isDebugEnabled()) {
+                log.debug("[" + cosignConId + "] login transaction " +
+                          serviceName + "=" + cookie + (check ? " CHECK" : "") +
+                          (getTicket ? " RETR tgt" : "") +
+                          (getProxies ? " RETR cookies" : ""));
+            }
+
+            CosignNioConnection.LineReply checkReply =
+                    new CosignNioConnection.LineReply();
+            CosignNioRequest checkRequest = null;
+            CosignNioRequest ticketRequest = null;
+            CosignNioRequest proxyRequest = null;
+            if (check) {
+                checkRequest = sendCommand("CHECK", serviceName, cookie, null,
+                                           checkReply);
+            }
+            if (getTicket && !deferTicket) {
+                ticketRequest = sendRetr(serviceName, cookie, "tgt");
+            }
+            if (getProxies) {
+                proxyRequest = sendRetr(serviceName, cookie, "cookies");
+            }
+
+            // The replies come back in the order the commands were sent.
+            // The codec reuses its reply, so the transaction keeps a copy.
+            CosignCodec.Reply response = null;
+            if (check) {
+                if (checkRequest != null) {
+                    checkRequest.await(RESPONSE_TIMEOUT_MILLIS);
+                    response = checkReply.getReply();
+                } else {
+                    response = readReply().copy();
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("[" + cosignConId + "] result CHECK: " + response);
+                }
+                transaction.setCheckResponse(response);
+                if (convertResponseToCode(response) == COSIGN_USER_AUTHENTICATED) {
+                    transaction.setPrincipal(CosignPrincipal.fromReply(response));
+                }
+            }
+            CosignPrincipal principal = transaction.getPrincipal();
+            if (getTicket && !deferTicket) {
+                ticketResponse = receiveTGT(ticketRequest, subject, principal);
+            }
+            String proxyResponse = null;
+            if (getProxies) {
+                proxyResponse = receiveProxyCookies(proxyRequest, serviceName,
+                                                    subject, principal);
+            }
+            if (deferTicket && (principal != null)) {
+                ticketResponse = useExistingTGT(subject, principal);
+                if (ticketResponse == null) {
+                    ticketResponse = receiveTGT(sendRetr(serviceName, cookie, "tgt"),
+                                                subject, principal);
                 }
             }
-            if( cosignPrinciple != null ){
-                cosignPrinciple.clearProxyCookies();
+            transaction.setTicketResponse(ticketResponse);
+            transaction.setProxyResponse(proxyResponse);
 
-            }else{
-                //throw new Exception("Cosign principle is null, unable to proceed with Proxy cookies.");
-                cosignPrinciple = sPrinciple;
+            if (check) {
+                return response.toString();
             }
+            return (ticketResponse != null) ? ticketResponse : proxyResponse;
 
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("[" + cosignConId +
+                          "] failed while running login transaction with cosign server",
+                          e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * This method writes a command without waiting for its reply.
+     * @return        The pending request on the NIO transport, or null on
+     *             the blocking transport, where the reply is read from the
+     *             codec in order.
+     */
+    private CosignNioRequest sendCommand(String verb, String serviceName,
+                                         String cookie, String argument,
+                                         CosignNioConnection.ReplyReader reader) throws
+            IOException {
+        if (nio != null) {
+            return nio.submit(verb + " " + serviceName + "=" + cookie +
+                              ((argument == null) ? "" : " " + argument), reader);
+        }
+        codec.writeCommand(verb, serviceName, cookie, argument);
+        return null;
+    }
 
-            BufferedInputStream bsin = new BufferedInputStream(this.ss.
-                    getInputStream());
+    /**
+     * This method writes RETR tgt or RETR cookies without waiting for the reply.
+     */
+    private CosignNioRequest sendRetr(String serviceName, String cookie,
+                                      String what) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("[" + cosignConId + "] RETR " + serviceName + "=" +
+                      cookie + " " + what);
+        }
+        CosignNioConnection.ReplyReader reader;
+        if (what.equals("tgt")) {
+            reader = new CosignNioConnection.TicketReply();
+        } else {
+            reader = new CosignNioConnection.MultiLineReply();
+        }
+        return sendCommand("RETR", serviceName, cookie, what, reader);
+    }
 
-            if (log.isDebugEnabled()) {
-                log.debug("[" + cosignConId + "] RETR " + serviceName + "=" + cookie + " cookies");
-            }
-
-            // Send the request to the cosign server
-            String commmand = "RETR " + serviceName + "=" + cookie + " cookies";
-            this.sout.println(commmand);
-
-            this.sout.flush();
-            byte[] buff = new byte[1024];
-            ArrayList arr = new ArrayList();
-            int numRead = bsin.read(buff);
-
-            String st = new String(buff, 0, numRead - 2);
-            if (st.startsWith("241") ){
-                while (st.indexOf("Cookies registered")==-1) {
-                    arr.add(st);
-                    ProxyCookie pc = new ProxyCookie(st,serviceName);
-                    cosignPrinciple.addProxyCookie(pc);
-                    numRead = bsin.read(buff);
-                    st = new String(buff, 0, numRead - 2);
-                }
+    /**
+     * This method returns "240 Kerb creds set" if the subject already has
+     * kerberos credentials, or if a ticket for the principal was cached and
+     * has now been added to the subject.  Returns null if a tgt still needs
+     * to be retrieved.
+     */
+    private String useExistingTGT(Subject subject, CosignPrincipal sPrinciple) {
+        // Check if a tgt/kerb5priciple already exists.
+        if (hasKerberosPrincipal(subject)) {
+            return "240 Kerb creds set";
+        }
+        if ((sPrinciple != null) && isInMemoryCredentials()) {
+            String pName = sPrinciple.getName() + "@" + sPrinciple.getRealm();
+            KerberosTicket tgt = CosignCredentialCache.INSTANCE.getTicket(pName);
+            if (tgt != null) {
+                log.info("Using cached kerberos tgt for " + pName);
+                addTicket(subject, tgt);
+                return "240 Kerb creds set";
+            }
+        }
+        return null;
+    }
 
+    /**
+     * This method reads the reply to RETR tgt and places the ticket in the
+     * subject.  If sPrinciple is null, because the CHECK sent ahead of the
+     * RETR failed, the reply is only consumed.
+     * @param request   The pending request on the NIO transport, or null
+     */
+    private String receiveTGT(CosignNioRequest request, Subject subject,
+                              CosignPrincipal sPrinciple) throws Exception {
+        boolean inMemory = isInMemoryCredentials();
+        String st;
+        byte[] ticket = null;
+        File file = null;
+        if (request != null) {
+            st = (String) request.await(RESPONSE_TIMEOUT_MILLIS);
+            byte[] bytes = ((CosignNioConnection.TicketReply) request.getReader()).
+                           getTicket();
+            if (bytes == null) {
+                return st;
+            }
+            log.info("Retrieved kerberos bytes - next write out tgt");
+            if (inMemory) {
+                ticket = bytes;
             } else {
+                file = createTicketFile();
+                log.info("Opening file: " + file.getAbsolutePath() + " - write out tgt");
+                FileOutputStream fw = new FileOutputStream(file);
+                try {
+                    fw.write(bytes);
+                } finally {
+                    fw.close();
+                }
+            }
+        } else {
+            // 240 status line, then the ticket size, the ticket bytes and "."
+            st = readReply().toString();
+            if (!st.startsWith("240")) {
                 //todo:
                 //derive error code
                 return st;
             }
+            CosignCodec.Reply sizeReply = readReply();
+            long size;
+            try {
+                size = Long.parseLong(sizeReply.getField(
+                        sizeReply.getFieldCount() - 1));
+            } catch (Exception e) {
+                throw new IOException("Invalid ticket size from cosign server: " +
+                                      sizeReply);
+            }
+            if (size <= 0 || size > MAX_TICKET_SIZE) {
+                throw new IOException("Invalid ticket size from cosign server: " +
+                                      size);
+            }
+            if (inMemory) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream((int) size);
+                codec.copyBytes(buf, size);
+                ticket = buf.toByteArray();
+            } else {
+                file = createTicketFile();
+                log.info("Opening file: " + file.getAbsolutePath() + " - write out tgt");
+                FileOutputStream fw = new FileOutputStream(file);
+                boolean copied = false;
+                try {
+                    // Copy the ticket straight from the socket to the file
+                    codec.copyBytes(fw, size);
+                    copied = true;
+                } finally {
+                    fw.close();
+                    if (!copied) {
+                        file.delete();
+                    }
+                }
+            }
+            log.info("Retrieved kerberos bytes");
+            CosignCodec.Reply reply = readReply();
+            while (!reply.toString().trim().equals(".")) {
+                reply = readReply();
+            }
+        }
 
-        } catch (Exception e) {
-            if (log.isDebugEnabled()) {
-                log.debug("[" + cosignConId +
-                          "] failed while validating cookie with cosign server",
-                          e);
+        if (sPrinciple == null) {
+            if (file != null) {
+                file.delete();
+            }
+            return st;
+        }
+
+        //tells where kdc, and other kerb options can be found
+        CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+        System.setProperty("java.security.krb5.conf",
+                           config.getKerberosKrb5Conf());
+
+        String pName = sPrinciple.getName() + "@" + sPrinciple.getRealm();
+
+        if (inMemory) {
+            // Hand the ticket to JAAS directly rather than through a file
+            KerberosTicket tgt = KerberosCCache.readTGT(ticket);
+            CosignCredentialCache.INSTANCE.putTicket(pName, tgt);
+            addTicket(subject, tgt);
+            log.info("kerberos tgt set from memory");
+            return "240 Kerb creds set";
+        }
+
+        log.info("closing file : " + file.getAbsolutePath() + " - write out tgt");
+
+        Map options = new HashMap();
+        options.put("principal", pName);
+        options.put("useTicketCache", "true");
+        options.put("client", "true");
+        options.put("debug",
+                    config.isKerberosKrb5Debug() ? "true" : "false");
+        options.put("doNotPrompt", "true");
+        options.put("ticketCache", file.getAbsolutePath());
+        //System.setProperty("java.security.krb5.realm", "UMICH.EDU");
+        //System.setProperty("java.security.krb5.kdc", "fear.ifs.umich.edu");
+        System.setProperty("useSubjectCredsOnly", "true");
+        System.setProperty("sun.security.krb5.debug",
+                           config.isKerberosKrb5Debug() ? "true" : "false");
+        log.info("Instantiating login module");
+
+        Krb5LoginModule lc = new Krb5LoginModule();
+
+        lc.initialize(subject, new TextCallbackHandler(),
+                      (Map)new HashMap(), options);
+        boolean ok = lc.login();
+
+
+        if (ok) {
+            log.info("kerberos login ok");
+            lc.commit();
+            if (hasKerberosPrincipal(subject)) {
+                return "240 Kerb creds set";
             }
 
+        } else {
+            st = "449 Bad Ticket";
         }
-        return null;
+        boolean success = file.delete();
+        if (!success) {
+            // Deletion failed
+        }
+
+        return st;
+    }
+
+    /**
+     * This method reads the reply to RETR cookies and places the proxy
+     * cookies in the cosign principal of the subject, or in sPrinciple if
+     * the subject does not have one yet.
+     * @param request   The pending request on the NIO transport, or null
+     */
+    private String receiveProxyCookies(CosignNioRequest request,
+                                       String serviceName, Subject subject,
+                                       CosignPrincipal sPrinciple) throws
+            Exception {
+        CosignPrincipal cosignPrinciple = null;
+
+        // Check if proxy cookies already exists.
+        Iterator iterator = subject.getPrincipals().iterator();
+        while (iterator.hasNext()) {
+            Object object = iterator.next();
+            if (object instanceof CosignPrincipal) {
+                cosignPrinciple = (CosignPrincipal) object;
+                break;
+            }
+        }
+        if( cosignPrinciple != null ){
+            cosignPrinciple.clearProxyCookies();
+
+        }else if (sPrinciple != null) {
+            cosignPrinciple = sPrinciple;
+
+        }else{
+            // The CHECK sent ahead of the RETR failed; just consume the reply
+            cosignPrinciple = new CosignPrincipal();
+        }
+
+        if (request != null) {
+            List lines = (List) request.await(RESPONSE_TIMEOUT_MILLIS);
+            String st = (String) lines.get(0);
+            if (!st.startsWith("241")) {
+                return st;
+            }
+            for (int idx = 0; idx < lines.size(); idx++) {
+                st = (String) lines.get(idx);
+                if (st.indexOf("Cookies registered") != -1) {
+                    break;
+                }
+                cosignPrinciple.addProxyCookie(new ProxyCookie(st, serviceName));
+            }
+            return st;
+        }
+
+        String st = readReply().toString();
+        if (st.startsWith("241") ){
+            while (st.indexOf("Cookies registered")==-1) {
+                ProxyCookie pc = new ProxyCookie(st,serviceName);
+                cosignPrinciple.addProxyCookie(pc);
+                st = readReply().toString();
+            }
+            return st;
+
+        } else {
+            //todo:
+            //derive error code
+            return st;
+        }
+    }
+
+    /**
+     * This method returns true if the subject already has a kerberos principal.
+     */
+    private static boolean hasKerberosPrincipal(Subject subject) {
+        Iterator iterator = subject.getPrincipals().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() instanceof KerberosPrincipal) {
+                return true;
+            }
+        }
+        return false;
     }
 
+    private static boolean isInMemoryCredentials() {
+        return CosignConfig.INSTANCE.getSnapshot().isKerberosInMemoryCredentials();
+    }
 
 
+    /**
+     * This method reads the next reply line from the SSL connection.
+     * @throws IOException  If the cosign server closed the connection
+     */
+    private CosignCodec.Reply readReply() throws IOException {
+        CosignCodec.Reply reply = codec.readReply();
+        if (reply == null) {
+            throw new EOFException("[" + cosignConId +
+                                   "]: connection closed by cosign server");
+        }
+        return reply;
+    }
+
+    /**
+     * This method adds the given ticket granting ticket and its client
+     * principal to the subject, the way Krb5LoginModule would.
+     */
+    private static void addTicket(Subject subject, KerberosTicket tgt) {
+        subject.getPrincipals().add(tgt.getClient());
+        subject.getPrivateCredentials().add(tgt);
+    }
+
+    /**
+     * This method creates the temp file a retrieved ticket is written to.
+     */
+    private File createTicketFile() throws IOException {
+        return File.createTempFile("temp", ".tmp",
+                                   new File(CosignConfig.INSTANCE.getSnapshot().
+                                            getKerberosTicketCacheDirectory()));
+    }
 
     /**
      * This methods check whether the secure Cosign connection is
@@ -430,9 +735,16 @@ public class CosignConnection {
                 log.debug("[" + cosignConId + "] NOOP");
             }
 
-            this.sout.println("NOOP");
-            this.sout.flush();
-            String result = sin.readLine();
+            String result;
+            if (nio != null) {
+                result = (String) nio.submit("NOOP",
+                                             new CosignNioConnection.LineReply()).
+                         await(RESPONSE_TIMEOUT_MILLIS);
+            } else {
+                codec.writeCommand("NOOP", null, null, null);
+                CosignCodec.Reply reply = codec.readReply();
+                result = (reply == null) ? null : reply.toString();
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("[" + cosignConId + "] result NOOP: " + result);
@@ -460,11 +772,8 @@ public class CosignConnection {
         }
 
         try {
-            if (null != this.sout) {
-                this.sout.close();
-            }
-            if (null != this.in) {
-                this.sin.close();
+            if (null != this.nio) {
+                this.nio.close();
             }
             if (null != this.out) {
                 this.out.close();
@@ -481,11 +790,11 @@ public class CosignConnection {
                           "]: failed to close CosignConnection!", e);
             }
         }
-        sout = null;
-        sin = null;
+        codec = null;
         out = null;
         in = null;
         ss = null;
+        nio = null;
         this.protVersion = (float) 0.0;
     }
 
@@ -497,6 +806,10 @@ public class CosignConnection {
      * @throws IOException  If any socket/SSL exceptions occurs
      */
     private void init() throws IOException {
+        if (CosignConfig.INSTANCE.getSnapshot().isNioTransport()) {
+            initNio();
+            return;
+        }
         try {
             // Creates non-SSL socket
             Socket s = new Socket(hostAddr, port);
@@ -563,13 +876,16 @@ public class CosignConnection {
             }
 
             // Start the SSL handshake
+            long handshakeStartMillis = System.currentTimeMillis();
             ss.startHandshake();
+            CosignSSLSocketFactory.INSTANCE.recordHandshake(ss.getSession(),
+                    handshakeStartMillis);
             this.ss = ss;
-            // Set the SSL input/output reader/writer
-            sin = new BufferedReader(new InputStreamReader(ss.getInputStream()));
-            sout = new PrintWriter(ss.getOutputStream());
+            // Set the SSL input/output codec
+            codec = new CosignCodec(ss.getInputStream(), ss.getOutputStream());
             if (this.protVersion >= (float) 2.0) {
-                response = sin.readLine();
+                CosignCodec.Reply reply = codec.readReply();
+                response = (reply == null) ? null : reply.toString();
                 if (log.isDebugEnabled()) {
                     log.debug("[" + cosignConId +
                               "]: result 2.0 or greater SSLCONNECT " +
@@ -583,6 +899,39 @@ public class CosignConnection {
         }
     }
 
+    /**
+     * This method opens the connection through the NIO transport instead.
+     * The banner, STARTTLS and SSL handshake are run by the NIO I/O threads;
+     * this thread only waits for them to finish.
+     * @throws IOException  If any socket/SSL exceptions occurs
+     */
+    private void initNio() throws IOException {
+        try {
+            CosignNioConnection nio = new CosignNioConnection(cosignConListId,
+                    hostAddr, port);
+            try {
+                nio.awaitReady(RESPONSE_TIMEOUT_MILLIS);
+            } catch (IOException ioe) {
+                nio.close();
+                throw ioe;
+            }
+            this.nio = nio;
+            this.protVersion = nio.getProtVersion();
+            if (!(this.protVersion < 2.0)) {
+                CosignConfig.INSTANCE.setServerVersion("2");
+            } else {
+                CosignConfig.INSTANCE.setServerVersion("1");
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("[" + cosignConId + "]: initialized NIO connection");
+            }
+        } catch (IOException ioe) {
+            log.debug("[" + cosignConId + "]: failed to init CosignConnection",
+                      ioe);
+            throw new IOException("Failed in CosignConnection init()!");
+        }
+    }
+
 }
 
 /*Copyright (c) 2002-2008 Regents of The University of Michigan.
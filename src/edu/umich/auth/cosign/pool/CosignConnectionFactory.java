@@ -0,0 +1,106 @@
+package edu.umich.auth.cosign.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+
+import edu.umich.auth.cosign.CosignServer;
+
+/**
+ * This class acts as a factory for the creation of CosignConnection objects.
+ * The pool is keyed by the IP address of the cosignd host the connection
+ * is opened to.
+ */
+public class CosignConnectionFactory implements KeyedPoolableObjectFactory {
+
+  // Class-wide counter for giving each CosignConnection a unique id
+  private static int s_uniqueId = 1;
+
+  // The poolId of the CosignConnectionPool
+  private final int poolId;
+
+  // The CosignServer that will be used whe constructing new CosignConnections
+  private final CosignServer cosignServer;
+
+  // Log used for reporting errors / info
+  private Log log = LogFactory.getLog( CosignConnectionFactory.class );
+
+  /**
+   * Constructor for CosignConnectionFactory.
+   */
+  public CosignConnectionFactory( int poolId, CosignServer cosignServer ) {
+    this.poolId = poolId;
+    this.cosignServer = cosignServer;
+  }
+
+  /**
+   * This method opens a new CosignConnection to the given host address.
+   * @see org.apache.commons.pool.KeyedPoolableObjectFactory#makeObject(Object)
+   */
+  public Object makeObject( Object hostAddr ) throws Exception {
+    String cosignConListId;
+    synchronized ( CosignConnectionFactory.class ) {
+      cosignConListId = poolId + ":" + ( s_uniqueId ++ );
+    }
+    log.info( "[" + cosignConListId + "]: making new cosign connection to " + hostAddr );
+    return new CosignConnection( cosignConListId, (String)hostAddr, cosignServer.getPort() );
+  }
+
+  /**
+   * This method closes the given CosignConnection.
+   * @see org.apache.commons.pool.KeyedPoolableObjectFactory#destroyObject(Object, Object)
+   */
+  public void destroyObject( Object hostAddr, Object conn ) throws Exception {
+    CosignConnection cosignConnection = (CosignConnection)conn;
+    if ( log.isInfoEnabled() ) {
+      log.info( "[" + cosignConnection.getCosignConId() + "]: destroying cosign connection" );
+    }
+    cosignConnection.close();
+  }
+
+  /**
+   * This method tests the CosignConnection object to ensure that the
+   * cosign server still answers on it.
+   * @return Returns true if the CosignConnection is valid.
+   * @see org.apache.commons.pool.KeyedPoolableObjectFactory#validateObject(Object, Object)
+   */
+  public boolean validateObject( Object hostAddr, Object conn ) {
+    CosignConnection cosignConnection = (CosignConnection)conn;
+    if ( log.isDebugEnabled() ) {
+      log.debug( "[" + cosignConnection.getCosignConId() + "]: validating cosign connection" );
+    }
+    return cosignConnection.isConnectionValid();
+  }
+
+  /**
+   * @see org.apache.commons.pool.KeyedPoolableObjectFactory#activateObject(Object, Object)
+   */
+  public void activateObject( Object hostAddr, Object conn ) throws Exception {
+  }
+
+  /**
+   * @see org.apache.commons.pool.KeyedPoolableObjectFactory#passivateObject(Object, Object)
+   */
+  public void passivateObject( Object hostAddr, Object conn ) throws Exception {
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
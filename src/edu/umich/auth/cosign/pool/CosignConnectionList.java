@@ -1,25 +1,42 @@
 package edu.umich.auth.cosign.pool;
 
-import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import javax.security.auth.Subject;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.KeyedObjectPool;
 
-import edu.umich.auth.cosign.CosignServer;
-import java.util.Vector;
-import javax.security.auth.Subject;
+import edu.umich.auth.cosign.CosignConfig;
+import edu.umich.auth.cosign.CosignConfigSnapshot;
 import edu.umich.auth.cosign.CosignPrincipal;
+import edu.umich.auth.cosign.CosignServer;
+import edu.umich.auth.cosign.util.LatencyTracker;
 
 /**
- * This class provides a collection of <code>CosignConnection</code>s.
+ * This class provides access to one <code>CosignConnection</code> per cosign
+ * server address for the duration of a single borrow.  Connections are
+ * borrowed from the per-host pool only when a command has to be sent to
+ * that host, so a request normally holds a single connection to the first
+ * healthy server in the order chosen by the <code>CosignHostSelector</code>.
+ * All connections are given back to the pool when the list is returned.
  * @author dillaman
  *  @author patkm
  */
 public class CosignConnectionList {
 
-  // The CosignServer that this CosignConnectionList is associated with
+  // Latencies of recent CHECK commands, used to decide when to hedge
+  private static final LatencyTracker checkLatencies = new LatencyTracker( 1024 );
+
+  // The pool of CosignConnections, keyed by host address
+  private final KeyedObjectPool connectionPool;
+
+  // Tracks which addresses are down so that they are not connected to
+  private final CosignHealthChecker healthChecker;
+
+  // The cosign server the addresses belong to
   private final CosignServer cosignServer;
 
   // The poolId of the CosignConnectionPool
@@ -28,95 +45,200 @@ public class CosignConnectionList {
   // The id of this CosignConnectionList
   private final String cosignConListId;
 
-  // The port used by all CosignConnections
-  private final int port;
+  // Chooses the order the addresses are tried in and tracks their latency
+  private final CosignHostSelector hostSelector;
+
+  // The addresses of the cosign servers
+  private final String[] hostAddrs;
 
-  // Collection of open and valid CosignConnections
-  private LinkedList  cosignConnections  = new LinkedList();
+  // The indexes into hostAddrs in the order they are tried
+  private final int[] hostOrder;
 
-  // Collection of IP addresses
-  private LinkedList  invalidIpAddrs = new LinkedList();
+  // The connection borrowed for each address, if any
+  private final CosignConnection[] cosignConnections;
+
+  // Set for each address that could not be connected to during this borrow
+  private final boolean[] invalidIpAddrs;
 
   // Log used for reporting errors / info
   private Log log = LogFactory.getLog( CosignConnectionList.class );
 
   /**
-   * Constructor CosignConnectionList.  For each of the IP addresses associated
-   * with the given CosignServer, a new CosignConnection will be opened.
+   * Constructor CosignConnectionList.  A connection to the first reachable
+   * address of the given CosignServer is borrowed straight away; the others
+   * are only borrowed if that server cannot answer.
    * @param cosignServer
    */
-  public CosignConnectionList ( int poolId, String cosignConListId, CosignServer cosignServer ) throws Exception {
+  public CosignConnectionList ( int poolId, String cosignConListId, CosignServer cosignServer, KeyedObjectPool connectionPool, CosignHealthChecker healthChecker, CosignHostSelector hostSelector ) throws Exception {
     this.poolId = poolId;
-    this.cosignServer = cosignServer;
-    this.port = cosignServer.getPort();
     this.cosignConListId = cosignConListId;
+    this.connectionPool = connectionPool;
+    this.healthChecker = healthChecker;
+    this.hostSelector = hostSelector;
+    this.cosignServer = cosignServer;
+    this.hostAddrs = cosignServer.getHostAddresses();
+    this.hostOrder = hostSelector.order( hostAddrs );
+    this.cosignConnections = new CosignConnection[hostAddrs.length];
+    this.invalidIpAddrs = new boolean[hostAddrs.length];
 
-    String[] hostAddrs = cosignServer.getHostAddresses();
+    // Ensure that we have at least one valid connection
+    if ( nextReachable( 0 ) >= 0 ) {
+      return;
+    }
+    throw new Exception ( "[" + poolId + "]: failed to connect to any cosignd servers." );
+  }
 
-    // Attempt to add each CosignConnection to a list.  Any non-io errors (such as
-    // invalid SSL certs on this machine) result in a failure to construct the
-    // CosignConnectionList
-    for (int hostIdx=0; hostIdx<hostAddrs.length; hostIdx++) {
-      try {
-        cosignConnections.addLast( new CosignConnection ( cosignConListId, hostAddrs[hostIdx], port ) );
-      } catch (IOException e) {
-        if ( log.isDebugEnabled() ) {
-          log.debug( "[" + poolId + "]: unable to establish connection: " + hostAddrs[hostIdx] + ":" + port );
+  /**
+   * This method tries each cosign server in turn and invokes its
+   * checkCookie() method.
+   * @return The parsed response from the cosign server.  Returns null
+   *            if no cosign servers were available to validate the cookie.
+   */
+  public CosignCodec.Reply checkCookie(final String serviceName, final String cookie) {
+    Command check = new Command() {
+      public Object execute( CosignConnection cosignConnection ) {
+        long start = System.currentTimeMillis();
+        CosignCodec.Reply cosignResponse = cosignConnection.checkCookie( serviceName, cookie );
+        if ( cosignResponse != null ) {
+          checkLatencies.record( System.currentTimeMillis() - start );
         }
-        invalidIpAddrs.addLast( hostAddrs[hostIdx] );
+        return cosignResponse;
       }
-    }
+    };
 
-    // Ensure that we have at least one valid connection
-    if ( cosignConnections.isEmpty() ) {
-      throw new Exception ( "[" + poolId + "]: failed to connect to any cosignd servers." );
+    if ( ( hostAddrs.length > 1 ) &&
+         CosignConfig.INSTANCE.getSnapshot().isHedgeRequests() ) {
+      return (CosignCodec.Reply)executeHedged( check );
     }
+    return (CosignCodec.Reply)execute( check );
+  }
 
+  /**
+    * This method tries each cosign server in turn and invokes its
+    * checkCookie() method.
+    * @return The response from the cosign server.  Returns null
+    *            if no cosign servers were available to validate the cookie.
+    */
+  public CosignCodec.Reply checkCookie(String serviceName, String cookie, Vector factors) {
+    return checkCookie( serviceName, cookie );
   }
 
   /**
-   * This methid will loop through all the open connections and verify that
-   * at least one connection is still valid.
-   * @return  Returns true if at least a single connection is still valid in the ConnectionList.
+   * This method tries each cosign server in turn and invokes its
+   * retreiveTGT() method.
+   * @return The response from the cosign server.  Returns null
+   *            if no cosign servers were available to validate the cookie.
    */
-  public boolean areConnectionsValid () {
-    Iterator iter = cosignConnections.iterator();
-    while ( iter.hasNext() ) {
-      CosignConnection cosignConnection = (CosignConnection)iter.next();
-      if ( cosignConnection.isConnectionValid() ) {
-        return true;
+  public String retreiveTGT(final String serviceName, final String cookie, final Subject subject, final CosignPrincipal sPrinciple) {
+    return (String)execute( new Command() {
+      public Object execute( CosignConnection cosignConnection ) {
+        return cosignConnection.retrieveTGT( serviceName, cookie, subject, sPrinciple );
       }
+    });
+  }
 
-      if ( log.isDebugEnabled() ) {
-        log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to pass validation test, adding connection to invalid list" );
+  /**
+   * This method tries each cosign server in turn and invokes its
+   * retrieveProxyCookies() method.
+   * @return The response from the cosign server.  Returns null
+   *            if no cosign servers were available to validate the cookie.
+   */
+  public String retreiveProxyCookie(final String serviceName, final String cookie, final Subject subject, final CosignPrincipal sPrinciple) {
+    return (String)execute( new Command() {
+      public Object execute( CosignConnection cosignConnection ) {
+        return cosignConnection.retrieveProxyCookies( serviceName, cookie, subject, sPrinciple );
       }
+    });
+  }
 
-      // Hmm ... the connection wasn't valid.  We need to close it
-      // and add it to the invalid list
-      invalidIpAddrs.addLast ( cosignConnection.getHostAddress() );
-      cosignConnection.close();
-      iter.remove();
+  /**
+   * This method tries each cosign server in turn and runs the login
+   * transaction on it, so that the CHECK and the RETRs of one login share
+   * a single connection.
+   * @return The CHECK response, or the first RETR response if no CHECK
+   *            was sent.  Returns null if no cosign servers were available.
+   */
+  public String login(final CosignLoginTransaction transaction) {
+    return (String)execute( new Command() {
+      public Object execute( CosignConnection cosignConnection ) {
+        long start = System.currentTimeMillis();
+        String cosignResponse = cosignConnection.runTransaction( transaction );
+        if ( ( cosignResponse != null ) && ( transaction.getCheckResponse() != null ) ) {
+          checkLatencies.record( System.currentTimeMillis() - start );
+        }
+        return cosignResponse;
+      }
+    });
+  }
+
+  /**
+   * This method will give every borrowed connection back to the pool.
+   * Connections to addresses the cosign server no longer resolves to are
+   * closed instead.
+   */
+  public void close () {
+    for (int hostIdx=0; hostIdx<cosignConnections.length; hostIdx++) {
+      CosignConnection cosignConnection = cosignConnections[hostIdx];
+      if ( cosignConnection == null ) {
+        continue;
+      }
+      cosignConnections[hostIdx] = null;
+      try {
+        if ( !cosignServer.hasHostAddress( hostAddrs[hostIdx] ) ) {
+          connectionPool.invalidateObject( hostAddrs[hostIdx], cosignConnection );
+          continue;
+        }
+        connectionPool.returnObject( hostAddrs[hostIdx], cosignConnection );
+      } catch (Exception e) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to return connection to pool", e );
+        }
+        cosignConnection.close();
+      }
     }
-    return false;
   }
 
   /**
-   * This method loops through all active connections and invokes their
-   * checkCookie() method.
-   * @return The response from the cosign server.  Returns null
-   *            if no cosign servers were available to validate the cookie.
+   * This method returns the unique id of this CosignConnectionList
+   */
+  public String getCosignConListId () {
+    return cosignConListId;
+  }
+
+  /**
+   * This method will return the pool id of this connection list.
+   */
+  public int getPoolId () {
+    return poolId;
+  }
+
+  /**
+   * This method runs the given command against each cosign server in turn
+   * until one of them returns a definite answer.  A connection that fails
+   * is thrown away and its address is left to the health checker, which
+   * brings it back once it answers again; the command moves on to the
+   * next server.
    */
-  public String checkCookie(String serviceName, String cookie) {
-    String serverErrorResponse = null;
-    Iterator iter;
-
-    // Loop through all the active connections and invoke the checkCookie
-    // method on those connections
-    iter = cosignConnections.iterator();
-    while ( iter.hasNext() ) {
-      CosignConnection cosignConnection = (CosignConnection)iter.next();
-      String cosignResponse = cosignConnection.checkCookie( serviceName, cookie );
-      int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
+  private Object execute( Command command ) {
+    return execute( command, 0, null );
+  }
+
+  /**
+   * This method runs the given command against each cosign server from the
+   * given position in the try order on.
+   * @param serverErrorResponse The server retry response of a server tried
+   *            before, returned if no server gives a definite answer
+   */
+  private Object execute( Command command, int fromPos, Object serverErrorResponse ) {
+    for (int pos=fromPos; pos<hostOrder.length; pos++) {
+      int hostIdx = hostOrder[pos];
+      CosignConnection cosignConnection = getConnection( hostIdx );
+      if ( cosignConnection == null ) {
+        continue;
+      }
+
+      Object cosignResponse = send( hostIdx, cosignConnection, command );
+      int cosignCode = CosignConnection.getResponseCode( cosignResponse );
 
       if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
            ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
@@ -132,51 +254,9 @@ public class CosignConnectionList {
 
       // the response was invalid, this connection is no longer good
       if ( log.isDebugEnabled() ) {
-        log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to validate cookie, adding connection to invalid list" );
-      }
-      invalidIpAddrs.addFirst ( cosignConnection.getHostAddress() );
-      cosignConnection.close();
-      iter.remove();
-    }
-
-    // Loop through all the invalid IP addresses, attempt to establish a
-    // new connection, and again, invoke the checkCookie method on this
-    // connections
-    iter = invalidIpAddrs.iterator();
-    while( iter.hasNext() ) {
-      String hostAddr = (String)iter.next();
-      try {
-        CosignConnection cosignConnection = new CosignConnection ( cosignConListId, hostAddr, port );
-        String cosignResponse = cosignConnection.checkCookie( serviceName, cookie );
-        int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-        // Stop checking servers if valid code returned.
-        if ( cosignResponse != null ) {
-          if ( log.isDebugEnabled() ) {
-            log.debug( "[" + cosignConnection.getCosignConId() + "]: removing connection from invalid list" );
-          }
-
-          // We can re-add this connection into our valid connection list
-          cosignConnections.add( cosignConnection );
-          iter.remove();
-
-          if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-               ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-            // Stop checking servers if valid code returned.
-            return cosignResponse;
-          } else {
-            // Failed to get a valid response, so we need to keep checking other servers
-            serverErrorResponse = cosignResponse;
-            continue;
-          }
-        }
-
-        // Still had a problem with this connection (free up resources)
-        cosignConnection.close();
-
-      } catch (IOException e) {
+        log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to validate cookie, invalidating connection" );
       }
+      invalidate( hostIdx );
     }
 
     // Return a status that we weren't able to contact any Cosign servers
@@ -184,273 +264,197 @@ public class CosignConnectionList {
   }
 
   /**
-    * This method loops through all active connections and invokes their
-    * checkCookie() method.
-    * @return The response from the cosign server.  Returns null
-    *            if no cosign servers were available to validate the cookie.
-    */
-   public String checkCookie(String serviceName, String cookie, Vector factors) {
-     String serverErrorResponse = null;
-     Iterator iter;
-
-     // Loop through all the active connections and invoke the checkCookie
-     // method on those connections
-     iter = cosignConnections.iterator();
-     while ( iter.hasNext() ) {
-       CosignConnection cosignConnection = (CosignConnection)iter.next();
-       String cosignResponse = cosignConnection.checkCookie( serviceName, cookie );
-       int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-       if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-            ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-         // Stop checking servers if valid code returned.
-         return cosignResponse;
-
-       } else if ( cosignCode == CosignConnection.COSIGN_SERVER_RETRY ) {
-         // We need to keep checking other servers
-         serverErrorResponse = cosignResponse;
-         continue;
-       }
-
-       // the response was invalid, this connection is no longer good
-       if ( log.isDebugEnabled() ) {
-         log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to validate cookie, adding connection to invalid list" );
-       }
-       invalidIpAddrs.addFirst ( cosignConnection.getHostAddress() );
-       cosignConnection.close();
-       iter.remove();
-     }
-
-     // Loop through all the invalid IP addresses, attempt to establish a
-     // new connection, and again, invoke the checkCookie method on this
-     // connections
-     iter = invalidIpAddrs.iterator();
-     while( iter.hasNext() ) {
-       String hostAddr = (String)iter.next();
-       try {
-         CosignConnection cosignConnection = new CosignConnection ( cosignConListId, hostAddr, port );
-         String cosignResponse = cosignConnection.checkCookie( serviceName, cookie );
-         int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-         // Stop checking servers if valid code returned.
-         if ( cosignResponse != null ) {
-           if ( log.isDebugEnabled() ) {
-             log.debug( "[" + cosignConnection.getCosignConId() + "]: removing connection from invalid list" );
-           }
-
-           // We can re-add this connection into our valid connection list
-           cosignConnections.add( cosignConnection );
-           iter.remove();
-
-           if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-                ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-             // Stop checking servers if valid code returned.
-             return cosignResponse;
-           } else {
-             // Failed to get a valid response, so we need to keep checking other servers
-             serverErrorResponse = cosignResponse;
-             continue;
-           }
-         }
-
-         // Still had a problem with this connection (free up resources)
-         cosignConnection.close();
-
-       } catch (IOException e) {
-       }
-     }
-
-     // Return a status that we weren't able to contact any Cosign servers
-     return serverErrorResponse;
-  }
+   * This method sends the command to the first reachable cosign server and,
+   * if it has not answered within the configured percentile of recent CHECK
+   * latencies, to the next healthy server as well, and returns whichever
+   * definite answer comes first.  Both legs run on the hedge threads with
+   * connections of their own, so the slower one can be left behind and
+   * gives its connection back to the pool once it is done.  If neither
+   * gives a definite answer, the servers after them are tried in turn.
+   * @return The first definite response, or the last server retry response
+   *            if no server gave one
+   */
+  private Object executeHedged( Command command ) {
+    int firstPos = nextReachable( 0 );
+    if ( firstPos < 0 ) {
+      return null;
+    }
+    int secondPos = nextHealthy( firstPos + 1 );
+    if ( secondPos < 0 ) {
+      return execute( command, firstPos, null );
+    }
 
+    // The first leg takes over the connection borrowed for its address
+    int firstIdx = hostOrder[firstPos];
+    HedgedCall first = new HedgedCall( firstIdx, cosignConnections[firstIdx], command );
+    cosignConnections[firstIdx] = null;
+    HedgedCall second = new HedgedCall( hostOrder[secondPos], null, command );
+
+    CosignHedgedRequest request = new CosignHedgedRequest( first, second );
+    Object cosignResponse = request.execute( getHedgeDelay(),
+        System.currentTimeMillis() + CosignConnection.RESPONSE_TIMEOUT_MILLIS );
+    if ( cosignResponse != null ) {
+      return cosignResponse;
+    }
+    if ( log.isDebugEnabled() ) {
+      log.debug( "[" + cosignConListId + "]: no definite answer from hedged CHECK to " +
+                 hostAddrs[firstIdx] + " and " + hostAddrs[second.hostIdx] );
+    }
+    return execute( command, secondPos + 1, request.getServerErrorResponse() );
+  }
 
   /**
-     * This method loops through all active connections and invokes their
-     * retreiveTGT() method.
-     * @return The response from the cosign server.  Returns null
-     *            if no cosign servers were available to validate the cookie.
-     */
-    public String retreiveTGT(String serviceName, String cookie, Subject subject, CosignPrincipal sPrinciple) {
-      String serverErrorResponse = null;
-      Iterator iter;
-      String cosignResponse="";
-      // Loop through all the active connections and invoke the checkCookie
-      // method on those connections
-      iter = cosignConnections.iterator();
-      while ( iter.hasNext() ) {
-        CosignConnection cosignConnection = (CosignConnection)iter.next();
-        cosignResponse = cosignConnection.retrieveTGT( serviceName, cookie, subject, sPrinciple );
-        int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-        if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-             ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-          // Stop checking servers if valid code returned.
-          return cosignResponse;
-
-        } else if ( cosignCode == CosignConnection.COSIGN_SERVER_RETRY ) {
-          // We need to keep checking other servers
-          serverErrorResponse = cosignResponse;
-          continue;
-        }
-
-        // the response was invalid, this connection is no longer good
-        if ( log.isDebugEnabled() ) {
-          log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to validate cookie, adding connection to invalid list" );
-        }
-        invalidIpAddrs.addFirst ( cosignConnection.getHostAddress() );
-        cosignConnection.close();
-        iter.remove();
+   * This method returns the position in the try order of the first
+   * reachable address at or after the given position, or -1 if there is
+   * none.
+   */
+  private int nextReachable( int fromPos ) {
+    for (int pos=fromPos; pos<hostOrder.length; pos++) {
+      if ( getConnection( hostOrder[pos] ) != null ) {
+        return pos;
       }
+    }
+    return -1;
+  }
 
-      // Loop through all the invalid IP addresses, attempt to establish a
-      // new connection, and again, invoke the checkCookie method on this
-      // connections
-      iter = invalidIpAddrs.iterator();
-      while( iter.hasNext() ) {
-        String hostAddr = (String)iter.next();
-        try {
-          CosignConnection cosignConnection = new CosignConnection ( cosignConListId, hostAddr, port );
-          cosignResponse = cosignConnection.retrieveTGT( serviceName, cookie, subject, sPrinciple );
-          int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-          // Stop checking servers if valid code returned.
-          if ( cosignResponse != null ) {
-            if ( log.isDebugEnabled() ) {
-              log.debug( "[" + cosignConnection.getCosignConId() + "]: removing connection from invalid list" );
-            }
-
-            // We can re-add this connection into our valid connection list
-            cosignConnections.add( cosignConnection );
-            iter.remove();
-
-            if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-                 ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-              // Stop checking servers if valid code returned.
-              return cosignResponse;
-            } else {
-              // Failed to get a valid response, so we need to keep checking other servers
-              serverErrorResponse = cosignResponse;
-              continue;
-            }
-          }
-
-          // Still had a problem with this connection (free up resources)
-          cosignConnection.close();
-
-        } catch (IOException e) {
-        }
+  /**
+   * This method returns the position in the try order of the first address
+   * at or after the given position that may be connected to, without
+   * borrowing a connection to it, or -1 if there is none.
+   */
+  private int nextHealthy( int fromPos ) {
+    for (int pos=fromPos; pos<hostOrder.length; pos++) {
+      int hostIdx = hostOrder[pos];
+      if ( !invalidIpAddrs[hostIdx] && healthChecker.isAvailable( hostAddrs[hostIdx] ) ) {
+        return pos;
       }
+    }
+    return -1;
+  }
 
-      // Return a status that we weren't able to contact any Cosign servers
-      return serverErrorResponse;
+  /**
+   * This method runs the command on the connection to the given address,
+   * letting the host selector know how long it took and whether the
+   * address gave a definite answer.
+   */
+  private Object send( int hostIdx, CosignConnection cosignConnection, Command command ) {
+    hostSelector.requestStarted( hostAddrs[hostIdx] );
+    long start = System.currentTimeMillis();
+    Object cosignResponse = null;
+    try {
+      cosignResponse = command.execute( cosignConnection );
+      return cosignResponse;
+    } finally {
+      int cosignCode = CosignConnection.getResponseCode( cosignResponse );
+      hostSelector.requestFinished( hostAddrs[hostIdx], System.currentTimeMillis() - start,
+                                    ( cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED ) &&
+                                    ( cosignCode != CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) );
     }
+  }
 
+  /**
+   * This method returns how long to wait for the first server before
+   * hedging, based on the latencies of recent CHECK commands.
+   */
+  private static long getHedgeDelay() {
+    CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+    return Math.max( config.getHedgeMinDelayMillis(), checkLatencies.getPercentile( config.getHedgeDelayPercentile() ) );
+  }
 
-    public String retreiveProxyCookie(String serviceName, String cookie, Subject subject, CosignPrincipal sPrinciple) {
-
-         String serverErrorResponse = null;
-         Iterator iter;
-         String cosignResponse="";
-         // Loop through all the active connections and invoke the checkCookie
-         // method on those connections
-         iter = cosignConnections.iterator();
-         while ( iter.hasNext() ) {
-           CosignConnection cosignConnection = (CosignConnection)iter.next();
-           cosignResponse = cosignConnection.retrieveProxyCookies( serviceName, cookie, subject, sPrinciple );
-           int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-           if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-                ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-             // Stop checking servers if valid code returned.
-             return cosignResponse;
-   //add for null check
-           } else if ( cosignCode == CosignConnection.COSIGN_SERVER_RETRY ) {
-             // We need to keep checking other servers
-             serverErrorResponse = cosignResponse;
-             continue;
-           }
-
-           // the response was invalid, this connection is no longer good
-           if ( log.isDebugEnabled() ) {
-             log.debug( "[" + cosignConnection.getCosignConId() + "]: failed to validate cookie, adding connection to invalid list" );
-           }
-           invalidIpAddrs.addFirst ( cosignConnection.getHostAddress() );
-           cosignConnection.close();
-           iter.remove();
-         }
-
-         // Loop through all the invalid IP addresses, attempt to establish a
-         // new connection, and again, invoke the checkCookie method on this
-         // connections
-         iter = invalidIpAddrs.iterator();
-         while( iter.hasNext() ) {
-           String hostAddr = (String)iter.next();
-           try {
-             CosignConnection cosignConnection = new CosignConnection ( cosignConListId, hostAddr, port );
-             cosignResponse = cosignConnection.retrieveProxyCookies( serviceName, cookie, subject, sPrinciple );
-             int cosignCode = CosignConnection.convertResponseToCode ( cosignResponse );
-
-             // Stop checking servers if valid code returned.
-             if ( cosignResponse != null ) {
-               if ( log.isDebugEnabled() ) {
-                 log.debug( "[" + cosignConnection.getCosignConId() + "]: removing connection from invalid list" );
-               }
-
-               // We can re-add this connection into our valid connection list
-               cosignConnections.add( cosignConnection );
-               iter.remove();
-
-               if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
-                    ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
-
-                 // Stop checking servers if valid code returned.
-                 return cosignResponse;
-               } else {
-                 // Failed to get a valid response, so we need to keep checking other servers
-                 serverErrorResponse = cosignResponse;
-                 continue;
-               }
-             }
-
-             // Still had a problem with this connection (free up resources)
-             cosignConnection.close();
-
-           } catch (IOException e) {
-           }
-         }
-
-         // Return a status that we weren't able to contact any Cosign servers
-         return serverErrorResponse;
+  /**
+   * This method returns the connection borrowed for the given address,
+   * borrowing one from the pool first if needed.  Addresses the health
+   * checker considers down are never connected to.
+   * @return  The connection, or null if the address could not be reached
+   */
+  private CosignConnection getConnection( int hostIdx ) {
+    if ( cosignConnections[hostIdx] != null ) {
+      return cosignConnections[hostIdx];
     }
-
+    if ( invalidIpAddrs[hostIdx] ) {
+      return null;
+    }
+    if ( !healthChecker.isAvailable( hostAddrs[hostIdx] ) ) {
+      invalidIpAddrs[hostIdx] = true;
+      return null;
+    }
+    try {
+      cosignConnections[hostIdx] = (CosignConnection)connectionPool.borrowObject( hostAddrs[hostIdx] );
+    } catch (Exception e) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + cosignConListId + "]: unable to establish connection: " + hostAddrs[hostIdx] );
+      }
+      invalidIpAddrs[hostIdx] = true;
+      healthChecker.reportFailure( hostAddrs[hostIdx] );
+    }
+    return cosignConnections[hostIdx];
+  }
 
   /**
-   * This method will loop through all the open connections and close them.
+   * This method destroys the connection borrowed for the given address and
+   * lets the health checker know the address may be failing.
    */
-  public void close () {
-    for (int idx=0; idx<cosignConnections.size(); idx++) {
-      ((CosignConnection)cosignConnections.get(idx)).close();
+  private void invalidate( int hostIdx ) {
+    CosignConnection cosignConnection = cosignConnections[hostIdx];
+    cosignConnections[hostIdx] = null;
+    healthChecker.reportFailure( hostAddrs[hostIdx] );
+    try {
+      connectionPool.invalidateObject( hostAddrs[hostIdx], cosignConnection );
+    } catch (Exception e) {
+      cosignConnection.close();
     }
   }
 
   /**
-   * This method returns the unique id of this CosignConnectionList
+   * A single command that can be run against any CosignConnection.  It
+   * returns the reply line, or the parsed reply for CHECK.
    */
-  public String getCosignConListId () {
-    return cosignConListId;
+  private interface Command {
+    Object execute( CosignConnection cosignConnection );
   }
 
   /**
-   * This method will return the pool id of this connection list.
+   * One leg of a hedged request, run on a hedge thread.  It gives its
+   * connection back to the pool itself, so the request does not have to
+   * wait for it.
    */
-  public int getPoolId () {
-    return poolId;
+  private class HedgedCall implements Callable {
+
+    private final int hostIdx;
+    private final Command command;
+    private CosignConnection cosignConnection;
+
+    HedgedCall( int hostIdx, CosignConnection cosignConnection, Command command ) {
+      this.hostIdx = hostIdx;
+      this.cosignConnection = cosignConnection;
+      this.command = command;
+    }
+
+    public Object call() {
+      String hostAddr = hostAddrs[hostIdx];
+      if ( cosignConnection == null ) {
+        try {
+          cosignConnection = (CosignConnection)connectionPool.borrowObject( hostAddr );
+        } catch (Exception e) {
+          healthChecker.reportFailure( hostAddr );
+          return null;
+        }
+      }
+
+      Object cosignResponse = send( hostIdx, cosignConnection, command );
+      try {
+        if ( CosignConnection.getResponseCode( cosignResponse ) == CosignConnection.COSIGN_CODE_UNKNOWN ) {
+          healthChecker.reportFailure( hostAddr );
+          connectionPool.invalidateObject( hostAddr, cosignConnection );
+        } else {
+          connectionPool.returnObject( hostAddr, cosignConnection );
+        }
+      } catch (Exception e) {
+        cosignConnection.close();
+      }
+      return cosignResponse;
+    }
+
   }
 
 }
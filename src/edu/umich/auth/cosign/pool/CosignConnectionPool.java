@@ -1,46 +1,83 @@
 package edu.umich.auth.cosign.pool;
 
 import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 
 import edu.umich.auth.cosign.CosignConfig;
+import edu.umich.auth.cosign.CosignConfigSnapshot;
 import edu.umich.auth.cosign.CosignServer;
 import edu.umich.auth.cosign.util.RWLock;
 
 /**
- * This singleton class is a wrapper class to the GenericObjectPool;
+ * This singleton class is a wrapper class to the GenericKeyedObjectPool
+ * of CosignConnections, keyed by cosign server host address.  Callers
+ * borrow a CosignConnectionList, which borrows a connection for each host
+ * only when a command has to be sent to it.
  *
  * @author dillaman
  *
- * @see org.apache.commons.pool.impl.GenericObjectPool
+ * @see org.apache.commons.pool.impl.GenericKeyedObjectPool
  *
  * @uml.stereotype name="tagged" isDefined="true"
  */
 public class CosignConnectionPool
 {
 
+  // The properties the pool is built from; changing any of them rebuilds it
+  private static final String[] POOL_PROPERTIES = new String[] {
+    CosignConfig.COSIGN_SERVER_HOST,
+    CosignConfig.COSIGN_SERVER_PORT,
+    CosignConfig.CONNECTION_POOL_SIZE,
+    CosignConfig.KEY_STORE_PATH,
+    CosignConfig.KEY_STORE_PASSWORD,
+    CosignConfig.COSIGN_SERVER_HOST_IP_CHECK,
+    CosignConfig.COSIGN_NIO_TRANSPORT,
+    CosignConfig.COSIGN_PIPELINE_DEPTH,
+    CosignConfig.COSIGN_PIPELINE_CONNECTIONS
+  };
+
   /**
    * Singleton object of the CosignConnectionPool
    */
   public static final CosignConnectionPool INSTANCE = new CosignConnectionPool ();
 
-  // The pool that holds all the CosignConnectionLists
-  private GenericObjectPool thePool = null;
+  // The pool CosignConnectionLists are borrowed from, null until the first
+  // init succeeds
+  private PoolGeneration current = null;
+
+  // Every pool that still has lists borrowed from it, keyed by pool id
+  private final ConcurrentHashMap generations = new ConcurrentHashMap();
+
+  // Fails requests fast while the cosign servers are failing or too slow
+  private final CosignCircuitBreaker circuitBreaker = new CosignCircuitBreaker();
 
-  // The cosign server that will
-  private CosignServer cosignServer = null;
+  // Chooses which cosign server address each request tries first
+  private final CosignHostSelector hostSelector = new CosignHostSelector();
+
+  // CHECKs currently being sent to the cosign server, keyed by service and cookie
+  private final ConcurrentHashMap inFlightChecks = new ConcurrentHashMap();
 
   // The pool id is incremented after each init call so that
   // we can't return a CosignConnectionList to a pool to which
   // it doesn't belong
   private int poolId = 0;
 
-  // Reader/writer lock to prevent software from borrowing/returning a
-  // CosignConnectionList while we are rebuilding the list
+  // Only one new pool is built at a time
+  private final Object initLock = new Object();
+
+  // Counter for giving each CosignConnectionList a unique id
+  private int listId = 0;
+
+  // Reader/writer lock to prevent software from borrowing a
+  // CosignConnectionList while we are switching to a new pool
   private RWLock rwLock = new RWLock();
 
   // Used for logging info and error messages
@@ -51,13 +88,22 @@ public class CosignConnectionPool
 	 */
 	private CosignConnectionPool() {
     init ();
-    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.UpdateListener () {
+    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.KeyedUpdateListener () {
 
       public void configUpdated() {
-        // Whenever CosignConfig is updated, we need to re-initialize the pool
         init();
       }
 
+      public void configUpdated( Set changedKeys ) {
+        // Only re-initialize the pool if the connections depend on what changed
+        for (int keyIdx=0; keyIdx<POOL_PROPERTIES.length; keyIdx++) {
+          if ( changedKeys.contains( POOL_PROPERTIES[keyIdx] ) ) {
+            init();
+            return;
+          }
+        }
+      }
+
     });
 	}
 
@@ -65,94 +111,374 @@ public class CosignConnectionPool
    * This method attempts to borrow a CosignConnectionList from the pool.
    */
 	public CosignConnectionList borrowCosignConnectionList() throws Exception {
+    if ( circuitBreaker.isOpen() ) {
+      throw new Exception( "Circuit to the cosign servers is open" );
+    }
+    PoolGeneration generation;
     rwLock.getReadLock();
     try {
       validatePoolState ();
-  		  return (CosignConnectionList) thePool.borrowObject();
+      generation = current;
+      generation.borrowed.incrementAndGet();
+    } finally {
+      rwLock.releaseLock();
+    }
+
+    try {
+      String cosignConListId;
+      synchronized ( this ) {
+        cosignConListId = generation.poolId + ":" + ( ++listId ) + ":" + generation.cosignServer.getHost();
+      }
+      return new CosignConnectionList( generation.poolId, cosignConListId, generation.cosignServer, generation.thePool,
+                                       generation.healthChecker, hostSelector );
     } catch (Exception e) {
+      giveBack( generation );
       if ( log.isErrorEnabled() ) {
         log.error( "Failed to borrow CosignConnectionList from pool", e );
       }
       throw e;
-    } finally {
-      rwLock.releaseLock();
     }
   }
 
   /**
    * This method attempts to return a previously borrowed CosignConnectionList
-   * to the pool.
+   * to the pool.  Each connection it borrowed goes back to the per-host pool
+   * it came from, even if a new pool has been switched to since; the old
+   * pool is closed once its last list has come back.
    */
   public void returnCosignConnectionList(CosignConnectionList connList) throws Exception {
-    rwLock.getReadLock();
-    try {
-      // If this object was from a different pool, we don't want
-      // to put it in this pool.
-      if ( connList.getPoolId() != poolId ) {
-        if ( log.isDebugEnabled() ) {
-          log.debug( "Attempted to return CosignConnectionList to an invalidated CosignConnectionPool" );
-        }
-        connList.close();
-        return;
+    PoolGeneration generation = (PoolGeneration)generations.get( new Integer( connList.getPoolId() ) );
+    if ( generation == null ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "Attempted to return CosignConnectionList to a closed CosignConnectionPool" );
       }
-
-      validatePoolState ();
-      thePool.returnObject(connList);
+      connList.close();
+      return;
+    }
+    try {
+      connList.close();
     } catch (Exception e) {
       if ( log.isWarnEnabled() ) {
         log.warn( "Failed to return CosignConnectionList to pool", e );
       }
       throw e;
     } finally {
-      rwLock.releaseLock();
+      giveBack( generation );
     }
 	}
 
   /**
-   * Ensures that the pool has been initialized, otherwise throws a RuntimeException.
-   * Must have lock on object before entering this function.
+   * This method checks a cosign service cookie.  Concurrent calls for the
+   * same service cookie share a single CHECK: the first caller sends it and
+   * the others wait for and return its response.  While the circuit breaker
+   * is open no CHECK is sent at all.
+   * @return The parsed response from the cosign server.  Returns null
+   *            if no cosign servers were available to validate the cookie.
+   * @throws Exception  If a CosignConnectionList could not be borrowed
    */
-  private void validatePoolState () {
-    if (thePool == null) {
-      throw new IllegalStateException( "Connection pool has not been initialized." );
+  public CosignCodec.Reply checkCookie(String serviceName, String cookie) throws Exception {
+    String key = serviceName + "=" + cookie;
+    InFlightCheck call = new InFlightCheck();
+    InFlightCheck existing = (InFlightCheck)inFlightChecks.putIfAbsent( key, call );
+    if ( existing != null ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "Waiting for CHECK already in flight for " + serviceName );
+      }
+      return existing.await();
+    }
+
+    try {
+      if ( !circuitBreaker.allowRequest() ) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "Circuit to the cosign servers is open, not sending CHECK" );
+        }
+        return null;
+      }
+
+      long start = System.currentTimeMillis();
+      boolean answered = false;
+      try {
+        call.response = sendCheck( serviceName, cookie );
+        int cosignCode = CosignConnection.convertResponseToCode( call.response );
+        answered = ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
+                   ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED );
+      } finally {
+        circuitBreaker.recordResult( answered, System.currentTimeMillis() - start );
+      }
+    } catch (Exception e) {
+      call.failure = e;
+      throw e;
+    } finally {
+      inFlightChecks.remove( key );
+      call.complete();
     }
+    return call.response;
   }
 
   /**
-   * This method will create a new pool of CosignConnectionList objects.
+   * This method runs a login transaction, i.e. the CHECK of a service
+   * cookie together with the RETRs of the user's credentials, on a single
+   * borrowed CosignConnectionList.  While the circuit breaker is open
+   * nothing is sent at all.
+   * @return The CHECK response, or the first RETR response if no CHECK
+   *            was sent.  Returns null if no cosign servers were available.
+   * @throws Exception  If a CosignConnectionList could not be borrowed
    */
-  private void init () {
-    rwLock.getWriteLock();
+  public String login(CosignLoginTransaction transaction) throws Exception {
+    if ( !circuitBreaker.allowRequest() ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "Circuit to the cosign servers is open, not sending login transaction" );
+      }
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    boolean answered = false;
     try {
-      // Clean up the existing pool if one exists
-      if (thePool != null) {
+      CosignConnectionList connList = borrowCosignConnectionList();
+      try {
+        String cosignResponse = connList.login( transaction );
+        int cosignCode = CosignConnection.convertResponseToCode( cosignResponse );
+        answered = ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
+                   ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED );
+        return cosignResponse;
+      } finally {
         try {
-          thePool.close();
+          returnCosignConnectionList( connList );
         } catch (Exception e) {
+          log.error( "Failed to return cosign connections to pool." );
         }
       }
+    } finally {
+      circuitBreaker.recordResult( answered, System.currentTimeMillis() - start );
+    }
+  }
+
+  /**
+   * This method sends a CHECK to the cosign server.  When pipelining is
+   * enabled the CHECK is sent on one of the shared pipelined connections;
+   * if none of them can answer, a CosignConnectionList is borrowed from the
+   * pool as before.
+   */
+  private CosignCodec.Reply sendCheck(String serviceName, String cookie) throws Exception {
+    CosignPipeline pipeline = null;
+    rwLock.getReadLock();
+    try {
+      if ( current != null ) {
+        pipeline = current.pipeline;
+      }
+    } finally {
+      rwLock.releaseLock();
+    }
+
+    if ( pipeline != null ) {
+      CosignCodec.Reply cosignResponse = pipeline.checkCookie( serviceName, cookie );
+      if ( cosignResponse != null ) {
+        return cosignResponse;
+      }
+    }
 
-      // Attempt to create the new pool of connection lists
+    CosignConnectionList connList = borrowCosignConnectionList();
+    try {
+      return connList.checkCookie( serviceName, cookie );
+    } finally {
       try {
-        CosignServer cosignServer = new CosignServer();
-        GenericObjectPool.Config config = cosignServer.getConfig();
-        CosignConnectionListFactory cclf = new CosignConnectionListFactory( ++poolId, cosignServer );
+        returnCosignConnectionList( connList );
+      } catch (Exception e) {
+        log.error( "Failed to return cosign connections to pool." );
+      }
+    }
+  }
 
-        this.thePool = (GenericObjectPool) new GenericObjectPoolFactory( cclf, config ).createPool();
-        this.cosignServer = cosignServer;
+  /**
+   * The outcome of a CHECK that other callers may be waiting on.
+   */
+  private static class InFlightCheck {
 
+    private CosignCodec.Reply response = null;
+    private Exception failure = null;
+    private boolean done = false;
+
+    synchronized void complete() {
+      done = true;
+      notifyAll();
+    }
+
+    synchronized CosignCodec.Reply await() throws Exception {
+      while ( !done ) {
+        wait();
+      }
+      if ( failure != null ) {
+        throw failure;
+      }
+      return response;
+    }
+
+  }
+
+  /**
+   * Ensures that the pool has been initialized, otherwise throws a RuntimeException.
+   * Must have lock on object before entering this function.
+   */
+  private void validatePoolState () {
+    if (current == null) {
+      throw new IllegalStateException( "Connection pool has not been initialized." );
+    }
+  }
+
+  /**
+   * This method records that a list borrowed from the given pool has come
+   * back, and closes the pool if it has been replaced and this was its
+   * last list.
+   */
+  private void giveBack ( PoolGeneration generation ) {
+    if ( ( generation.borrowed.decrementAndGet() == 0 ) && generation.retired ) {
+      closeGeneration( generation );
+    }
+  }
+
+  private void closeGeneration ( PoolGeneration generation ) {
+    if ( generation.close() ) {
+      generations.remove( new Integer( generation.poolId ) );
+      if ( log.isDebugEnabled() ) {
+        log.debug( "Closed CosignConnectionPool " + generation.poolId );
+      }
+    }
+  }
+
+  /**
+   * This method will create a new pool of CosignConnection objects and
+   * switch borrowers over to it.  The new pool is built, and a connection
+   * opened to each cosign server address, before the switch, so borrowers
+   * never wait for it.  The old pool is closed once every list borrowed
+   * from it has been returned.  If the new pool cannot be built the old
+   * one stays in use.
+   */
+  private void init () {
+    synchronized ( initLock ) {
+      PoolGeneration generation;
+      try {
+        generation = new PoolGeneration( ++poolId );
       } catch (UnknownHostException uhe) {
         if ( log.isErrorEnabled() ) {
           log.error( "Failed to resolve cosign server hostname", uhe );
         }
-        this.thePool = null;
-        this.cosignServer = null;
+        return;
       }
+      generation.prewarm();
+      generations.put( new Integer( generation.poolId ), generation );
 
-    } finally {
-      rwLock.releaseLock();
+      PoolGeneration old;
+      rwLock.getWriteLock();
+      try {
+        old = current;
+        current = generation;
+        if ( old != null ) {
+          old.retired = true;
+        }
+      } finally {
+        rwLock.releaseLock();
+      }
+
+      if ( ( old != null ) && ( old.borrowed.get() == 0 ) ) {
+        closeGeneration( old );
+      }
     }
   }
+
+  /**
+   * One pool of CosignConnections together with everything built for the
+   * same configuration.
+   */
+  private class PoolGeneration {
+
+    private final int poolId;
+
+    // The pool that holds all the CosignConnections, keyed by host address
+    private final GenericKeyedObjectPool thePool;
+
+    // The cosign server that will
+    private final CosignServer cosignServer;
+
+    // Shared pipelined connections used for CHECK commands, null if disabled
+    private final CosignPipeline pipeline;
+
+    // Probes failed cosign server addresses in the background
+    private final CosignHealthChecker healthChecker;
+
+    // Looks the cosign server addresses up again in the background
+    private final CosignHostResolver hostResolver;
+
+    // Number of lists borrowed from this pool and not yet returned
+    private final AtomicInteger borrowed = new AtomicInteger();
+
+    // Set once borrowers have been switched to a newer pool
+    private volatile boolean retired = false;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    PoolGeneration( int poolId ) throws UnknownHostException {
+      this.poolId = poolId;
+      this.cosignServer = new CosignServer();
+      GenericKeyedObjectPool.Config config = cosignServer.getConfig();
+      CosignConnectionFactory ccf = new CosignConnectionFactory( poolId, cosignServer );
+
+      this.thePool = (GenericKeyedObjectPool) new GenericKeyedObjectPoolFactory( ccf, config ).createPool();
+      this.healthChecker = new CosignHealthChecker( poolId, cosignServer, thePool );
+
+      CosignConfigSnapshot snapshot = CosignConfig.INSTANCE.getSnapshot();
+      int pipelineDepth = snapshot.getPipelineDepth();
+      if (pipelineDepth > 0) {
+        int pipelineConnections = snapshot.getPipelineConnections();
+        this.pipeline = new CosignPipeline( poolId, cosignServer, pipelineDepth, pipelineConnections, healthChecker, hostSelector );
+      } else {
+        this.pipeline = null;
+      }
+      this.hostResolver = new CosignHostResolver( poolId, cosignServer, thePool, pipeline, healthChecker );
+    }
+
+    /**
+     * Opens a connection to each address so that the first requests after
+     * the switch do not pay for the handshake.
+     */
+    void prewarm() {
+      String[] hostAddrs = cosignServer.getHostAddresses();
+      for (int hostIdx=0; hostIdx<hostAddrs.length; hostIdx++) {
+        if ( !healthChecker.isAvailable( hostAddrs[hostIdx] ) ) {
+          continue;
+        }
+        try {
+          thePool.addObject( hostAddrs[hostIdx] );
+        } catch (Exception e) {
+          if ( log.isDebugEnabled() ) {
+            log.debug( "[" + poolId + "]: unable to establish connection: " + hostAddrs[hostIdx] );
+          }
+          healthChecker.reportFailure( hostAddrs[hostIdx] );
+        }
+      }
+    }
+
+    /**
+     * Closes everything, once.
+     * @return  True if this call closed it
+     */
+    boolean close() {
+      if ( !closed.compareAndSet( false, true ) ) {
+        return false;
+      }
+      hostResolver.close();
+      if (pipeline != null) {
+        pipeline.close();
+      }
+      healthChecker.close();
+      try {
+        thePool.close();
+      } catch (Exception e) {
+      }
+      return true;
+    }
+
+  }
 }
 /*Copyright (c) 2002-2008 Regents of The University of Michigan.
 All Rights Reserved.
@@ -0,0 +1,254 @@
+package edu.umich.auth.cosign.pool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.KeyedObjectPool;
+
+import edu.umich.auth.cosign.CosignServer;
+
+/**
+ * This class tracks the health of each cosign server address and takes
+ * reconnection attempts off the request threads.  When a request fails to
+ * reach an address, the address becomes <code>SUSPECT</code> and is probed
+ * straight away from a background thread; request threads skip it until
+ * it is healthy again.  If the probe fails too, the address is marked
+ * <code>DOWN</code> and probed again with exponential backoff until it
+ * answers a NOOP, at which point it is <code>HEALTHY</code> and back in
+ * rotation.  An address the cosign server no longer resolves to is
+ * forgotten instead of being probed again.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignConnectionPool
+ */
+public class CosignHealthChecker {
+
+  // Host states
+  public static final int HEALTHY = 0;
+  public static final int SUSPECT = 1;
+  public static final int DOWN = 2;
+
+  // Delay before the first probe of a host that is down, doubled after each failure
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+
+  // Longest delay between two probes of a host that is down
+  private static final long MAX_BACKOFF_MILLIS = 60000;
+
+  // The pool probe connections are borrowed from
+  private final KeyedObjectPool connectionPool;
+
+  // The cosign server the addresses belong to
+  private final CosignServer cosignServer;
+
+  // The id used to label log messages
+  private final String checkerId;
+
+  // State of every address that has failed at least once, keyed by host address
+  private final ConcurrentHashMap hosts = new ConcurrentHashMap();
+
+  // Runs the probes
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignHealthChecker.class );
+
+  /**
+   * Constructor for CosignHealthChecker.
+   * @param poolId            The id of the owning CosignConnectionPool
+   * @param cosignServer      The cosign server the addresses belong to
+   * @param connectionPool    The pool of CosignConnections keyed by host address
+   */
+  public CosignHealthChecker( int poolId, CosignServer cosignServer, KeyedObjectPool connectionPool ) {
+    this.checkerId = poolId + ":health";
+    this.cosignServer = cosignServer;
+    this.connectionPool = connectionPool;
+    this.scheduler = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+      public Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "CosignHealthChecker-" + checkerId );
+        thread.setDaemon( true );
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * This method returns the state of the given address.
+   */
+  public int getState( String hostAddr ) {
+    HostState hostState = (HostState)hosts.get( hostAddr );
+    if ( hostState == null ) {
+      return HEALTHY;
+    }
+    synchronized ( hostState ) {
+      return hostState.state;
+    }
+  }
+
+  /**
+   * This method returns true if request threads may use the given address.
+   * Only healthy addresses are; suspect and down ones are left to the
+   * background probes.
+   */
+  public boolean isAvailable( String hostAddr ) {
+    return getState( hostAddr ) == HEALTHY;
+  }
+
+  /**
+   * This method is called by request threads when an address could not be
+   * connected to or stopped answering.  A healthy address becomes suspect
+   * and is probed in the background.
+   */
+  public void reportFailure( String hostAddr ) {
+    HostState hostState = (HostState)hosts.get( hostAddr );
+    if ( hostState == null ) {
+      hosts.putIfAbsent( hostAddr, new HostState() );
+      hostState = (HostState)hosts.get( hostAddr );
+    }
+    synchronized ( hostState ) {
+      if ( hostState.state != HEALTHY ) {
+        return;
+      }
+      hostState.state = SUSPECT;
+      hostState.backoffMillis = MIN_BACKOFF_MILLIS;
+    }
+    if ( log.isInfoEnabled() ) {
+      log.info( "[" + checkerId + "]: " + hostAddr + " is suspect, probing" );
+    }
+    schedule( hostAddr, 0 );
+  }
+
+  /**
+   * This method cancels the probes of the given address and forgets its
+   * state.  It is called once the cosign server no longer resolves to the
+   * address.
+   */
+  public void forget( String hostAddr ) {
+    HostState hostState = (HostState)hosts.remove( hostAddr );
+    if ( hostState == null ) {
+      return;
+    }
+    synchronized ( hostState ) {
+      if ( hostState.probe != null ) {
+        hostState.probe.cancel( false );
+        hostState.probe = null;
+      }
+    }
+  }
+
+  /**
+   * This method stops all probing.
+   */
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Schedules a probe of the given address.
+   */
+  private void schedule( final String hostAddr, long delayMillis ) {
+    HostState hostState = (HostState)hosts.get( hostAddr );
+    if ( ( hostState == null ) || scheduler.isShutdown() ) {
+      return;
+    }
+    synchronized ( hostState ) {
+      try {
+        hostState.probe = scheduler.schedule( new Runnable() {
+          public void run() {
+            probe( hostAddr );
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS );
+      } catch ( Exception e ) {
+        // The checker was closed in the meantime
+      }
+    }
+  }
+
+  /**
+   * Borrows a connection to the given address, which opens and validates
+   * it with a NOOP, and gives it straight back to the pool.
+   */
+  private void probe( String hostAddr ) {
+    if ( !cosignServer.hasHostAddress( hostAddr ) ) {
+      if ( log.isInfoEnabled() ) {
+        log.info( "[" + checkerId + "]: " + hostAddr + " is no longer a cosign server address, no longer probing it" );
+      }
+      forget( hostAddr );
+      return;
+    }
+
+    boolean answered;
+    try {
+      Object connection = connectionPool.borrowObject( hostAddr );
+      connectionPool.returnObject( hostAddr, connection );
+      answered = true;
+    } catch ( Exception e ) {
+      answered = false;
+    }
+
+    HostState hostState = (HostState)hosts.get( hostAddr );
+    if ( hostState == null ) {
+      // Forgotten while the probe was running
+      return;
+    }
+    long delayMillis;
+    synchronized ( hostState ) {
+      hostState.probe = null;
+      if ( answered ) {
+        hostState.state = HEALTHY;
+        if ( log.isInfoEnabled() ) {
+          log.info( "[" + checkerId + "]: " + hostAddr + " answered, returning it to rotation" );
+        }
+        return;
+      }
+
+      if ( hostState.state == SUSPECT ) {
+        hostState.state = DOWN;
+        if ( log.isWarnEnabled() ) {
+          log.warn( "[" + checkerId + "]: " + hostAddr + " is down, removing it from rotation" );
+        }
+        // Idle connections to a dead server are of no use
+        try {
+          connectionPool.clear( hostAddr );
+        } catch ( Exception e ) {
+        }
+      } else {
+        hostState.backoffMillis = Math.min( hostState.backoffMillis * 2, MAX_BACKOFF_MILLIS );
+      }
+      delayMillis = hostState.backoffMillis;
+    }
+    schedule( hostAddr, delayMillis );
+  }
+
+  /**
+   * The health of a single address.  Guarded by itself.
+   */
+  private static class HostState {
+    private int state = HEALTHY;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    private ScheduledFuture probe = null;
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
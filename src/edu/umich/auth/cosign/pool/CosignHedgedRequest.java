@@ -0,0 +1,233 @@
+package edu.umich.auth.cosign.pool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class races the two legs of a hedged request.  The first leg is
+ * started straight away and the second once the hedge delay has passed, or
+ * as soon as the first one fails without a definite answer.  Both run on
+ * the hedge threads, so the caller only waits for whichever gives the
+ * first definite answer.  A leg is expected to look after its own
+ * connection: one still running when the other has answered is left
+ * behind and gives its connection back once it is done, and one that has
+ * not started by then is never run.  Guarded by itself.
+ */
+public class CosignHedgedRequest {
+
+  // Maximum number of legs running at once across all requests
+  private static final int HEDGE_THREADS = 64;
+
+  // Runs the legs of hedged requests
+  private static final ThreadPoolExecutor legExecutor = createLegExecutor();
+
+  // Starts the second legs once the hedge delay has passed
+  private static final ScheduledThreadPoolExecutor hedgeTimer = createHedgeTimer();
+
+  private final Callable firstLeg;
+  private final Callable secondLeg;
+
+  // The first definite response, if any
+  private Object response = null;
+
+  // The last server retry response, if any
+  private Object serverErrorResponse = null;
+
+  private int legsDone = 0;
+  private boolean secondStarted = false;
+  private boolean abandoned = false;
+
+  /**
+   * Constructor for CosignHedgedRequest.
+   * @param firstLeg    Sends the request to the first server and returns its
+   *                      reply line or parsed reply, or null if it could
+   *                      not be sent
+   * @param secondLeg   Sends the request to the second server
+   */
+  public CosignHedgedRequest( Callable firstLeg, Callable secondLeg ) {
+    this.firstLeg = firstLeg;
+    this.secondLeg = secondLeg;
+  }
+
+  /**
+   * This method runs both legs and waits for the first definite response.
+   * If the hedge threads are all busy, the first leg is run on the calling
+   * thread and a second leg that cannot get a thread either is skipped.
+   * @param hedgeDelayMillis  How long to give the first leg before starting the second
+   * @param deadline          The time to give up waiting at
+   * @return  The first definite response, or null if neither leg gave one
+   *            by the deadline
+   */
+  public Object execute( long hedgeDelayMillis, long deadline ) {
+    ScheduledFuture hedge = hedgeTimer.schedule( new Runnable() {
+      public void run() {
+        startSecond();
+      }
+    }, hedgeDelayMillis, TimeUnit.MILLISECONDS );
+
+    try {
+      legExecutor.execute( new Leg( firstLeg ) );
+    } catch ( RejectedExecutionException ree ) {
+      new Leg( firstLeg ).run();
+    }
+
+    synchronized ( this ) {
+      try {
+        while ( ( response == null ) && ( legsDone < 2 ) ) {
+          long remaining = deadline - System.currentTimeMillis();
+          if ( remaining <= 0 ) {
+            break;
+          }
+          wait( remaining );
+        }
+      } catch ( InterruptedException ie ) {
+        Thread.currentThread().interrupt();
+      } finally {
+        abandoned = true;
+        hedge.cancel( false );
+      }
+      return response;
+    }
+  }
+
+  /**
+   * This method returns the last server retry response given by either leg.
+   */
+  public synchronized Object getServerErrorResponse() {
+    return serverErrorResponse;
+  }
+
+  /**
+   * This method starts the second leg unless it has already been started
+   * or is no longer needed.
+   */
+  private void startSecond() {
+    synchronized ( this ) {
+      if ( secondStarted ) {
+        return;
+      }
+      secondStarted = true;
+    }
+    try {
+      legExecutor.execute( new Leg( secondLeg ) );
+    } catch ( RejectedExecutionException ree ) {
+      legFinished( null );
+    }
+  }
+
+  /**
+   * This method records the response of a leg and wakes the caller.  A leg
+   * that gave no definite answer starts the second leg straight away.
+   */
+  private void legFinished( Object cosignResponse ) {
+    int cosignCode = CosignConnection.getResponseCode( cosignResponse );
+    boolean definite = ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
+                       ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED );
+    synchronized ( this ) {
+      if ( definite && ( response == null ) ) {
+        response = cosignResponse;
+      } else if ( cosignCode == CosignConnection.COSIGN_SERVER_RETRY ) {
+        serverErrorResponse = cosignResponse;
+      }
+      legsDone++;
+      notifyAll();
+    }
+    if ( !definite ) {
+      startSecond();
+    }
+  }
+
+  /**
+   * This method creates the executor used to run the legs.  It never runs
+   * more than HEDGE_THREADS legs at once and queues none.
+   */
+  private static ThreadPoolExecutor createLegExecutor() {
+    return new ThreadPoolExecutor( 0, HEDGE_THREADS, 60, TimeUnit.SECONDS,
+                                   new SynchronousQueue(), new HedgeThreadFactory( "CosignHedge-" ) );
+  }
+
+  /**
+   * This method creates the timer used to start the second legs.
+   */
+  private static ScheduledThreadPoolExecutor createHedgeTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor( 1, new HedgeThreadFactory( "CosignHedgeTimer-" ) );
+    timer.setRemoveOnCancelPolicy( true );
+    return timer;
+  }
+
+  /**
+   * A single leg, skipped if the request no longer needs it.
+   */
+  private class Leg implements Runnable {
+
+    private final Callable leg;
+
+    Leg( Callable leg ) {
+      this.leg = leg;
+    }
+
+    public void run() {
+      synchronized ( CosignHedgedRequest.this ) {
+        if ( abandoned || ( response != null ) ) {
+          legsDone++;
+          CosignHedgedRequest.this.notifyAll();
+          return;
+        }
+      }
+      Object cosignResponse = null;
+      try {
+        cosignResponse = leg.call();
+      } catch ( Exception e ) {
+        cosignResponse = null;
+      }
+      legFinished( cosignResponse );
+    }
+
+  }
+
+  /**
+   * Creates the daemon threads of the hedge executors.
+   */
+  private static class HedgeThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private int threadId = 0;
+
+    HedgeThreadFactory( String prefix ) {
+      this.prefix = prefix;
+    }
+
+    public synchronized Thread newThread( Runnable runnable ) {
+      Thread thread = new Thread( runnable, prefix + ( threadId++ ) );
+      thread.setDaemon( true );
+      return thread;
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
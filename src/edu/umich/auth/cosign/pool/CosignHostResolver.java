@@ -0,0 +1,213 @@
+package edu.umich.auth.cosign.pool;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.KeyedObjectPool;
+
+import edu.umich.auth.cosign.CosignConfig;
+import edu.umich.auth.cosign.CosignServer;
+
+/**
+ * This class looks the cosign server host name up again every
+ * CosignServerHostIpCheck minutes from a background thread, so that
+ * request threads never wait for DNS.  When the set of addresses changes,
+ * a connection to each added address is opened straight away and the
+ * removed addresses are drained: their idle connections are closed, busy
+ * ones are closed when they are given back, and pipelined connections are
+ * closed, and the health checker stops probing them, once the commands
+ * already sent on them have had time to finish.
+ *
+ * @see edu.umich.auth.cosign.CosignServer#refreshHostAddresses()
+ */
+public class CosignHostResolver {
+
+  // Shortest interval between two lookups
+  private static final long MIN_INTERVAL_MILLIS = 60000;
+
+  // The cosign server whose host name is looked up
+  private final CosignServer cosignServer;
+
+  // The pool of CosignConnections keyed by host address
+  private final KeyedObjectPool connectionPool;
+
+  // Shared pipelined connections, null if pipelining is disabled
+  private final CosignPipeline pipeline;
+
+  // Probes failed addresses, told to forget the removed ones
+  private final CosignHealthChecker healthChecker;
+
+  // The id used to label log messages
+  private final String resolverId;
+
+  // Runs the lookups and drains
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignHostResolver.class );
+
+  /**
+   * Constructor for CosignHostResolver.  The first lookup runs one interval
+   * from now, the cosign server having just looked its addresses up.
+   * @param poolId            The id of the owning CosignConnectionPool
+   * @param cosignServer      The cosign server whose host name is looked up
+   * @param connectionPool    The pool of CosignConnections keyed by host address
+   * @param pipeline          The shared pipelined connections, or null
+   * @param healthChecker     The health checker of the owning pool
+   */
+  public CosignHostResolver( int poolId, CosignServer cosignServer, KeyedObjectPool connectionPool, CosignPipeline pipeline, CosignHealthChecker healthChecker ) {
+    this.resolverId = poolId + ":resolver";
+    this.cosignServer = cosignServer;
+    this.connectionPool = connectionPool;
+    this.pipeline = pipeline;
+    this.healthChecker = healthChecker;
+    this.scheduler = new ScheduledThreadPoolExecutor( 1, new ThreadFactory() {
+      public Thread newThread( Runnable runnable ) {
+        Thread thread = new Thread( runnable, "CosignHostResolver-" + resolverId );
+        thread.setDaemon( true );
+        return thread;
+      }
+    });
+
+    long intervalMillis = getIntervalMillis();
+    scheduler.scheduleWithFixedDelay( new Runnable() {
+      public void run() {
+        resolve();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * This method stops all lookups.  Connections still waiting to be
+   * drained are closed along with the pool.
+   */
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Looks the host name up and reconciles the connections with the
+   * addresses found.
+   */
+  void resolve() {
+    String[] oldAddrs = cosignServer.getHostAddresses();
+    String[] newAddrs;
+    try {
+      newAddrs = cosignServer.refreshHostAddresses();
+    } catch ( Exception e ) {
+      if ( log.isWarnEnabled() ) {
+        log.warn( "[" + resolverId + "]: failed to resolve " + cosignServer.getHost() + ", keeping the current addresses", e );
+      }
+      return;
+    }
+
+    Set oldSet = toSet( oldAddrs );
+    Set newSet = toSet( newAddrs );
+    for ( int idx = 0; idx < newAddrs.length; idx++ ) {
+      if ( !oldSet.contains( newAddrs[idx] ) ) {
+        added( newAddrs[idx] );
+      }
+    }
+    for ( int idx = 0; idx < oldAddrs.length; idx++ ) {
+      if ( !newSet.contains( oldAddrs[idx] ) ) {
+        removed( oldAddrs[idx] );
+      }
+    }
+  }
+
+  /**
+   * Opens a connection to a new address so that the first request to it
+   * does not pay for the handshake.
+   */
+  private void added( String hostAddr ) {
+    if ( log.isInfoEnabled() ) {
+      log.info( "[" + resolverId + "]: " + cosignServer.getHost() + " now resolves to " + hostAddr );
+    }
+    try {
+      connectionPool.addObject( hostAddr );
+    } catch ( Exception e ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + resolverId + "]: unable to establish connection: " + hostAddr, e );
+      }
+    }
+  }
+
+  /**
+   * Drains an address that is no longer in DNS.  Requests already using it
+   * are left to finish.
+   */
+  private void removed( final String hostAddr ) {
+    if ( log.isInfoEnabled() ) {
+      log.info( "[" + resolverId + "]: " + cosignServer.getHost() + " no longer resolves to " + hostAddr + ", draining" );
+    }
+    drain( hostAddr );
+
+    // Pipelined connections, and connections borrowed before the lookup,
+    // are closed once their commands have had time to finish
+    try {
+      scheduler.schedule( new Runnable() {
+        public void run() {
+          if ( !cosignServer.hasHostAddress( hostAddr ) ) {
+            drain( hostAddr );
+            if ( pipeline != null ) {
+              pipeline.closeHost( hostAddr );
+            }
+            healthChecker.forget( hostAddr );
+          }
+        }
+      }, CosignConnection.RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+    } catch ( Exception e ) {
+      // The resolver was closed in the meantime
+    }
+  }
+
+  /**
+   * Closes the idle connections to the given address.
+   */
+  private void drain( String hostAddr ) {
+    try {
+      connectionPool.clear( hostAddr );
+    } catch ( Exception e ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + resolverId + "]: failed to close idle connections to " + hostAddr, e );
+      }
+    }
+  }
+
+  private static Set toSet( String[] hostAddrs ) {
+    Set set = new HashSet();
+    for ( int idx = 0; idx < hostAddrs.length; idx++ ) {
+      set.add( hostAddrs[idx] );
+    }
+    return set;
+  }
+
+  private static long getIntervalMillis() {
+    return Math.max( MIN_INTERVAL_MILLIS, CosignConfig.INSTANCE.getSnapshot().getHostIpCheckMillis() );
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
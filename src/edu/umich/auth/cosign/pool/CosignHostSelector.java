@@ -0,0 +1,227 @@
+package edu.umich.auth.cosign.pool;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.umich.auth.cosign.CosignConfig;
+
+/**
+ * This class decides in which order the addresses of the cosignd server
+ * are tried.  For every address it keeps an exponentially weighted moving
+ * average of the command latency and of the error rate, and the number of
+ * commands currently outstanding.  CosignHostSelection picks the policy:
+ * <ul>
+ * <li><code>ordered</code> (the default) tries the addresses in DNS order,</li>
+ * <li><code>p2c</code> picks two addresses at random and tries the one with
+ *   the lower expected cost first,</li>
+ * <li><code>leastOutstanding</code> tries the address with the fewest
+ *   outstanding commands first, breaking ties by expected cost.</li>
+ * </ul>
+ * With <code>p2c</code> the remaining addresses keep their DNS order, so
+ * failover stays predictable.  Addresses without any samples yet have no
+ * cost, which makes sure every address gets tried.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignConnectionList
+ */
+public class CosignHostSelector {
+
+  // Selection policies
+  public static final String ORDERED = "ordered";
+  public static final String POWER_OF_TWO_CHOICES = "p2c";
+  public static final String LEAST_OUTSTANDING = "leastOutstanding";
+
+  // Weight of the newest sample in the moving averages
+  private static final double EWMA_WEIGHT = 0.2;
+
+  // Expected extra cost of a command to an address that always fails
+  private static final double ERROR_PENALTY_MILLIS = 1000;
+
+  // Statistics of every address that has been used, keyed by host address
+  private final ConcurrentHashMap hosts = new ConcurrentHashMap();
+
+  private final Random random = new Random();
+
+  /**
+   * This method returns the order in which the given addresses should be
+   * tried, as indexes into the array.
+   */
+  public int[] order( String[] hostAddrs ) {
+    int[] order = new int[hostAddrs.length];
+    for (int hostIdx=0; hostIdx<order.length; hostIdx++) {
+      order[hostIdx] = hostIdx;
+    }
+    if ( order.length < 2 ) {
+      return order;
+    }
+
+    String policy = CosignConfig.INSTANCE.getSnapshot().getHostSelection();
+    if ( POWER_OF_TWO_CHOICES.equalsIgnoreCase( policy ) ) {
+      int first = random.nextInt( order.length );
+      int second = random.nextInt( order.length - 1 );
+      if ( second >= first ) {
+        second++;
+      }
+      int chosen = ( getCost( hostAddrs[second] ) < getCost( hostAddrs[first] ) ) ? second : first;
+
+      // Move the chosen address to the front, keeping the others in order
+      System.arraycopy( order, 0, order, 1, chosen );
+      order[0] = chosen;
+
+    } else if ( LEAST_OUTSTANDING.equalsIgnoreCase( policy ) ) {
+      int[] outstanding = new int[order.length];
+      double[] costs = new double[order.length];
+      for (int hostIdx=0; hostIdx<order.length; hostIdx++) {
+        HostStats stats = (HostStats)hosts.get( hostAddrs[hostIdx] );
+        outstanding[hostIdx] = ( stats == null ) ? 0 : stats.getOutstanding();
+        costs[hostIdx] = ( stats == null ) ? 0 : stats.getCost();
+      }
+
+      // Insertion sort; there are only ever a handful of addresses
+      for (int idx=1; idx<order.length; idx++) {
+        int hostIdx = order[idx];
+        int pos = idx;
+        while ( ( pos > 0 ) && isBetter( hostIdx, order[pos - 1], outstanding, costs ) ) {
+          order[pos] = order[pos - 1];
+          pos--;
+        }
+        order[pos] = hostIdx;
+      }
+    }
+    return order;
+  }
+
+  /**
+   * This method records that a command is being sent to the given address.
+   * Every call must be followed by a call to <code>requestFinished</code>.
+   */
+  public void requestStarted( String hostAddr ) {
+    getStats( hostAddr ).started();
+  }
+
+  /**
+   * This method records the outcome of a command sent to the given address.
+   * @param elapsedMillis   How long the command took
+   * @param failed          True if the address did not give a definite answer
+   */
+  public void requestFinished( String hostAddr, long elapsedMillis, boolean failed ) {
+    getStats( hostAddr ).finished( elapsedMillis, failed );
+  }
+
+  /**
+   * This method returns the average latency of the given address in
+   * milliseconds, or 0 if it has not been used yet.
+   */
+  public double getLatencyMillis( String hostAddr ) {
+    HostStats stats = (HostStats)hosts.get( hostAddr );
+    return ( stats == null ) ? 0 : stats.getLatencyMillis();
+  }
+
+  /**
+   * This method returns the recent share of failed commands to the given
+   * address, between 0 and 1.
+   */
+  public double getErrorRate( String hostAddr ) {
+    HostStats stats = (HostStats)hosts.get( hostAddr );
+    return ( stats == null ) ? 0 : stats.getErrorRate();
+  }
+
+  /**
+   * This method returns the number of commands currently outstanding to
+   * the given address.
+   */
+  public int getOutstanding( String hostAddr ) {
+    HostStats stats = (HostStats)hosts.get( hostAddr );
+    return ( stats == null ) ? 0 : stats.getOutstanding();
+  }
+
+  private double getCost( String hostAddr ) {
+    HostStats stats = (HostStats)hosts.get( hostAddr );
+    return ( stats == null ) ? 0 : stats.getCost();
+  }
+
+  private static boolean isBetter( int hostIdx, int otherIdx, int[] outstanding, double[] costs ) {
+    if ( outstanding[hostIdx] != outstanding[otherIdx] ) {
+      return outstanding[hostIdx] < outstanding[otherIdx];
+    }
+    return costs[hostIdx] < costs[otherIdx];
+  }
+
+  private HostStats getStats( String hostAddr ) {
+    HostStats stats = (HostStats)hosts.get( hostAddr );
+    if ( stats == null ) {
+      HostStats existing = (HostStats)hosts.putIfAbsent( hostAddr, stats = new HostStats() );
+      if ( existing != null ) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * The statistics of a single address.
+   */
+  private static class HostStats {
+
+    private double latencyMillis = 0;
+    private double errorRate = 0;
+    private boolean sampled = false;
+    private int outstanding = 0;
+
+    synchronized void started() {
+      outstanding++;
+    }
+
+    synchronized void finished( long elapsedMillis, boolean failed ) {
+      outstanding--;
+      if ( !sampled ) {
+        latencyMillis = elapsedMillis;
+        errorRate = failed ? 1 : 0;
+        sampled = true;
+        return;
+      }
+      latencyMillis += EWMA_WEIGHT * ( elapsedMillis - latencyMillis );
+      errorRate += EWMA_WEIGHT * ( ( failed ? 1 : 0 ) - errorRate );
+    }
+
+    synchronized double getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    synchronized double getErrorRate() {
+      return errorRate;
+    }
+
+    synchronized int getOutstanding() {
+      return outstanding;
+    }
+
+    /**
+     * The expected time a new command would take: the average latency
+     * scaled by the queue in front of it, plus a penalty for errors.
+     */
+    synchronized double getCost() {
+      return latencyMillis * ( outstanding + 1 ) + errorRate * ERROR_PENALTY_MILLIS;
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,133 @@
+package edu.umich.auth.cosign.pool;
+
+import javax.security.auth.Subject;
+
+import edu.umich.auth.cosign.CosignPrincipal;
+
+/**
+ * This class describes the cosignd commands one login needs: a CHECK of
+ * the service cookie, unless the principal is already known, followed by
+ * RETR tgt and/or RETR cookies.  The whole transaction runs on a single
+ * connection of a single borrowed <code>CosignConnectionList</code>, with
+ * the commands written back to back, and the replies are stored here.
+ * @see edu.umich.auth.cosign.pool.CosignConnectionList#login(CosignLoginTransaction)
+ */
+public class CosignLoginTransaction {
+
+  private final String serviceName;
+  private final String cookie;
+  private final Subject subject;
+  private final boolean getTicket;
+  private final boolean getProxies;
+
+  // The principal of the cookie: given, or parsed from the CHECK reply
+  private CosignPrincipal principal;
+
+  private CosignCodec.Reply checkResponse = null;
+  private String ticketResponse = null;
+  private String proxyResponse = null;
+
+  /**
+   * Constructor for CosignLoginTransaction.
+   * @param serviceName   The cosign service name e.g. cosign-wolverineaccess
+   * @param cookie        The nonce of the service cookie
+   * @param subject       The subject the credentials are added to
+   * @param principal     The principal of the cookie, or null to CHECK it
+   * @param getTicket     Whether to retrieve the Kerberos tgt
+   * @param getProxies    Whether to retrieve the proxy cookies
+   */
+  public CosignLoginTransaction( String serviceName, String cookie, Subject subject,
+                                 CosignPrincipal principal, boolean getTicket, boolean getProxies ) {
+    this.serviceName = serviceName;
+    this.cookie = cookie;
+    this.subject = subject;
+    this.principal = principal;
+    this.getTicket = getTicket;
+    this.getProxies = getProxies;
+  }
+
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  public String getCookie() {
+    return cookie;
+  }
+
+  public Subject getSubject() {
+    return subject;
+  }
+
+  public boolean isGetTicket() {
+    return getTicket;
+  }
+
+  public boolean isGetProxies() {
+    return getProxies;
+  }
+
+  /**
+   * This method returns the principal of the cookie, or null if the CHECK
+   * did not authenticate the user.
+   */
+  public CosignPrincipal getPrincipal() {
+    return principal;
+  }
+
+  /**
+   * This method returns the parsed reply to CHECK, or null if none was sent.
+   */
+  public CosignCodec.Reply getCheckResponse() {
+    return checkResponse;
+  }
+
+  /**
+   * This method returns the reply to RETR tgt, or null if it was not sent.
+   */
+  public String getTicketResponse() {
+    return ticketResponse;
+  }
+
+  /**
+   * This method returns the reply to RETR cookies, or null if it was not sent.
+   */
+  public String getProxyResponse() {
+    return proxyResponse;
+  }
+
+  void setPrincipal( CosignPrincipal principal ) {
+    this.principal = principal;
+  }
+
+  void setCheckResponse( CosignCodec.Reply checkResponse ) {
+    this.checkResponse = checkResponse;
+  }
+
+  void setTicketResponse( String ticketResponse ) {
+    this.ticketResponse = ticketResponse;
+  }
+
+  void setProxyResponse( String proxyResponse ) {
+    this.proxyResponse = proxyResponse;
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,894 @@
+package edu.umich.auth.cosign.pool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class is the non-blocking counterpart of the socket owned by
+ * <code>CosignConnection</code>.  It opens a <code>SocketChannel</code> to the
+ * cosign server, reads the banner, issues STARTTLS and then drives an
+ * <code>SSLEngine</code> from one of the <code>CosignNioSelector</code> I/O
+ * threads.  Callers submit commands and wait on the returned
+ * <code>CosignNioRequest</code>; replies are matched to requests in the
+ * order the commands were written.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignNioSelector
+ * @see edu.umich.auth.cosign.pool.CosignConnection
+ */
+public class CosignNioConnection {
+
+  // Connection states
+  private static final int STATE_CONNECTING = 0;
+  private static final int STATE_BANNER = 1;
+  private static final int STATE_STARTTLS = 2;
+  private static final int STATE_HANDSHAKE = 3;
+  private static final int STATE_SSLCONNECT = 4;
+  private static final int STATE_READY = 5;
+  private static final int STATE_CLOSED = 6;
+
+  // Initial size of the network buffers; grown to the SSL packet size later
+  private static final int INITIAL_BUFFER_SIZE = 17 * 1024;
+
+  // The unique pool Id and ip addr
+  private final String cosignConId;
+
+  // The host addr of the cosign server
+  private final String hostAddr;
+
+  // The port number of the cosign server
+  private final int port;
+
+  // The non-blocking channel to the cosign server
+  private final SocketChannel channel;
+
+  // The I/O thread that owns this connection
+  private CosignNioSelector.IoLoop ioLoop;
+
+  // The key of the channel within the I/O thread's selector
+  private SelectionKey selectionKey;
+
+  // The SSL engine, created once STARTTLS has been accepted
+  private SSLEngine engine;
+
+  // When the SSL handshake was started
+  private long handshakeStartMillis;
+
+  // Current state of the connection (guarded by this)
+  private int state = STATE_CONNECTING;
+
+  // The reason the connection was closed, if it failed
+  private IOException failure;
+
+  // Protocol version announced in the banner
+  private float protVersion;
+
+  // Raw bytes read from / written to the channel
+  private ByteBuffer netIn = ByteBuffer.allocate( INITIAL_BUFFER_SIZE );
+  private ByteBuffer netOut = ByteBuffer.allocate( INITIAL_BUFFER_SIZE );
+
+  // Decrypted application bytes read from / to be written to the engine
+  private ByteBuffer appIn = ByteBuffer.allocate( INITIAL_BUFFER_SIZE );
+  private ByteBuffer appOut = ByteBuffer.allocate( INITIAL_BUFFER_SIZE );
+
+  // Reads the banner, STARTTLS and SSLCONNECT lines before the connection is ready
+  private LineReply setupReply = new LineReply();
+
+  // Requests that have not been written yet (guarded by this)
+  private final LinkedList unsent = new LinkedList();
+
+  // Requests that have been written and are waiting for a reply (guarded by this)
+  private final LinkedList awaiting = new LinkedList();
+
+  // Flushes queued requests from the I/O thread
+  private final Runnable flushTask = new Runnable() {
+    public void run() {
+      try {
+        flushRequests();
+      } catch ( IOException ioe ) {
+        fail( ioe );
+      }
+    }
+  };
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignNioConnection.class );
+
+  /********************************************************************************
+   * This interface consumes the bytes of a single reply.  Implementations are
+   * only ever called from the connection's I/O thread.
+   ********************************************************************************/
+  public interface ReplyReader {
+
+    /**
+     * This method consumes as much of the given buffer as belongs to this
+     * reply.
+     * @return  True once the full reply has been consumed
+     */
+    boolean consume( ByteBuffer in ) throws IOException;
+
+    /**
+     * This method returns the parsed reply once <code>consume</code> has
+     * returned true.
+     */
+    Object getResult();
+
+  }
+
+  /**
+   * Constructor for CosignNioConnection.  The connection is opened
+   * asynchronously; use <code>awaitReady</code> to wait for the banner,
+   * STARTTLS and SSL handshake to finish.
+   * @param cosignConListId   The id of the owning connection list
+   * @param hostAddr          Cosign Server IP address
+   * @param port              Cosign Server port
+   */
+  public CosignNioConnection( String cosignConListId, String hostAddr, int port ) throws IOException {
+    this.cosignConId = cosignConListId + ":" + hostAddr + ":" + port + ":nio";
+    this.hostAddr = hostAddr;
+    this.port = port;
+
+    this.channel = SocketChannel.open();
+    try {
+      channel.configureBlocking( false );
+      channel.connect( new InetSocketAddress( hostAddr, port ) );
+    } catch ( IOException ioe ) {
+      channel.close();
+      throw ioe;
+    }
+    CosignNioSelector.INSTANCE.register( this );
+  }
+
+  /**
+   * This methods returns the cosign connection ID
+   */
+  public String getCosignConId() {
+    return cosignConId;
+  }
+
+  /**
+   * This method returns the host IP address
+   */
+  public String getHostAddress() {
+    return hostAddr;
+  }
+
+  /**
+   * This method retuns the connection protocol version
+   */
+  public synchronized float getProtVersion() {
+    return protVersion;
+  }
+
+  /**
+   * This method returns true if the connection has not been closed.
+   */
+  public synchronized boolean isOpen() {
+    return state != STATE_CLOSED;
+  }
+
+  /**
+   * This method returns the number of commands submitted on this
+   * connection that have not been answered yet.
+   */
+  public synchronized int getOutstanding() {
+    return unsent.size() + awaiting.size();
+  }
+
+  /**
+   * This method returns the number of unanswered commands on this
+   * connection whose callers have given up waiting for the reply.
+   */
+  public synchronized int getTimedOut() {
+    int timedOut = 0;
+    for ( Iterator iter = awaiting.iterator(); iter.hasNext(); ) {
+      if ( ((CosignNioRequest)iter.next()).isTimedOut() ) {
+        timedOut++;
+      }
+    }
+    for ( Iterator iter = unsent.iterator(); iter.hasNext(); ) {
+      if ( ((CosignNioRequest)iter.next()).isTimedOut() ) {
+        timedOut++;
+      }
+    }
+    return timedOut;
+  }
+
+  /**
+   * This method returns when the oldest unanswered command on this
+   * connection was submitted, or 0 if every command has been answered.
+   */
+  public synchronized long getOldestSubmitMillis() {
+    if ( !awaiting.isEmpty() ) {
+      return ((CosignNioRequest)awaiting.getFirst()).getSubmitMillis();
+    }
+    if ( !unsent.isEmpty() ) {
+      return ((CosignNioRequest)unsent.getFirst()).getSubmitMillis();
+    }
+    return 0;
+  }
+
+  /**
+   * This method blocks until the banner, STARTTLS and SSL handshake have
+   * completed.
+   * @throws IOException  If the connection failed or did not become ready in time
+   */
+  public synchronized void awaitReady( long timeoutMillis ) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while ( state != STATE_READY ) {
+      if ( state == STATE_CLOSED ) {
+        throw ( failure != null ) ? failure : new IOException( "[" + cosignConId + "]: connection closed" );
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if ( remaining <= 0 ) {
+        throw new IOException( "[" + cosignConId + "]: timed out while connecting" );
+      }
+      try {
+        wait( remaining );
+      } catch ( InterruptedException ie ) {
+        throw new IOException( "[" + cosignConId + "]: interrupted while connecting" );
+      }
+    }
+  }
+
+  /**
+   * This method queues the given command to be written to the cosign server.
+   * Commands may be submitted before the connection is ready; they are
+   * written, in order, once the handshake completes.
+   * @param command   The command line, without a line terminator
+   * @param reader    The reader that knows how the reply is framed
+   * @return  The request to wait on for the reply
+   */
+  public CosignNioRequest submit( String command, ReplyReader reader ) {
+    CosignNioRequest request = new CosignNioRequest( command, reader );
+    synchronized ( this ) {
+      if ( state == STATE_CLOSED ) {
+        request.fail( ( failure != null ) ? failure : new IOException( "[" + cosignConId + "]: connection closed" ) );
+        return request;
+      }
+      unsent.addLast( request );
+    }
+    ioLoop.execute( flushTask );
+    return request;
+  }
+
+  /**
+   * This method hard closes the connection.  Any requests still waiting for
+   * a reply are failed.
+   */
+  public void close() {
+    if ( log.isDebugEnabled() ) {
+      log.debug( "[" + cosignConId + "]: hard closing cosign connection" );
+    }
+    fail( new IOException( "[" + cosignConId + "]: connection closed" ) );
+  }
+
+  /**
+   * Called by CosignNioSelector before the channel is registered.
+   */
+  void setIoLoop( CosignNioSelector.IoLoop ioLoop ) {
+    this.ioLoop = ioLoop;
+  }
+
+  /**
+   * Registers the channel with the given selector.  Runs on the I/O thread.
+   */
+  void register( Selector selector ) {
+    try {
+      if ( channel.isConnected() ) {
+        selectionKey = channel.register( selector, SelectionKey.OP_READ, this );
+        setState( STATE_BANNER );
+      } else {
+        selectionKey = channel.register( selector, SelectionKey.OP_CONNECT, this );
+      }
+    } catch ( IOException ioe ) {
+      fail( ioe );
+    }
+  }
+
+  /**
+   * Called by the I/O thread whenever the channel is ready.
+   */
+  void handleReady( SelectionKey key ) {
+    try {
+      if ( key.isConnectable() ) {
+        if ( !channel.finishConnect() ) {
+          return;
+        }
+        key.interestOps( SelectionKey.OP_READ );
+        setState( STATE_BANNER );
+        return;
+      }
+      if ( key.isWritable() ) {
+        writeNet();
+        if ( getState() == STATE_HANDSHAKE ) {
+          doHandshake();
+        }
+      }
+      if ( key.isReadable() ) {
+        handleReadable();
+      }
+    } catch ( IOException ioe ) {
+      fail( ioe );
+    } catch ( RuntimeException re ) {
+      fail( new IOException( "[" + cosignConId + "]: " + re ) );
+    }
+  }
+
+  /**
+   * Reads whatever is available from the channel and processes it according
+   * to the current state.
+   */
+  private void handleReadable() throws IOException {
+    if ( channel.read( netIn ) < 0 ) {
+      throw new EOFException( "[" + cosignConId + "]: connection closed by cosign server" );
+    }
+
+    int currentState = getState();
+    if ( currentState == STATE_BANNER || currentState == STATE_STARTTLS ) {
+      netIn.flip();
+      try {
+        processPlaintext();
+      } finally {
+        netIn.compact();
+      }
+      currentState = getState();
+      if ( currentState == STATE_HANDSHAKE ) {
+        // Now that the engine exists, make sure the buffers can hold a full SSL record
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int appSize = engine.getSession().getApplicationBufferSize();
+        netIn = ensureCapacity( netIn, packetSize );
+        netOut = ensureCapacity( netOut, packetSize );
+        appIn = ensureCapacity( appIn, appSize );
+        appOut = ensureCapacity( appOut, appSize );
+      }
+    }
+
+    if ( currentState == STATE_HANDSHAKE ) {
+      doHandshake();
+    } else if ( currentState == STATE_SSLCONNECT || currentState == STATE_READY ) {
+      unwrapInbound();
+      processApplicationData();
+    }
+  }
+
+  /**
+   * Handles the banner and the STARTTLS reply, which are sent in the clear.
+   */
+  private void processPlaintext() throws IOException {
+    while ( netIn.hasRemaining() ) {
+      if ( !setupReply.consume( netIn ) ) {
+        return;
+      }
+      String response = (String)setupReply.getResult();
+      setupReply = new LineReply();
+
+      if ( getState() == STATE_BANNER ) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "[" + cosignConId + "]: result: " + response );
+        }
+        float version = parseProtVersion( response );
+        synchronized ( this ) {
+          protVersion = version;
+        }
+        byte[] startTls = ( ( version >= (float)2.0 ) ? "STARTTLS 2\r\n" : "STARTTLS\r\n" ).getBytes();
+        netOut.put( startTls );
+        setState( STATE_STARTTLS );
+        writeNet();
+
+      } else {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "[" + cosignConId + "]: result STARTTLS: " + response );
+        }
+        handshakeStartMillis = System.currentTimeMillis();
+        engine = CosignSSLSocketFactory.INSTANCE.createSSLEngine( hostAddr, port );
+        engine.beginHandshake();
+        setState( STATE_HANDSHAKE );
+
+        // Anything left in netIn already belongs to the TLS stream
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drives the SSL handshake as far as the available data allows.
+   */
+  private void doHandshake() throws IOException {
+    while ( true ) {
+      SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+      if ( status == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+        runDelegatedTasks();
+
+      } else if ( status == SSLEngineResult.HandshakeStatus.NEED_WRAP ) {
+        appOut.flip();
+        SSLEngineResult result;
+        try {
+          result = engine.wrap( appOut, netOut );
+        } finally {
+          appOut.compact();
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+          netOut = enlarge( netOut, engine.getSession().getPacketBufferSize() );
+          continue;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+          throw new SSLException( "[" + cosignConId + "]: SSL engine closed during handshake" );
+        }
+        if ( !writeNet() ) {
+          // Wait for the channel to become writable again
+          return;
+        }
+
+      } else if ( status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP ) {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+          result = engine.unwrap( netIn, appIn );
+        } finally {
+          netIn.compact();
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW ) {
+          netIn = ensureCapacity( netIn, engine.getSession().getPacketBufferSize() );
+          return;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+          appIn = enlarge( appIn, engine.getSession().getApplicationBufferSize() );
+          continue;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+          throw new SSLException( "[" + cosignConId + "]: SSL engine closed during handshake" );
+        }
+
+      } else {
+        handshakeFinished();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Called once the SSL handshake has completed.
+   */
+  private void handshakeFinished() throws IOException {
+    if ( log.isDebugEnabled() ) {
+      log.debug( "[" + cosignConId + "]: SSL handshake finished using " + engine.getSession().getCipherSuite() );
+    }
+    CosignSSLSocketFactory.INSTANCE.recordHandshake( engine.getSession(), handshakeStartMillis );
+    if ( getProtVersion() >= (float)2.0 ) {
+      // Version 2 servers send one more line once TLS is up
+      setState( STATE_SSLCONNECT );
+    } else {
+      becomeReady();
+    }
+
+    // The server may already have sent data behind the last handshake message
+    unwrapInbound();
+    processApplicationData();
+  }
+
+  /**
+   * Marks the connection as ready and writes any queued requests.
+   */
+  private void becomeReady() throws IOException {
+    setState( STATE_READY );
+    flushRequests();
+  }
+
+  /**
+   * Decrypts everything available in netIn into appIn.
+   */
+  private void unwrapInbound() throws IOException {
+    netIn.flip();
+    try {
+      while ( netIn.hasRemaining() ) {
+        SSLEngineResult result = engine.unwrap( netIn, appIn );
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW ) {
+          break;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+          appIn = enlarge( appIn, engine.getSession().getApplicationBufferSize() );
+          continue;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+          throw new EOFException( "[" + cosignConId + "]: SSL session closed by cosign server" );
+        }
+        if ( result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+          runDelegatedTasks();
+        }
+        if ( result.bytesConsumed() == 0 && result.bytesProduced() == 0 ) {
+          break;
+        }
+      }
+    } finally {
+      netIn.compact();
+    }
+  }
+
+  /**
+   * Hands decrypted application bytes to the reply readers, in order.
+   */
+  private void processApplicationData() throws IOException {
+    appIn.flip();
+    try {
+      while ( appIn.hasRemaining() ) {
+        if ( getState() == STATE_SSLCONNECT ) {
+          if ( !setupReply.consume( appIn ) ) {
+            return;
+          }
+          if ( log.isDebugEnabled() ) {
+            log.debug( "[" + cosignConId + "]: result 2.0 or greater SSLCONNECT " + setupReply.getResult() );
+          }
+          becomeReady();
+          continue;
+        }
+
+        CosignNioRequest request;
+        synchronized ( this ) {
+          if ( awaiting.isEmpty() ) {
+            throw new IOException( "[" + cosignConId + "]: unexpected data from cosign server" );
+          }
+          request = (CosignNioRequest)awaiting.getFirst();
+        }
+        if ( !request.getReader().consume( appIn ) ) {
+          return;
+        }
+        synchronized ( this ) {
+          awaiting.removeFirst();
+        }
+        request.complete();
+      }
+    } finally {
+      appIn.compact();
+    }
+  }
+
+  /**
+   * Encrypts and writes every queued request.  Runs on the I/O thread.
+   */
+  private void flushRequests() throws IOException {
+    if ( getState() != STATE_READY ) {
+      return;
+    }
+    while ( true ) {
+      CosignNioRequest request;
+      synchronized ( this ) {
+        if ( unsent.isEmpty() ) {
+          break;
+        }
+        request = (CosignNioRequest)unsent.removeFirst();
+        awaiting.addLast( request );
+      }
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + cosignConId + "] " + request.getCommand() );
+      }
+      byte[] bytes = request.getCommandBytes();
+      if ( appOut.remaining() < bytes.length ) {
+        wrapOutbound();
+        appOut = ensureCapacity( appOut, appOut.position() + bytes.length );
+      }
+      appOut.put( bytes );
+    }
+    wrapOutbound();
+    writeNet();
+  }
+
+  /**
+   * Encrypts everything in appOut into netOut.
+   */
+  private void wrapOutbound() throws IOException {
+    appOut.flip();
+    try {
+      while ( appOut.hasRemaining() ) {
+        SSLEngineResult result = engine.wrap( appOut, netOut );
+        if ( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW ) {
+          netOut = enlarge( netOut, engine.getSession().getPacketBufferSize() );
+          continue;
+        }
+        if ( result.getStatus() == SSLEngineResult.Status.CLOSED ) {
+          throw new EOFException( "[" + cosignConId + "]: SSL session closed" );
+        }
+      }
+    } finally {
+      appOut.compact();
+    }
+  }
+
+  /**
+   * Writes as much of netOut as the channel accepts.
+   * @return  True if everything was written
+   */
+  private boolean writeNet() throws IOException {
+    netOut.flip();
+    try {
+      channel.write( netOut );
+    } finally {
+      netOut.compact();
+    }
+    boolean flushed = ( netOut.position() == 0 );
+    if ( selectionKey != null && selectionKey.isValid() ) {
+      selectionKey.interestOps( flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+    }
+    return flushed;
+  }
+
+  private void runDelegatedTasks() {
+    Runnable task;
+    while ( ( task = engine.getDelegatedTask() ) != null ) {
+      task.run();
+    }
+  }
+
+  /**
+   * Closes the channel and fails every request that has not been answered.
+   */
+  void fail( IOException ioe ) {
+    List failed = new ArrayList();
+    synchronized ( this ) {
+      if ( state == STATE_CLOSED ) {
+        return;
+      }
+      state = STATE_CLOSED;
+      failure = ioe;
+      failed.addAll( awaiting );
+      failed.addAll( unsent );
+      awaiting.clear();
+      unsent.clear();
+      notifyAll();
+    }
+
+    if ( log.isDebugEnabled() ) {
+      log.debug( "[" + cosignConId + "]: closing cosign connection", ioe );
+    }
+    try {
+      if ( selectionKey != null ) {
+        selectionKey.cancel();
+      }
+      channel.close();
+    } catch ( IOException e ) {
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + cosignConId + "]: failed to close CosignNioConnection!", e );
+      }
+    }
+    for ( int idx = 0; idx < failed.size(); idx++ ) {
+      ( (CosignNioRequest)failed.get( idx ) ).fail( ioe );
+    }
+  }
+
+  /**
+   * Returns the banner protocol version.
+   */
+  private static float parseProtVersion( String banner ) {
+    StringTokenizer tok = new StringTokenizer( banner );
+    if ( tok.countTokens() < 2 ) {
+      return (float)1.0;
+    }
+    tok.nextToken(); //the numeric results code
+    try {
+      return Float.parseFloat( tok.nextToken() );
+    } catch ( NumberFormatException ex ) {
+      return (float)1.0;
+    }
+  }
+
+  private synchronized int getState() {
+    return state;
+  }
+
+  private synchronized void setState( int newState ) {
+    if ( state == STATE_CLOSED ) {
+      return;
+    }
+    state = newState;
+    notifyAll();
+  }
+
+  /**
+   * Returns a buffer with at least the given capacity holding the same data.
+   * The buffer must be in write mode (as left by <code>compact</code>).
+   */
+  private static ByteBuffer ensureCapacity( ByteBuffer buffer, int minCapacity ) {
+    if ( buffer.capacity() >= minCapacity ) {
+      return buffer;
+    }
+    return enlarge( buffer, minCapacity - buffer.capacity() );
+  }
+
+  /**
+   * Returns a buffer <code>extra</code> bytes larger holding the same data.
+   * The buffer must be in write mode (as left by <code>compact</code>).
+   */
+  private static ByteBuffer enlarge( ByteBuffer buffer, int extra ) {
+    ByteBuffer bigger = ByteBuffer.allocate( buffer.capacity() + extra );
+    buffer.flip();
+    bigger.put( buffer );
+    return bigger;
+  }
+
+  /********************************************************************************
+   * Reads a single reply line, e.g. the reply to CHECK or NOOP.  The result
+   * is the line without its terminator.
+   ********************************************************************************/
+  public static class LineReply implements ReplyReader {
+
+    private final CosignCodec.Reply reply = new CosignCodec.Reply();
+    private String result = null;
+
+    public boolean consume( ByteBuffer in ) throws IOException {
+      while ( in.hasRemaining() ) {
+        byte b = in.get();
+        if ( b == '\n' ) {
+          reply.parse();
+          result = reply.toString();
+          return true;
+        }
+        if ( b != '\r' ) {
+          reply.append( b );
+        }
+      }
+      return false;
+    }
+
+    public Object getResult() {
+      return result;
+    }
+
+    /**
+     * This method returns the parsed reply line once <code>consume</code>
+     * has returned true.
+     */
+    public CosignCodec.Reply getReply() {
+      return reply;
+    }
+
+  }
+
+  public static class MultiLineReply implements ReplyReader {
+
+    private final List lines = new ArrayList();
+    private LineReply current = new LineReply();
+
+    public boolean consume( ByteBuffer in ) throws IOException {
+      while ( current.consume( in ) ) {
+        String line = (String)current.getResult();
+        lines.add( line );
+        current = new LineReply();
+        if ( line.length() < 4 || line.charAt( 3 ) != '-' ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public Object getResult() {
+      return lines;
+    }
+
+  }
+
+  /********************************************************************************
+   * Reads the reply to RETR tgt: a status line, a line holding the ticket
+   * size, the ticket bytes and a closing "." line.  The result is the
+   * status line; the ticket is available from <code>getTicket</code>.
+   ********************************************************************************/
+  public static class TicketReply implements ReplyReader {
+
+    private static final int READ_STATUS = 0;
+    private static final int READ_SIZE = 1;
+    private static final int READ_TICKET = 2;
+    private static final int READ_END = 3;
+
+    private int phase = READ_STATUS;
+    private LineReply current = new LineReply();
+    private String statusLine = null;
+    private byte[] ticket = null;
+    private int ticketRead = 0;
+
+    public boolean consume( ByteBuffer in ) throws IOException {
+      while ( true ) {
+        if ( phase == READ_TICKET ) {
+          int count = Math.min( in.remaining(), ticket.length - ticketRead );
+          in.get( ticket, ticketRead, count );
+          ticketRead += count;
+          if ( ticketRead < ticket.length ) {
+            return false;
+          }
+          phase = READ_END;
+          continue;
+        }
+
+        if ( !current.consume( in ) ) {
+          return false;
+        }
+        String line = (String)current.getResult();
+        current = new LineReply();
+
+        if ( phase == READ_STATUS ) {
+          statusLine = line;
+          if ( !line.startsWith( "240" ) ) {
+            // Error replies are a single line
+            return true;
+          }
+          phase = READ_SIZE;
+        } else if ( phase == READ_SIZE ) {
+          ticket = new byte[parseSize( line )];
+          phase = READ_TICKET;
+        } else if ( line.trim().equals( "." ) ) {
+          return true;
+        }
+      }
+    }
+
+    public Object getResult() {
+      return statusLine;
+    }
+
+    /**
+     * This method returns the ticket bytes, or null if the server did not
+     * send a ticket.
+     */
+    public byte[] getTicket() {
+      return ticket;
+    }
+
+    /**
+     * Returns the ticket size, which must be positive and no larger than
+     * CosignConnection.MAX_TICKET_SIZE since the ticket is buffered whole.
+     */
+    private static int parseSize( String line ) throws IOException {
+      int size;
+      try {
+        StringTokenizer tok = new StringTokenizer( line );
+        String token = tok.nextToken();
+        while ( tok.hasMoreTokens() ) {
+          token = tok.nextToken();
+        }
+        size = Integer.parseInt( token );
+      } catch ( Exception e ) {
+        throw new IOException( "Invalid ticket size from cosign server: " + line );
+      }
+      if ( size <= 0 || size > CosignConnection.MAX_TICKET_SIZE ) {
+        throw new IOException( "Invalid ticket size from cosign server: " + size );
+      }
+      return size;
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,167 @@
+package edu.umich.auth.cosign.pool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * This class represents a single command sent over a
+ * <code>CosignNioConnection</code> and the reply that will eventually be
+ * read for it.  The I/O thread completes the request; the caller waits
+ * for it with <code>await</code>.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignNioConnection
+ */
+public class CosignNioRequest {
+
+  // The command line (without line terminator) sent to the cosign server
+  private final String command;
+
+  // The reader that consumes the reply for this command
+  private final CosignNioConnection.ReplyReader reader;
+
+  // Set once the reply has been read or the request has failed
+  private boolean done = false;
+
+  // The reason this request failed, if it did
+  private IOException failure = null;
+
+  // Set if the caller stopped waiting before the reply arrived
+  private boolean timedOut = false;
+
+  // When the request was submitted
+  private final long submitMillis = System.currentTimeMillis();
+
+  /**
+   * Constructor for CosignNioRequest.
+   * @param command   The command to send, e.g. "CHECK cosign-foo=..."
+   * @param reader    The reader that knows how the reply is framed
+   */
+  CosignNioRequest( String command, CosignNioConnection.ReplyReader reader ) {
+    this.command = command;
+    this.reader = reader;
+  }
+
+  /**
+   * This method returns the command sent to the cosign server.
+   */
+  public String getCommand() {
+    return command;
+  }
+
+  /**
+   * This method returns the command verb (CHECK, RETR, NOOP) without its
+   * arguments, so that it can be logged without leaking cookies.
+   */
+  public String getCommandName() {
+    int spaceIdx = command.indexOf( ' ' );
+    return ( spaceIdx < 0 ) ? command : command.substring( 0, spaceIdx );
+  }
+
+  /**
+   * This method returns the bytes written to the cosign server.
+   */
+  byte[] getCommandBytes() {
+    return ( command + "\r\n" ).getBytes();
+  }
+
+  /**
+   * This method returns the reader consuming the reply.
+   */
+  CosignNioConnection.ReplyReader getReader() {
+    return reader;
+  }
+
+  /**
+   * This method returns when the request was submitted.
+   */
+  public long getSubmitMillis() {
+    return submitMillis;
+  }
+
+  /**
+   * This method returns true if the caller gave up waiting before the
+   * request completed.
+   */
+  public synchronized boolean isTimedOut() {
+    return timedOut && !done;
+  }
+
+  /**
+   * This method returns true once the request has completed or failed.
+   */
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Called by the I/O thread once the full reply has been read.
+   */
+  synchronized void complete() {
+    if ( done ) {
+      return;
+    }
+    done = true;
+    notifyAll();
+  }
+
+  /**
+   * Called by the I/O thread when the connection fails before the reply
+   * has been read.
+   */
+  synchronized void fail( IOException ioe ) {
+    if ( done ) {
+      return;
+    }
+    done = true;
+    failure = ioe;
+    notifyAll();
+  }
+
+  /**
+   * This method blocks until the reply has been read and returns the
+   * result of the reply reader.
+   * @param timeoutMillis   How long to wait for the reply
+   * @return  The result of the reply reader
+   * @throws IOException  If the connection failed or the reply did not arrive in time
+   */
+  public synchronized Object await( long timeoutMillis ) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while ( !done ) {
+      long remaining = deadline - System.currentTimeMillis();
+      if ( remaining <= 0 ) {
+        timedOut = true;
+        throw new InterruptedIOException( "Timed out waiting for " + getCommandName() + " reply" );
+      }
+      try {
+        wait( remaining );
+      } catch ( InterruptedException ie ) {
+        timedOut = true;
+        throw new InterruptedIOException( "Interrupted waiting for " + getCommandName() + " reply" );
+      }
+    }
+    if ( failure != null ) {
+      throw failure;
+    }
+    return reader.getResult();
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
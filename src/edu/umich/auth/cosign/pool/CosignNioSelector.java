@@ -0,0 +1,186 @@
+package edu.umich.auth.cosign.pool;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.CosignConfig;
+
+/**
+ * This singleton class owns the small group of I/O threads that drive every
+ * <code>CosignNioConnection</code>.  Each thread runs its own
+ * <code>Selector</code> loop; connections are spread across the threads
+ * round-robin and all of their socket and SSLEngine work is done on the
+ * thread they were assigned to.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignNioConnection
+ */
+public class CosignNioSelector {
+
+  /**
+   * Singleton object of the CosignNioSelector
+   */
+  public static final CosignNioSelector INSTANCE = new CosignNioSelector();
+
+  // The selector loops, one per I/O thread
+  private final IoLoop[] loops;
+
+  // Index of the loop that will receive the next connection
+  private int nextLoop = 0;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignNioSelector.class );
+
+  /**
+   * Constructor for CosignNioSelector.  The number of I/O threads is read
+   * from the CosignConfig once; changing it requires a restart.
+   */
+  private CosignNioSelector() {
+    int ioThreads = CosignConfig.INSTANCE.getSnapshot().getNioIoThreads();
+    int numLoops = ( ioThreads > 0 ) ? ioThreads : 2;
+
+    loops = new IoLoop[numLoops];
+    for ( int idx = 0; idx < numLoops; idx++ ) {
+      try {
+        loops[idx] = new IoLoop( "CosignNioSelector-" + idx );
+        loops[idx].start();
+      } catch ( IOException ioe ) {
+        throw new IllegalStateException( "Failed to open NIO selector: " + ioe.getMessage() );
+      }
+    }
+    log.info( "started " + numLoops + " cosign NIO I/O thread(s)" );
+  }
+
+  /**
+   * This method registers the given connection's channel with one of the
+   * I/O threads.  The connection's <code>handleReady</code> method will be
+   * called on that thread whenever the channel becomes ready.
+   */
+  void register( CosignNioConnection connection ) {
+    IoLoop loop;
+    synchronized ( this ) {
+      loop = loops[nextLoop];
+      nextLoop = ( nextLoop + 1 ) % loops.length;
+    }
+    connection.setIoLoop( loop );
+    loop.execute( new Registration( loop, connection ) );
+  }
+
+  /********************************************************************************
+   * Registers a connection's channel with a loop's selector.  Must run on the
+   * loop's own thread.
+   ********************************************************************************/
+  private static class Registration implements Runnable {
+
+    private final IoLoop loop;
+    private final CosignNioConnection connection;
+
+    Registration( IoLoop loop, CosignNioConnection connection ) {
+      this.loop = loop;
+      this.connection = connection;
+    }
+
+    public void run() {
+      connection.register( loop.selector );
+    }
+
+  }
+
+  /********************************************************************************
+   * A single I/O thread with its own selector and a queue of tasks that must
+   * run on that thread (registrations, interest changes, writes).
+   ********************************************************************************/
+  static class IoLoop extends Thread {
+
+    private final Selector selector;
+    private final LinkedList tasks = new LinkedList();
+    private Log log = LogFactory.getLog( CosignNioSelector.class );
+
+    IoLoop( String name ) throws IOException {
+      super( name );
+      this.selector = Selector.open();
+      setDaemon( true );
+    }
+
+    /**
+     * This method queues the given task to run on this loop's thread and
+     * wakes the selector up.
+     */
+    void execute( Runnable task ) {
+      synchronized ( tasks ) {
+        tasks.addLast( task );
+      }
+      selector.wakeup();
+    }
+
+    /**
+     * This method returns true if the caller is running on this loop.
+     */
+    boolean inLoop() {
+      return Thread.currentThread() == this;
+    }
+
+    public void run() {
+      while ( true ) {
+        try {
+          runTasks();
+          selector.select();
+          runTasks();
+
+          Iterator iter = selector.selectedKeys().iterator();
+          while ( iter.hasNext() ) {
+            SelectionKey key = (SelectionKey)iter.next();
+            iter.remove();
+            CosignNioConnection connection = (CosignNioConnection)key.attachment();
+            if ( !key.isValid() ) {
+              continue;
+            }
+            connection.handleReady( key );
+          }
+        } catch ( Throwable t ) {
+          // Never let a single misbehaving connection kill the I/O thread
+          log.error( "[" + getName() + "]: unexpected error in selector loop", t );
+        }
+      }
+    }
+
+    private void runTasks() {
+      while ( true ) {
+        Runnable task;
+        synchronized ( tasks ) {
+          if ( tasks.isEmpty() ) {
+            return;
+          }
+          task = (Runnable)tasks.removeFirst();
+        }
+        task.run();
+      }
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
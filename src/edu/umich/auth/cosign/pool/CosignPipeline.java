@@ -0,0 +1,319 @@
+package edu.umich.auth.cosign.pool;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umich.auth.cosign.CosignServer;
+
+/**
+ * This class keeps a few <code>CosignNioConnection</code>s open to each
+ * cosign server and shares them between every thread checking a cookie.
+ * CHECK commands are written back-to-back on a shared connection and each
+ * caller waits for its own reply, which the connection matches to requests
+ * in the order they were written.  A connection accepts at most
+ * <code>depth</code> outstanding commands; when every connection to every
+ * server is that busy the caller is expected to fall back to a pooled
+ * <code>CosignConnectionList</code>.  A connection whose oldest command has
+ * gone unanswered for longer than the response timeout is given no new
+ * commands, and it is closed once it has more than <code>MAX_TIMED_OUT</code>
+ * commands whose callers gave up on them, or once every caller waiting on
+ * it must have given up.
+ *
+ * @see edu.umich.auth.cosign.pool.CosignConnectionPool#checkCookie(String, String)
+ */
+public class CosignPipeline {
+
+  // Commands whose callers gave up on them a connection may have
+  // outstanding before it is closed
+  private static final int MAX_TIMED_OUT = 2;
+
+  // The CosignServer that this pipeline is associated with
+  private final CosignServer cosignServer;
+
+  // Tracks which addresses are down so that they are not connected to
+  private final CosignHealthChecker healthChecker;
+
+  // Chooses the order the addresses are tried in and tracks their latency
+  private final CosignHostSelector hostSelector;
+
+  // The id used to label the connections of this pipeline
+  private final String pipelineId;
+
+  // The maximum number of outstanding commands per connection
+  private final int depth;
+
+  // The number of shared connections kept per server address
+  private final int connectionsPerHost;
+
+  // Shared connections, keyed by host address (guarded by this)
+  private final HashMap connections = new HashMap();
+
+  // Set once the pipeline has been closed (guarded by this)
+  private boolean closed = false;
+
+  // Used for logging info and error messages
+  private Log log = LogFactory.getLog( CosignPipeline.class );
+
+  /**
+   * Constructor for CosignPipeline.  Connections are only opened when the
+   * first command for a server is submitted.
+   * @param poolId                The id of the owning CosignConnectionPool
+   * @param cosignServer          The cosign server to check cookies against
+   * @param depth                 Maximum outstanding commands per connection
+   * @param connectionsPerHost    Number of shared connections per address
+   * @param healthChecker         The health checker of the owning pool
+   * @param hostSelector          The host selector of the owning pool
+   */
+  public CosignPipeline( int poolId, CosignServer cosignServer, int depth, int connectionsPerHost, CosignHealthChecker healthChecker, CosignHostSelector hostSelector ) {
+    this.pipelineId = poolId + ":pipeline";
+    this.cosignServer = cosignServer;
+    this.healthChecker = healthChecker;
+    this.hostSelector = hostSelector;
+    this.depth = depth;
+    this.connectionsPerHost = connectionsPerHost;
+  }
+
+  /**
+   * This method checks the cookie against each cosign server in turn, the
+   * same way <code>CosignConnectionList.checkCookie</code> does, but on the
+   * shared pipelined connections.
+   * @return The parsed response from the cosign server.  Returns null if no
+   *            pipelined connection was able to validate the cookie.
+   */
+  public CosignCodec.Reply checkCookie( String serviceName, String cookie ) {
+    CosignCodec.Reply serverErrorResponse = null;
+    String[] hostAddrs = cosignServer.getHostAddresses();
+    int[] hostOrder = hostSelector.order( hostAddrs );
+
+    for ( int pos = 0; pos < hostOrder.length; pos++ ) {
+      String hostAddr = hostAddrs[hostOrder[pos]];
+      if ( !healthChecker.isAvailable( hostAddr ) ) {
+        continue;
+      }
+      CosignNioConnection connection = acquire( hostAddr );
+      if ( connection == null ) {
+        // Every connection to this server is busy, stalled or could not be opened
+        continue;
+      }
+
+      hostSelector.requestStarted( hostAddr );
+      long start = System.currentTimeMillis();
+      CosignCodec.Reply cosignResponse = null;
+      try {
+        CosignNioConnection.LineReply reply = new CosignNioConnection.LineReply();
+        CosignNioRequest request = connection.submit( "CHECK " + serviceName + "=" + cookie, reply );
+        try {
+          request.await( CosignConnection.RESPONSE_TIMEOUT_MILLIS );
+          cosignResponse = reply.getReply();
+        } catch ( IOException ioe ) {
+          if ( !request.isDone() ) {
+            // Only this request timed out; its reply is still read and
+            // dropped, so the replies of the others stay matched up.  A
+            // server that leaves several unanswered is hung.
+            if ( connection.getTimedOut() > MAX_TIMED_OUT ) {
+              if ( log.isDebugEnabled() ) {
+                log.debug( "[" + connection.getCosignConId() + "]: timed out while validating cookie, closing pipelined connection" );
+              }
+              discard( connection );
+            } else {
+              if ( log.isDebugEnabled() ) {
+                log.debug( "[" + connection.getCosignConId() + "]: timed out while validating cookie" );
+              }
+              healthChecker.reportFailure( hostAddr );
+            }
+            continue;
+          }
+
+          // The I/O thread failed the connection and every request on it
+          if ( log.isDebugEnabled() ) {
+            log.debug( "[" + connection.getCosignConId() + "]: failed while validating cookie, closing pipelined connection", ioe );
+          }
+          discard( connection );
+          continue;
+        }
+      } finally {
+        int cosignCode = CosignConnection.convertResponseToCode( cosignResponse );
+        hostSelector.requestFinished( hostAddr, System.currentTimeMillis() - start,
+                                      ( cosignCode != CosignConnection.COSIGN_USER_AUTHENTICATED ) &&
+                                      ( cosignCode != CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) );
+      }
+
+      if ( log.isDebugEnabled() ) {
+        log.debug( "[" + connection.getCosignConId() + "] result CHECK: " + cosignResponse );
+      }
+      int cosignCode = CosignConnection.convertResponseToCode( cosignResponse );
+      if ( ( cosignCode == CosignConnection.COSIGN_USER_AUTHENTICATED ) ||
+           ( cosignCode == CosignConnection.COSIGN_USER_NOT_AUTHENTICATED ) ) {
+        return cosignResponse;
+      } else if ( cosignCode == CosignConnection.COSIGN_SERVER_RETRY ) {
+        serverErrorResponse = cosignResponse;
+        continue;
+      }
+
+      // the response was invalid, this connection is no longer good
+      discard( connection );
+    }
+    return serverErrorResponse;
+  }
+
+  /**
+   * This method closes every shared connection.  Commands still waiting
+   * for a reply fail and their callers fall back to the pool.
+   */
+  public void close() {
+    HashMap toClose;
+    synchronized ( this ) {
+      closed = true;
+      toClose = new HashMap( connections );
+      connections.clear();
+    }
+    Iterator iter = toClose.values().iterator();
+    while ( iter.hasNext() ) {
+      CosignNioConnection[] slots = (CosignNioConnection[])iter.next();
+      for ( int idx = 0; idx < slots.length; idx++ ) {
+        if ( slots[idx] != null ) {
+          slots[idx].close();
+        }
+      }
+    }
+  }
+
+  /**
+   * This method closes every shared connection to the given address, which
+   * is no longer one of the cosign server's.  Commands still waiting for a
+   * reply on them fail and their callers fall back to the pool.
+   */
+  public void closeHost( String hostAddr ) {
+    CosignNioConnection[] slots;
+    synchronized ( this ) {
+      slots = (CosignNioConnection[])connections.remove( hostAddr );
+    }
+    if ( slots == null ) {
+      return;
+    }
+    for ( int idx = 0; idx < slots.length; idx++ ) {
+      if ( slots[idx] != null ) {
+        slots[idx].close();
+      }
+    }
+  }
+
+  /**
+   * This method picks the least busy open connection to the given address,
+   * opening another one if there is a free slot and every open connection
+   * already has commands outstanding.  Connections whose oldest command has
+   * gone unanswered for longer than the response timeout are passed over,
+   * and closed once they have been stalled for as long again.
+   * @return  The connection to use, or null if all of them are full or stalled
+   */
+  private synchronized CosignNioConnection acquire( String hostAddr ) {
+    if ( closed ) {
+      return null;
+    }
+    CosignNioConnection[] slots = (CosignNioConnection[])connections.get( hostAddr );
+    if ( slots == null ) {
+      slots = new CosignNioConnection[connectionsPerHost];
+      connections.put( hostAddr, slots );
+    }
+
+    long stalledBefore = System.currentTimeMillis() - CosignConnection.RESPONSE_TIMEOUT_MILLIS;
+    long hungBefore = stalledBefore - CosignConnection.RESPONSE_TIMEOUT_MILLIS;
+    CosignNioConnection best = null;
+    int bestOutstanding = Integer.MAX_VALUE;
+    int freeSlot = -1;
+    for ( int idx = 0; idx < slots.length; idx++ ) {
+      if ( ( slots[idx] != null ) && isUnansweredSince( slots[idx], hungBefore ) ) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "[" + slots[idx].getCosignConId() + "]: no reply from cosign server, closing pipelined connection" );
+        }
+        healthChecker.reportFailure( hostAddr );
+        slots[idx].close();
+      }
+      if ( slots[idx] == null || !slots[idx].isOpen() ) {
+        slots[idx] = null;
+        if ( freeSlot < 0 ) {
+          freeSlot = idx;
+        }
+        continue;
+      }
+      if ( isUnansweredSince( slots[idx], stalledBefore ) ) {
+        continue;
+      }
+      int outstanding = slots[idx].getOutstanding();
+      if ( outstanding < bestOutstanding ) {
+        best = slots[idx];
+        bestOutstanding = outstanding;
+      }
+    }
+
+    if ( freeSlot >= 0 && ( best == null || bestOutstanding > 0 ) ) {
+      try {
+        // Commands submitted before the handshake finishes are queued
+        slots[freeSlot] = new CosignNioConnection( pipelineId, hostAddr, cosignServer.getPort() );
+        return slots[freeSlot];
+      } catch ( IOException ioe ) {
+        if ( log.isDebugEnabled() ) {
+          log.debug( "[" + pipelineId + "]: unable to establish connection: " + hostAddr + ":" + cosignServer.getPort() );
+        }
+        healthChecker.reportFailure( hostAddr );
+      }
+    }
+
+    if ( best == null || bestOutstanding >= depth ) {
+      return null;
+    }
+    return best;
+  }
+
+  /**
+   * This method returns true if the oldest unanswered command on the given
+   * connection was submitted before the given time.
+   */
+  private static boolean isUnansweredSince( CosignNioConnection connection, long beforeMillis ) {
+    long oldestSubmitMillis = connection.getOldestSubmitMillis();
+    return ( oldestSubmitMillis != 0 ) && ( oldestSubmitMillis < beforeMillis );
+  }
+
+  /**
+   * This method closes the given connection and frees its slot, and lets
+   * the health checker know the address may be failing.
+   */
+  private void discard( CosignNioConnection connection ) {
+    healthChecker.reportFailure( connection.getHostAddress() );
+    synchronized ( this ) {
+      CosignNioConnection[] slots = (CosignNioConnection[])connections.get( connection.getHostAddress() );
+      if ( slots != null ) {
+        for ( int idx = 0; idx < slots.length; idx++ ) {
+          if ( slots[idx] == connection ) {
+            slots[idx] = null;
+          }
+        }
+      }
+    }
+    connection.close();
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
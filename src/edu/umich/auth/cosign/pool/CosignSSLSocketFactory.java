@@ -7,15 +7,21 @@ import org.apache.commons.logging.LogFactory;
 import java.net.Socket;
 import java.security.*;
 import java.io.*;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umich.auth.cosign.CosignConfig;
+import edu.umich.auth.cosign.CosignConfigSnapshot;
 import edu.umich.auth.cosign.util.RWLock;
 
 /**
  * This singleton class creates SSL Sockets for Cosign connections. It
  * reads the keystore and truststore path info from the
  * <code>CosignConfig</code> class to create the SSlSocketFactory
- * for all the future secure Cosign connections.
+ * for all the future secure Cosign connections.  The SSLContext, and
+ * with it the cache of TLS sessions that lets new connections resume an
+ * earlier session instead of doing a full handshake, is kept across
+ * config reloads as long as the keystore is unchanged.
  *
  * @author htchan
  * @see edu.umich.auth.cosign.CosignConfig
@@ -27,6 +33,18 @@ public class CosignSSLSocketFactory {
 	// The SSL socket factory to create secure Cosign connection
 	private SSLSocketFactory sslSocketFactory = null;
 
+  // The SSL context the socket factory came from; also used to create SSLEngines
+  private SSLContext sslContext = null;
+
+  // Identifies the keystore the SSL context was built from
+  private String keyStoreId = null;
+
+  // Number of handshakes that negotiated a new session
+  private final AtomicLong fullHandshakes = new AtomicLong();
+
+  // Number of handshakes that resumed a cached session
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+
   // Reader/writer lock to prevent software from creating an SSL connection
   // while we are rebuilding the factory
   private RWLock rwLock = new RWLock();
@@ -39,13 +57,23 @@ public class CosignSSLSocketFactory {
 	 */
 	private CosignSSLSocketFactory() {
 		init();
-    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.UpdateListener () {
+    CosignConfig.INSTANCE.addUpdateListener( new CosignConfig.KeyedUpdateListener () {
 
       public void configUpdated() {
-        // Whenever CosignConfig is updated, we need to re-initialize the SSLSocketFactory
         init();
       }
 
+      public void configUpdated( Set changedKeys ) {
+        // Only re-initialize the SSLSocketFactory if its own settings changed;
+        // the keystore path is also reported when the file was replaced
+        if ( changedKeys.contains( CosignConfig.KEY_STORE_PATH ) ||
+             changedKeys.contains( CosignConfig.KEY_STORE_PASSWORD ) ||
+             changedKeys.contains( CosignConfig.SSL_SESSION_CACHE_SIZE ) ||
+             changedKeys.contains( CosignConfig.SSL_SESSION_TIMEOUT_SECS ) ) {
+          init();
+        }
+      }
+
     });
 	}
 
@@ -70,15 +98,84 @@ public class CosignSSLSocketFactory {
     }
 	}
 
+  /**
+   * This method creates a client-mode SSLEngine for a non-blocking Cosign
+   * connection.
+   * @param hostname    HostName of the Cosign Server
+   * @param port        Port number of the Cosign Server
+   * @return            SSLEngine for Cosign connection
+   */
+  public SSLEngine createSSLEngine(String hostname, int port) {
+    rwLock.getReadLock();
+    try {
+      if (sslContext == null) {
+        throw new IllegalStateException( "SSLSocketFactory has not been initialized." );
+      }
+      SSLEngine engine = sslContext.createSSLEngine(hostname, port);
+      engine.setUseClientMode(true);
+      return engine;
+    } finally {
+      rwLock.releaseLock();
+    }
+  }
+
+  /**
+   * This method counts a completed handshake as full or resumed.  A
+   * resumed session was created before the handshake started.
+   * @param session                 The session of the new connection
+   * @param handshakeStartMillis    When the handshake was started
+   */
+  public void recordHandshake(SSLSession session, long handshakeStartMillis) {
+    if (session.getCreationTime() < handshakeStartMillis) {
+      resumedHandshakes.incrementAndGet();
+    } else {
+      fullHandshakes.incrementAndGet();
+    }
+    if ( log.isDebugEnabled() ) {
+      log.debug( "SSL handshakes: " + fullHandshakes.get() + " full, " + resumedHandshakes.get() + " resumed" );
+    }
+  }
+
+  /**
+   * This method returns the number of handshakes that negotiated a new session.
+   */
+  public long getFullHandshakes() {
+    return fullHandshakes.get();
+  }
+
+  /**
+   * This method returns the number of handshakes that resumed a cached session.
+   */
+  public long getResumedHandshakes() {
+    return resumedHandshakes.get();
+  }
+
   /**
    * This methods do a bunch of SSL initialization.  It adds the SSL
    * provider (For Java 1.3 backward compatibility). It creates the
    * SSLContext with the keystore/truststore specified by
-   * the CosignConfig class.
+   * the CosignConfig class.  If the keystore has not changed since the
+   * last call, the existing SSLContext and its session cache are kept
+   * and only the session cache settings are updated.
    */
   private synchronized void init() {
     rwLock.getWriteLock();
     try {
+      // Gets the location the keystore from CosignConfig
+      CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+      String keyStorePath = config.getKeyStorePath();
+
+      // Gets the password of the keystore from ConsignConfig
+      String keyStorePwd = config.getKeyStorePassword();
+
+      File keyStoreFile = new File(keyStorePath);
+      String keyStoreId = keyStorePath + ":" + keyStoreFile.lastModified() + ":" +
+                          keyStoreFile.length() + ":" + keyStorePwd.hashCode();
+      if ((sslContext != null) && keyStoreId.equals(this.keyStoreId)) {
+        configureSessionCache(sslContext);
+        return;
+      }
+
       // Adds this provider for Java 1.3 backward compatibility
       Security.addProvider(new com.sun.net.ssl.internal.ssl.Provider());
 
@@ -98,12 +195,6 @@ public class CosignSSLSocketFactory {
       // Creates a keystore instance
       KeyStore ks = KeyStore.getInstance("JKS");
 
-      // Gets the location the keystore from CosignConfig
-      String keyStorePath = (String)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.KEY_STORE_PATH);
-
-      // Gets the password of the keystore from ConsignConfig
-      String keyStorePwd = (String)CosignConfig.INSTANCE.getPropertyValue(CosignConfig.KEY_STORE_PASSWORD);
-
       // Loads the keystore into memory
       ks.load(new FileInputStream(keyStorePath), keyStorePwd.toCharArray());
 
@@ -115,17 +206,24 @@ public class CosignSSLSocketFactory {
 
       // Initializes the SSL Context with KeyManager and TrustManager Factory
       ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+      configureSessionCache(ctx);
 
       // Get a socket factory from the context
       this.sslSocketFactory = (SSLSocketFactory) ctx.getSocketFactory();
+      this.sslContext = ctx;
+      this.keyStoreId = keyStoreId;
 
     } catch (IOException ioe) {
       log.error("Failed to locate keystore file!", ioe);
       this.sslSocketFactory = null;
+      this.sslContext = null;
+      this.keyStoreId = null;
 
     } catch (Exception e) {
       log.error("Failed to create CosignSSLSccketFactory!", e);
       this.sslSocketFactory = null;
+      this.sslContext = null;
+      this.keyStoreId = null;
 
     } finally {
       rwLock.releaseLock();
@@ -133,6 +231,21 @@ public class CosignSSLSocketFactory {
 
   }
 
+  /**
+   * This method applies the configured session cache size and timeout to
+   * the client sessions of the given context.  The context caches sessions
+   * by cosignd host and port, so one setting covers every cosignd host.
+   */
+  private void configureSessionCache(SSLContext ctx) {
+    SSLSessionContext sessionContext = ctx.getClientSessionContext();
+    if (sessionContext == null) {
+      return;
+    }
+    CosignConfigSnapshot config = CosignConfig.INSTANCE.getSnapshot();
+    sessionContext.setSessionCacheSize(config.getSslSessionCacheSize());
+    sessionContext.setSessionTimeout(config.getSslSessionTimeoutSecs());
+  }
+
 }
 /*Copyright (c) 2002-2008 Regents of The University of Michigan.
 All Rights Reserved.
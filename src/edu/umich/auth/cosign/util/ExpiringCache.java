@@ -0,0 +1,152 @@
+package edu.umich.auth.cosign.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class provides a bounded, thread safe cache whose entries expire a
+ * fixed time after they were added.  When the cache is full, expired
+ * entries are purged first and then arbitrary entries are dropped until
+ * there is room again.
+ */
+public class ExpiringCache {
+
+  private final ConcurrentHashMap entries = new ConcurrentHashMap();
+
+  private volatile int maxSize;
+
+  /**
+   * Constructor for ExpiringCache.
+   * @param maxSize  The maximum number of entries; 0 disables the cache
+   */
+  public ExpiringCache( int maxSize ) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * This method changes the maximum number of entries, dropping entries
+   * if the cache is now over its size.
+   */
+  public void setMaxSize( int maxSize ) {
+    this.maxSize = maxSize;
+    if ( maxSize <= 0 ) {
+      entries.clear();
+    } else {
+      trim();
+    }
+  }
+
+  /**
+   * This method returns the value stored under the given key, or null if
+   * there is none or it has expired.
+   */
+  public Object get( Object key ) {
+    Entry entry = (Entry)entries.get( key );
+    if ( entry == null ) {
+      return null;
+    }
+    if ( entry.isExpired( System.currentTimeMillis() ) ) {
+      entries.remove( key, entry );
+      return null;
+    }
+    return entry.value;
+  }
+
+  /**
+   * This method stores the value under the given key for ttlMillis.
+   */
+  public void put( Object key, Object value, long ttlMillis ) {
+    if ( ( maxSize <= 0 ) || ( ttlMillis <= 0 ) ) {
+      return;
+    }
+    entries.put( key, new Entry( value, System.currentTimeMillis() + ttlMillis ) );
+    if ( entries.size() > maxSize ) {
+      trim();
+    }
+  }
+
+  /**
+   * This method removes the value stored under the given key.
+   */
+  public void remove( Object key ) {
+    entries.remove( key );
+  }
+
+  /**
+   * This method removes every entry.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * This method returns the number of entries, including any that have
+   * expired but not been purged yet.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Purges expired entries and then drops entries until the cache is a
+   * tenth below its maximum size, so that a full cache is not trimmed again
+   * on every put.
+   */
+  private void trim() {
+    int targetSize = maxSize - ( maxSize / 10 );
+    long now = System.currentTimeMillis();
+    Iterator iter = entries.entrySet().iterator();
+    while ( iter.hasNext() ) {
+      Map.Entry mapEntry = (Map.Entry)iter.next();
+      if ( ( (Entry)mapEntry.getValue() ).isExpired( now ) ) {
+        iter.remove();
+      }
+    }
+
+    iter = entries.keySet().iterator();
+    while ( ( entries.size() > targetSize ) && iter.hasNext() ) {
+      iter.next();
+      iter.remove();
+    }
+  }
+
+  /**
+   * A cached value and the time it expires.
+   */
+  private static class Entry {
+
+    private final Object value;
+    private final long expiresAt;
+
+    Entry( Object value, long expiresAt ) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired( long now ) {
+      return now >= expiresAt;
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,201 @@
+package edu.umich.auth.cosign.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Date;
+
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * This class reads the ticket granting ticket out of a Kerberos credential
+ * cache in the MIT file format (versions 3 and 4), which is what the
+ * cosignd server sends in reply to RETR tgt.  This lets the ticket be
+ * handed to JAAS directly instead of writing it to a temp file for
+ * <code>Krb5LoginModule</code> to read back.
+ */
+public class KerberosCCache {
+
+  private static final int VERSION_3 = 0x0503;
+  private static final int VERSION_4 = 0x0504;
+
+  // Realm of the configuration entries newer MIT libraries store in the cache
+  private static final String CONF_REALM = "X-CACHECONF:";
+
+  private static final String TGT_SERVICE_PREFIX = "krbtgt/";
+
+  // Ticket flag bit numbers, as used by KerberosTicket
+  private static final int RENEWABLE_FLAG = 8;
+  private static final int NUM_FLAGS = 32;
+
+  // Host address types
+  private static final int ADDRTYPE_INET = 2;
+  private static final int ADDRTYPE_INET6 = 24;
+
+  // Smallest encoded host address: the type and an empty data field
+  private static final int MIN_ADDRESS_SIZE = 6;
+
+  private KerberosCCache() {
+  }
+
+  /**
+   * This method returns the first ticket granting ticket in the given
+   * credential cache.
+   * @param ccache    The contents of a credential cache file
+   * @throws IOException  If the cache is malformed, of an unsupported
+   *            version, or holds no ticket granting ticket
+   */
+  public static KerberosTicket readTGT( byte[] ccache ) throws IOException {
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( ccache ) );
+    int version = in.readUnsignedShort();
+    if ( version != VERSION_3 && version != VERSION_4 ) {
+      throw new IOException( "Unsupported credential cache version: 0x" + Integer.toHexString( version ) );
+    }
+    if ( version == VERSION_4 ) {
+      // Header tags (e.g. the KDC time offset) are not needed
+      in.readFully( new byte[in.readUnsignedShort()] );
+    }
+
+    // The default principal of the cache
+    readPrincipal( in );
+
+    while ( in.available() > 0 ) {
+      String[] client = readPrincipal( in );
+      String[] server = readPrincipal( in );
+      int keyType = in.readUnsignedShort();
+      if ( version == VERSION_3 ) {
+        // Version 3 stores the key type twice
+        in.readUnsignedShort();
+      }
+      byte[] key = readData( in );
+      Date authTime = readTime( in );
+      Date startTime = readTime( in );
+      Date endTime = readTime( in );
+      Date renewTill = readTime( in );
+      in.readUnsignedByte(); // is_skey
+      boolean[] flags = readFlags( in.readInt() );
+      InetAddress[] addresses = readAddresses( in );
+      int authDataCount = in.readInt();
+      for ( int idx = 0; idx < authDataCount; idx++ ) {
+        in.readUnsignedShort();
+        readData( in );
+      }
+      byte[] ticket = readData( in );
+      readData( in ); // second ticket
+
+      if ( CONF_REALM.equals( server[1] ) || !server[0].startsWith( TGT_SERVICE_PREFIX ) ) {
+        continue;
+      }
+      if ( authTime == null ) {
+        authTime = startTime;
+      }
+      if ( renewTill == null ) {
+        flags[RENEWABLE_FLAG] = false;
+      }
+      return new KerberosTicket( ticket, newPrincipal( client ), newPrincipal( server ),
+                                 key, keyType, flags, authTime, startTime, endTime,
+                                 renewTill, addresses );
+    }
+    throw new IOException( "No ticket granting ticket in credential cache" );
+  }
+
+  /**
+   * Reads a principal as { name, realm, name type }.
+   */
+  private static String[] readPrincipal( DataInputStream in ) throws IOException {
+    int nameType = in.readInt();
+    int count = in.readInt();
+    String realm = new String( readData( in ), "UTF-8" );
+    StringBuffer name = new StringBuffer();
+    for ( int idx = 0; idx < count; idx++ ) {
+      if ( idx > 0 ) {
+        name.append( '/' );
+      }
+      name.append( new String( readData( in ), "UTF-8" ) );
+    }
+    return new String[] { name.toString(), realm, String.valueOf( nameType ) };
+  }
+
+  private static KerberosPrincipal newPrincipal( String[] principal ) {
+    String name = principal[0] + "@" + principal[1];
+    try {
+      return new KerberosPrincipal( name, Integer.parseInt( principal[2] ) );
+    } catch ( IllegalArgumentException iae ) {
+      // Name type not known to JAAS
+      return new KerberosPrincipal( name );
+    }
+  }
+
+  private static byte[] readData( DataInputStream in ) throws IOException {
+    int length = in.readInt();
+    if ( length < 0 || length > in.available() ) {
+      throw new IOException( "Invalid field length in credential cache: " + length );
+    }
+    byte[] data = new byte[length];
+    in.readFully( data );
+    return data;
+  }
+
+  private static Date readTime( DataInputStream in ) throws IOException {
+    long seconds = in.readInt() & 0xffffffffL;
+    return ( seconds == 0 ) ? null : new Date( seconds * 1000L );
+  }
+
+  private static boolean[] readFlags( int value ) {
+    boolean[] flags = new boolean[NUM_FLAGS];
+    for ( int idx = 0; idx < NUM_FLAGS; idx++ ) {
+      flags[idx] = ( value & ( 0x80000000 >>> idx ) ) != 0;
+    }
+    return flags;
+  }
+
+  private static InetAddress[] readAddresses( DataInputStream in ) throws IOException {
+    int count = in.readInt();
+    if ( count == 0 ) {
+      return null;
+    }
+    if ( count < 0 || count > in.available() / MIN_ADDRESS_SIZE ) {
+      throw new IOException( "Invalid address count in credential cache: " + count );
+    }
+    InetAddress[] addresses = new InetAddress[count];
+    int found = 0;
+    for ( int idx = 0; idx < count; idx++ ) {
+      int type = in.readUnsignedShort();
+      byte[] data = readData( in );
+      if ( type == ADDRTYPE_INET || type == ADDRTYPE_INET6 ) {
+        addresses[found++] = InetAddress.getByAddress( data );
+      }
+    }
+    if ( found == 0 ) {
+      return null;
+    }
+    if ( found < count ) {
+      InetAddress[] known = new InetAddress[found];
+      System.arraycopy( addresses, 0, known, 0, found );
+      addresses = known;
+    }
+    return addresses;
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
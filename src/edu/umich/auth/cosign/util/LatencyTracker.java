@@ -0,0 +1,103 @@
+package edu.umich.auth.cosign.util;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the most recent latency samples of an operation in a
+ * fixed size ring buffer so that percentiles of the recent distribution
+ * can be looked up cheaply.  A percentile is only worked out again once a
+ * sixteenth of the buffer has been replaced, so looking it up is usually
+ * just a field read.
+ */
+public class LatencyTracker {
+
+  private final long[] samples;
+  private int next = 0;
+  private int count = 0;
+
+  // Samples to record before the cached percentile is worked out again
+  private final int refreshInterval;
+
+  // The percentile last worked out and its value
+  private int cachedPercentile = -1;
+  private long cachedValue = -1;
+
+  // Samples recorded since the cached percentile was worked out
+  private int recordedSinceCache = 0;
+
+  /**
+   * Constructor for LatencyTracker.
+   * @param size  The number of recent samples to keep
+   */
+  public LatencyTracker( int size ) {
+    this.samples = new long[size];
+    this.refreshInterval = Math.max( 1, size / 16 );
+  }
+
+  /**
+   * This method records a single latency sample.
+   */
+  public synchronized void record( long millis ) {
+    samples[next] = millis;
+    next = ( next + 1 ) % samples.length;
+    if ( count < samples.length ) {
+      count++;
+    }
+    recordedSinceCache++;
+  }
+
+  /**
+   * This method returns the number of samples currently held.
+   */
+  public synchronized int getCount() {
+    return count;
+  }
+
+  /**
+   * This method returns the given percentile of the recorded samples.
+   * @param percentile  A value between 0 and 100
+   * @return  The latency at that percentile, or -1 if nothing was recorded
+   */
+  public long getPercentile( int percentile ) {
+    long[] sorted;
+    synchronized ( this ) {
+      if ( count == 0 ) {
+        return -1;
+      }
+      if ( ( percentile == cachedPercentile ) && ( recordedSinceCache < refreshInterval ) ) {
+        return cachedValue;
+      }
+      sorted = new long[count];
+      System.arraycopy( samples, 0, sorted, 0, count );
+      recordedSinceCache = 0;
+    }
+    Arrays.sort( sorted );
+    int idx = (int)Math.ceil( ( percentile / 100.0 ) * sorted.length ) - 1;
+    long value = sorted[Math.max( 0, Math.min( idx, sorted.length - 1 ) )];
+    synchronized ( this ) {
+      cachedPercentile = percentile;
+      cachedValue = value;
+    }
+    return value;
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
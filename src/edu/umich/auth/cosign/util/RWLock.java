@@ -1,26 +1,89 @@
 package edu.umich.auth.cosign.util;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
- * This class provides reader/writer lock functionality.
+ * This class provides reader/writer lock functionality for data that is
+ * read on every request and written rarely.  Readers count themselves in
+ * one of several counters, picked by thread and each on its own cache
+ * line, so readers on different cores do not contend with each other.
+ * Readers only touch shared state while a writer is waiting or writing.
+ * A waiting writer keeps new readers out until it is done.  A lock must
+ * be released by the thread that got it; releasing a lock the thread
+ * does not hold does nothing.  A thread holding a reader lock may get
+ * another one, but asking for the writer lock while holding any lock is
+ * a deadlock and fails with an IllegalStateException instead, as does
+ * asking for a reader lock while holding the writer lock.
  * @author dillaman
  */
 public class RWLock {
 
-  private int numReaderLocks = 0;
-  private int numWaitingWriters = 0;
+  // Longs between two counters, so that each gets its own cache line
+  private static final int PADDING = 16;
+
+  // Reader counters, one every PADDING longs
+  private final AtomicLongArray readers;
+
+  // Number of counters minus one; the number of counters is a power of two
+  private final int mask;
+
+  // The thread waiting for or holding the writer lock
+  private volatile Thread writer = null;
+
+  // The number of reader locks held by the current thread, as an int[1]
+  private final ThreadLocal readHolds = new ThreadLocal();
+
+  /**
+   * Constructor for RWLock.
+   */
+  public RWLock() {
+    int stripes = 1;
+    while ( stripes < Runtime.getRuntime().availableProcessors() ) {
+      stripes <<= 1;
+    }
+    this.readers = new AtomicLongArray( stripes * PADDING );
+    this.mask = stripes - 1;
+  }
 
   /**
    * This method ensures that no writers are waiting to acquire a
    * lock, then grabs a reader lock.
    */
-  public synchronized void getReadLock() {
-    while ( ( numReaderLocks == -1 ) || ( numWaitingWriters != 0 ) ) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
+  public void getReadLock() {
+    if ( writer == Thread.currentThread() ) {
+      throw new IllegalStateException( "Reader lock requested while holding the writer lock" );
+    }
+    int[] holds = getReadHolds();
+    int idx = getReaderIndex();
+    if ( holds[0] > 0 ) {
+      // Already a reader, so a waiting writer is waiting for this thread
+      readers.incrementAndGet( idx );
+      holds[0]++;
+      return;
+    }
+    while ( true ) {
+      if ( writer == null ) {
+        readers.incrementAndGet( idx );
+        if ( writer == null ) {
+          holds[0]++;
+          return;
+        }
+
+        // A writer came along in the meantime; let it go first
+        readers.decrementAndGet( idx );
+        synchronized ( this ) {
+          notifyAll();
+        }
+      }
+      synchronized ( this ) {
+        while ( writer != null ) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+          }
+        }
       }
     }
-    numReaderLocks++;
   }
 
   /**
@@ -28,30 +91,72 @@ public class RWLock {
    * lock.
    */
   public synchronized void getWriteLock() {
-    numWaitingWriters++;
-    while ( numReaderLocks != 0 ) {
+    if ( writer == Thread.currentThread() ) {
+      throw new IllegalStateException( "Writer lock requested while holding the writer lock" );
+    }
+    if ( getReadHolds()[0] > 0 ) {
+      throw new IllegalStateException( "Writer lock requested while holding a reader lock" );
+    }
+    while ( writer != null ) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+      }
+    }
+    writer = Thread.currentThread();
+    while ( hasReaders() ) {
       try {
         wait();
       } catch (InterruptedException e) {
       }
     }
-    numWaitingWriters--;
-    numReaderLocks = -1;
   }
 
   /**
-   * This method releases a single reader or writer lock.
+   * This method releases a single reader or writer lock.  It does nothing
+   * if the current thread holds no lock.
    */
-  public synchronized void releaseLock() {
-    if (numReaderLocks == 0) {
+  public void releaseLock() {
+    if ( writer == Thread.currentThread() ) {
+      synchronized ( this ) {
+        writer = null;
+        notifyAll();
+      }
+      return;
+    }
+
+    int[] holds = getReadHolds();
+    if ( holds[0] == 0 ) {
       return;
     }
-    if (numReaderLocks == -1) {
-      numReaderLocks = 0;
-    } else {
-      numReaderLocks--;
+    holds[0]--;
+    readers.decrementAndGet( getReaderIndex() );
+    if ( writer != null ) {
+      synchronized ( this ) {
+        notifyAll();
+      }
+    }
+  }
+
+  private int[] getReadHolds() {
+    int[] holds = (int[])readHolds.get();
+    if ( holds == null ) {
+      holds = new int[1];
+      readHolds.set( holds );
+    }
+    return holds;
+  }
+
+  private int getReaderIndex() {
+    return (int)( Thread.currentThread().getId() & mask ) * PADDING;
+  }
+
+  private boolean hasReaders() {
+    long count = 0;
+    for ( int idx = 0; idx < readers.length(); idx += PADDING ) {
+      count += readers.get( idx );
     }
-    notifyAll();
+    return count != 0;
   }
 
 }
@@ -72,4 +177,4 @@ The University of Michigan
 c/o UM Webmaster Team
 Arbor Lakes
 Ann Arbor, MI  48105
-*/
\ No newline at end of file
+*/
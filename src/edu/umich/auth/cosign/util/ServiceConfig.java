@@ -15,7 +15,14 @@ import java.util.regex.*;
 
  */
 public class ServiceConfig {
+
+    /**
+     * The prefix of every cosign service cookie name.
+     */
+    public static final String COOKIE_NAME_PREFIX = "cosign-";
+
     private String name;
+    private String cookieName;
     private String path;
     private boolean publicAccess=false;
     private String resource;
@@ -27,6 +34,7 @@ public class ServiceConfig {
     //private boolean hasQs=false;
     private boolean hasResource=false;
     private Vector factors;
+    private String factorsString = "";
     private String validationPath;
 
     public ServiceConfig() {
@@ -37,34 +45,54 @@ public class ServiceConfig {
 
     public void addFactor(String factor){
         this.factors.add(factor);
+        this.factorsString = joinFactors(factors);
     }
 
 
     public void removeFactors(){
         this.factors.clear();
+        this.factorsString = "";
     }
 
     public void setFactors(Vector v){
         this.factors = v;
+        this.factorsString = joinFactors(v);
     }
 
     public Vector getFactors(){
         return factors;
     }
 
+    /**
+     * Returns the factors separated by commas, as sent to weblogin.  The
+     * string is built when the factors are set rather than on every login
+     * redirect.
+     */
     public String factorsAsString(){
-        if(hasFactors()){
-            Enumeration e = getFactors().elements();
-            StringBuffer strBuff = new StringBuffer();
-            while(e.hasMoreElements()){
-                strBuff.append((String)e.nextElement());
-                if(e.hasMoreElements())
-                    strBuff.append(",");
-            }
-            return strBuff.toString();
+        return factorsString;
+    }
+
+    private static String joinFactors(Vector factors){
+        Enumeration e = factors.elements();
+        StringBuffer strBuff = new StringBuffer();
+        while(e.hasMoreElements()){
+            strBuff.append((String)e.nextElement());
+            if(e.hasMoreElements())
+                strBuff.append(",");
         }
-        else
-            return new String();
+        return strBuff.toString();
+    }
+
+    /**
+     * This method returns the name of the cookie of a cosign service, which
+     * is the service name with the "cosign-" prefix added if it is missing.
+     */
+    public static String toCookieName(String serviceName) {
+        if ((serviceName.startsWith(COOKIE_NAME_PREFIX)) &&
+            (COOKIE_NAME_PREFIX.length() < serviceName.length())) {
+            return serviceName;
+        }
+        return COOKIE_NAME_PREFIX + serviceName;
     }
 
     public boolean  hasFactors(){
@@ -84,6 +112,7 @@ public class ServiceConfig {
 
     public void setName(String name) {
         this.name = name;
+        this.cookieName = (name == null) ? null : toCookieName(name);
     }
 
     public void setPath(String path) {
@@ -135,6 +164,14 @@ public class ServiceConfig {
         return name;
     }
 
+    /**
+     * Returns the name of this service's cookie.
+     * @see #toCookieName(String)
+     */
+    public String getCookieName() {
+        return cookieName;
+    }
+
     public String getPath() {
         return path;
     }
@@ -0,0 +1,272 @@
+package edu.umich.auth.cosign.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class finds the <code>ServiceConfig</code> of a request path.  The
+ * <code>&lt;protected&gt;</code> paths of the services are compiled into two
+ * prefix tries when the config is loaded, so a lookup walks the request path
+ * once, whatever the number of services, and allocates nothing.  A service
+ * path matches
+ * <ul>
+ * <li>the same path, ignoring case,</li>
+ * <li>the same path without its trailing '/', ignoring case, and</li>
+ * <li>if it ends in '*', every path starting with what comes before the '*'.</li>
+ * </ul>
+ * A service with a resource (<code>rs</code>) or query string
+ * (<code>qs</code>) only matches requests with the same resource or query
+ * string, ignoring case.  If several services match, the one listed first in
+ * the config wins.  Instances are immutable.
+ *
+ * @see edu.umich.auth.cosign.CosignConfig#hasServiceOveride(String, String, String)
+ */
+public class ServiceRouter {
+
+  /**
+   * A router without any services.
+   */
+  public static final ServiceRouter EMPTY = new ServiceRouter( new ArrayList() );
+
+  // Exact and trailing '/' paths, by case-folded character
+  private final Node exactRoot;
+
+  // Wildcard paths without the '*', by character
+  private final Node wildcardRoot;
+
+  // Number of services routed to
+  private final int size;
+
+  /**
+   * Constructor for ServiceRouter.
+   * @param services    The <code>ServiceConfig</code>s, in config order
+   */
+  public ServiceRouter( List services ) {
+    Builder exact = new Builder();
+    Builder wildcard = new Builder();
+    int count = 0;
+    for ( int idx = 0; idx < services.size(); idx++ ) {
+      ServiceConfig service = (ServiceConfig)services.get( idx );
+      String path = service.getPath();
+      if ( ( path == null ) || ( path.length() == 0 ) ) {
+        continue;
+      }
+      Rule rule = new Rule( idx, service );
+      exact.add( path, true, rule );
+      char last = path.charAt( path.length() - 1 );
+      if ( last == '/' ) {
+        exact.add( path.substring( 0, path.length() - 1 ), true, rule );
+      } else if ( last == '*' ) {
+        wildcard.add( path.substring( 0, path.length() - 1 ), false, rule );
+      }
+      count++;
+    }
+    this.exactRoot = exact.root.freeze();
+    this.wildcardRoot = wildcard.root.freeze();
+    this.size = count;
+  }
+
+  /**
+   * This method returns the service the given request is protected by.
+   * @param path        The request path
+   * @param resource    The requested resource, or null
+   * @param qString     The query string, or null
+   * @return  The first matching service in config order, or null if none
+   *            matches
+   */
+  public ServiceConfig route( String path, String resource, String qString ) {
+    if ( path == null ) {
+      return null;
+    }
+    int length = path.length();
+    Rule best = null;
+
+    // Every node on the way down is a prefix of the path
+    Node node = wildcardRoot;
+    for ( int idx = 0; node != null; idx++ ) {
+      best = firstMatch( node.rules, best, resource, qString );
+      if ( idx == length ) {
+        break;
+      }
+      node = node.child( path.charAt( idx ) );
+    }
+
+    node = exactRoot;
+    for ( int idx = 0; ( idx < length ) && ( node != null ); idx++ ) {
+      node = node.child( fold( path.charAt( idx ) ) );
+    }
+    if ( node != null ) {
+      best = firstMatch( node.rules, best, resource, qString );
+    }
+
+    return ( best == null ) ? null : best.service;
+  }
+
+  /**
+   * This method returns the number of services routed to.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the first of the rules that comes before <code>best</code> in
+   * config order and matches the resource and query string, or
+   * <code>best</code> if there is none.
+   */
+  private static Rule firstMatch( Rule[] rules, Rule best, String resource, String qString ) {
+    for ( int idx = 0; idx < rules.length; idx++ ) {
+      Rule rule = rules[idx];
+      if ( ( best != null ) && ( rule.order >= best.order ) ) {
+        break;
+      }
+      if ( rule.matches( resource, qString ) ) {
+        return rule;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Folds a character the way <code>String.equalsIgnoreCase</code> compares it.
+   */
+  private static char fold( char c ) {
+    return Character.toLowerCase( Character.toUpperCase( c ) );
+  }
+
+  /**
+   * A service path, with its position in the config.
+   */
+  private static class Rule {
+
+    private final int order;
+    private final ServiceConfig service;
+
+    Rule( int order, ServiceConfig service ) {
+      this.order = order;
+      this.service = service;
+    }
+
+    boolean matches( String resource, String qString ) {
+      if ( service.hasResource() &&
+           ( ( resource == null ) || !service.getResource().equalsIgnoreCase( resource ) ) ) {
+        return false;
+      }
+      if ( service.hasQs() &&
+           ( ( qString == null ) || !service.getQs().equalsIgnoreCase( qString ) ) ) {
+        return false;
+      }
+      return true;
+    }
+
+  }
+
+  /**
+   * A trie node.  The keys are sorted so that children are found by
+   * binary search.
+   */
+  private static class Node {
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    private final char[] keys;
+    private final Node[] children;
+
+    // Rules for the path ending here, in config order
+    private final Rule[] rules;
+
+    Node( char[] keys, Node[] children, Rule[] rules ) {
+      this.keys = keys;
+      this.children = children;
+      this.rules = rules;
+    }
+
+    Node child( char c ) {
+      int low = 0;
+      int high = keys.length - 1;
+      while ( low <= high ) {
+        int mid = ( low + high ) >>> 1;
+        if ( keys[mid] < c ) {
+          low = mid + 1;
+        } else if ( keys[mid] > c ) {
+          high = mid - 1;
+        } else {
+          return children[mid];
+        }
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * Builds the trie, which is then frozen into <code>Node</code>s.
+   */
+  private static class Builder {
+
+    private final BuilderNode root = new BuilderNode();
+
+    void add( String path, boolean ignoreCase, Rule rule ) {
+      BuilderNode node = root;
+      for ( int idx = 0; idx < path.length(); idx++ ) {
+        char c = ignoreCase ? fold( path.charAt( idx ) ) : path.charAt( idx );
+        Character key = new Character( c );
+        BuilderNode child = (BuilderNode)node.children.get( key );
+        if ( child == null ) {
+          child = new BuilderNode();
+          node.children.put( key, child );
+        }
+        node = child;
+      }
+      if ( !node.rules.contains( rule ) ) {
+        node.rules.add( rule );
+      }
+    }
+
+  }
+
+  private static class BuilderNode {
+
+    private final TreeMap children = new TreeMap();
+    private final List rules = new ArrayList();
+
+    Node freeze() {
+      char[] keys = new char[children.size()];
+      Node[] frozen = new Node[children.size()];
+      int idx = 0;
+      Iterator iter = children.entrySet().iterator();
+      while ( iter.hasNext() ) {
+        Map.Entry entry = (Map.Entry)iter.next();
+        keys[idx] = ( (Character)entry.getKey() ).charValue();
+        frozen[idx] = ( (BuilderNode)entry.getValue() ).freeze();
+        idx++;
+      }
+      Rule[] frozenRules = rules.isEmpty() ? Node.NO_RULES : (Rule[])rules.toArray( new Rule[rules.size()] );
+      return new Node( keys, frozen, frozenRules );
+    }
+
+  }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
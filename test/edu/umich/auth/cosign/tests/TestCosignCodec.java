@@ -0,0 +1,214 @@
+package edu.umich.auth.cosign.tests;
+
+import java.io.*;
+
+import edu.umich.auth.cosign.pool.*;
+import junit.framework.*;
+
+/**
+ * Tests how CosignCodec splits cosignd replies into lines and fields,
+ * including lines that span several reads of the stream.
+ */
+public class TestCosignCodec extends TestCase {
+
+    public TestCosignCodec(String name) {
+        super(name);
+    }
+
+    private static CosignCodec codec(String replies) {
+        return new CosignCodec(new ByteArrayInputStream(bytes(replies)),
+                               new ByteArrayOutputStream());
+    }
+
+    /**
+     * Returns a codec whose stream hands out a single byte per read.
+     */
+    private static CosignCodec tricklingCodec(String replies) {
+        InputStream in = new ByteArrayInputStream(bytes(replies)) {
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        return new CosignCodec(in, new ByteArrayOutputStream());
+    }
+
+    private static byte[] bytes(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee.toString());
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuffer sb = new StringBuffer();
+        for (int idx = 0; idx < count; idx++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public void testCrLfAndBareLf() throws IOException {
+        CosignCodec codec = codec("231 10.0.0.1 jdoe UMICH.EDU\r\n250 Cosign v2\n");
+        CosignCodec.Reply reply = codec.readReply();
+        assertEquals("231 10.0.0.1 jdoe UMICH.EDU", reply.toString());
+        assertEquals(231, reply.getCode());
+        assertEquals(4, reply.getFieldCount());
+        assertEquals("UMICH.EDU", reply.getField(3));
+
+        reply = codec.readReply();
+        assertEquals("250 Cosign v2", reply.toString());
+        assertEquals(250, reply.getCode());
+        assertNull(codec.readReply());
+    }
+
+    public void testMultipleSpaces() throws IOException {
+        CosignCodec.Reply reply = codec("231  10.0.0.1   jdoe UMICH.EDU  \r\n").
+                                  readReply();
+        assertEquals(4, reply.getFieldCount());
+        assertEquals("231", reply.getField(0));
+        assertEquals("10.0.0.1", reply.getField(1));
+        assertEquals("jdoe", reply.getField(2));
+        assertEquals("UMICH.EDU", reply.getField(3));
+    }
+
+    public void testMoreThanEightFields() throws IOException {
+        CosignCodec.Reply reply = codec("231 10.0.0.1 jdoe UMICH.EDU f1 f2 f3 f4 " +
+                                        "f5 f6 f7 f8\r\n").readReply();
+        assertEquals(12, reply.getFieldCount());
+        assertEquals("f1", reply.getField(4));
+        assertEquals("f8", reply.getField(11));
+        try {
+            reply.getField(12);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ioobe) {
+        }
+    }
+
+    public void testLineLongerThanBuffers() throws IOException {
+        // Longer than both the 1024 byte input buffer and the reply buffer
+        String factor = repeat('f', 3000);
+        String line = "231 10.0.0.1 jdoe UMICH.EDU " + factor;
+        CosignCodec[] codecs = {codec(line + "\r\n250 ok\r\n"),
+                               tricklingCodec(line + "\r\n250 ok\r\n")};
+        for (int idx = 0; idx < codecs.length; idx++) {
+            CosignCodec.Reply reply = codecs[idx].readReply();
+            assertEquals(line, reply.toString());
+            assertEquals(5, reply.getFieldCount());
+            assertEquals(factor, reply.getField(4));
+            assertEquals("250 ok", codecs[idx].readReply().toString());
+        }
+    }
+
+    public void testLineTooLong() throws IOException {
+        String line = "231 " + repeat('f', CosignCodec.MAX_LINE_LENGTH);
+        CosignCodec[] codecs = {codec(line + "\r\n"), codec(line)};
+        for (int idx = 0; idx < codecs.length; idx++) {
+            try {
+                codecs[idx].readReply();
+                fail("expected IOException");
+            } catch (IOException ioe) {
+            }
+        }
+
+        // A line of exactly the maximum length is still read
+        line = line.substring(0, CosignCodec.MAX_LINE_LENGTH);
+        assertEquals(line, codec(line + "\r\n").readReply().toString());
+    }
+
+    public void testCopyIsNotOverwritten() throws IOException {
+        CosignCodec codec = codec("231 10.0.0.1 jdoe UMICH.EDU mtoken\r\n250 ok\r\n");
+        CosignCodec.Reply copy = codec.readReply().copy();
+        codec.readReply();
+        assertEquals("231 10.0.0.1 jdoe UMICH.EDU mtoken", copy.toString());
+        assertEquals(231, copy.getCode());
+        assertEquals(5, copy.getFieldCount());
+        assertEquals("mtoken", copy.getField(4));
+    }
+
+    public void testManyLinesAcrossReads() throws IOException {
+        StringBuffer replies = new StringBuffer();
+        for (int idx = 0; idx < 200; idx++) {
+            replies.append("241-cosign-s").append(idx).append("=AAAA host\r\n");
+        }
+        CosignCodec codec = codec(replies.toString());
+        for (int idx = 0; idx < 200; idx++) {
+            assertEquals("241-cosign-s" + idx + "=AAAA", codec.readReply().getField(0));
+        }
+        assertNull(codec.readReply());
+    }
+
+    public void testEofMidLine() throws IOException {
+        CosignCodec codec = tricklingCodec("250 ok\r\n231 10.0.0.1 jd");
+        assertEquals("250 ok", codec.readReply().toString());
+        CosignCodec.Reply reply = codec.readReply();
+        assertEquals("231 10.0.0.1 jd", reply.toString());
+        assertEquals(3, reply.getFieldCount());
+        assertNull(codec.readReply());
+    }
+
+    public void testEmptyStream() throws IOException {
+        assertNull(codec("").readReply());
+    }
+
+    public void testMissingCode() throws IOException {
+        CosignCodec codec = codec("OK\r\nab1 x\r\n\r\n");
+        assertEquals(-1, codec.readReply().getCode());
+        assertEquals(-1, codec.readReply().getCode());
+        CosignCodec.Reply reply = codec.readReply();
+        assertEquals(-1, reply.getCode());
+        assertEquals(0, reply.getFieldCount());
+    }
+
+    public void testCopyBytesAfterLine() throws IOException {
+        CosignCodec codec = tricklingCodec("240 Retrieving file\r\n5\r\nabcde.\r\n");
+        assertEquals(240, codec.readReply().getCode());
+        assertEquals("5", codec.readReply().getField(0));
+        ByteArrayOutputStream ticket = new ByteArrayOutputStream();
+        codec.copyBytes(ticket, 5);
+        assertEquals("abcde", new String(ticket.toByteArray(), "ISO-8859-1"));
+        assertEquals(".", codec.readReply().toString());
+    }
+
+    public void testCopyBytesPastEof() throws IOException {
+        CosignCodec codec = codec("240 Retrieving file\r\nabc");
+        codec.readReply();
+        try {
+            codec.copyBytes(new ByteArrayOutputStream(), 5);
+            fail("expected EOFException");
+        } catch (EOFException eofe) {
+        }
+    }
+
+    public void testWriteCommand() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CosignCodec codec = new CosignCodec(new ByteArrayInputStream(new byte[0]), out);
+        codec.writeCommand("CHECK", "cosign-test", "abc", null);
+        codec.writeCommand("RETR", "cosign-test", "abc", "tgt");
+        codec.writeCommand("NOOP", null, null, null);
+        codec.writeCommand("CHECK", "cosign-test", "caf\u00e9" + repeat('x', 2000), null);
+        assertEquals("CHECK cosign-test=abc\r\nRETR cosign-test=abc tgt\r\n" +
+                     "NOOP\r\nCHECK cosign-test=caf?" + repeat('x', 2000) + "\r\n",
+                     new String(out.toByteArray(), "ISO-8859-1"));
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
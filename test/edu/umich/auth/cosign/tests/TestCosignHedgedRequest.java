@@ -0,0 +1,111 @@
+package edu.umich.auth.cosign.tests;
+
+import java.util.concurrent.*;
+
+import edu.umich.auth.cosign.pool.*;
+import junit.framework.*;
+
+/**
+ * Tests that CosignHedgedRequest returns the first definite answer of
+ * either leg and leaves the slower one behind.
+ */
+public class TestCosignHedgedRequest extends TestCase {
+    private static final String AUTHENTICATED = "231 10.0.0.1 jdoe UMICH.EDU";
+
+    public TestCosignHedgedRequest(String name) {
+        super(name);
+    }
+
+    /**
+     * A leg that answers after the given delay and counts down once done.
+     */
+    private static class DelayedLeg implements Callable {
+        private final long delayMillis;
+        private final String response;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean called = false;
+
+        DelayedLeg(long delayMillis, String response) {
+            this.delayMillis = delayMillis;
+            this.response = response;
+        }
+
+        public Object call() throws Exception {
+            called = true;
+            try {
+                Thread.sleep(delayMillis);
+                return response;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static long deadline() {
+        return System.currentTimeMillis() + 10000;
+    }
+
+    public void testDelayedFirstLegLosesToSecond() throws Exception {
+        DelayedLeg first = new DelayedLeg(2000, "231 10.0.0.1 slow UMICH.EDU");
+        DelayedLeg second = new DelayedLeg(0, AUTHENTICATED);
+
+        long start = System.currentTimeMillis();
+        Object response = new CosignHedgedRequest(first, second).execute(50, deadline());
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(AUTHENTICATED, response);
+        assertTrue("waited " + elapsed + "ms for the slow leg", elapsed < 1000);
+
+        // The slow leg is left to finish on its own
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testFastFirstLegSkipsSecond() throws Exception {
+        DelayedLeg first = new DelayedLeg(0, AUTHENTICATED);
+        DelayedLeg second = new DelayedLeg(0, AUTHENTICATED);
+
+        assertEquals(AUTHENTICATED,
+                     new CosignHedgedRequest(first, second).execute(500, deadline()));
+        Thread.sleep(700);
+        assertFalse(second.called);
+    }
+
+    public void testFailedFirstLegStartsSecondStraightAway() throws Exception {
+        DelayedLeg first = new DelayedLeg(0, null);
+        DelayedLeg second = new DelayedLeg(0, "431 logged out");
+
+        long start = System.currentTimeMillis();
+        Object response = new CosignHedgedRequest(first, second).execute(5000, deadline());
+        assertEquals("431 logged out", response);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    public void testServerRetryFromBothLegs() throws Exception {
+        DelayedLeg first = new DelayedLeg(0, "531 busy");
+        DelayedLeg second = new DelayedLeg(0, "532 busy");
+
+        CosignHedgedRequest request = new CosignHedgedRequest(first, second);
+        assertNull(request.execute(50, deadline()));
+        assertTrue(((String) request.getServerErrorResponse()).startsWith("53"));
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
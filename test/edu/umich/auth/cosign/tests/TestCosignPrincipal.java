@@ -0,0 +1,116 @@
+package edu.umich.auth.cosign.tests;
+
+import java.io.*;
+import java.util.*;
+
+import edu.umich.auth.cosign.*;
+import edu.umich.auth.cosign.pool.*;
+import junit.framework.*;
+
+/**
+ * Tests how CosignPrincipal parses the reply to a CHECK command, both as a
+ * line and as a reply the codec has already split into fields.
+ */
+public class TestCosignPrincipal extends TestCase {
+
+    public TestCosignPrincipal(String name) {
+        super(name);
+    }
+
+    public void testFourFields() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU");
+        assertEquals("10.0.0.1", principal.getAddress());
+        assertEquals("jdoe", principal.getName());
+        assertEquals("UMICH.EDU", principal.getRealm());
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU"}),
+                     principal.getFactors());
+        assertTrue(principal.getTimestamp() > 0);
+    }
+
+    public void testMultipleSpaces() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231  10.0.0.1   jdoe  UMICH.EDU   mtoken  ");
+        assertEquals("10.0.0.1", principal.getAddress());
+        assertEquals("jdoe", principal.getName());
+        assertEquals("UMICH.EDU", principal.getRealm());
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU", "mtoken"}),
+                     principal.getFactors());
+    }
+
+    public void testMoreThanEightFields() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU f1 f2 f3 f4 f5 f6 f7");
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU", "f1", "f2", "f3",
+                                                 "f4", "f5", "f6", "f7"}),
+                     principal.getFactors());
+    }
+
+    public void testFewerThanFourFields() {
+        String[] responses = {"231 10.0.0.1 jdoe", "231", "", "   "};
+        for (int idx = 0; idx < responses.length; idx++) {
+            try {
+                new CosignPrincipal(responses[idx]);
+                fail("expected IllegalArgumentException for '" + responses[idx] + "'");
+            } catch (Exception e) {
+                assertTrue(e instanceof IllegalArgumentException);
+            }
+        }
+    }
+
+    private static CosignCodec.Reply reply(String line) throws Exception {
+        return new CosignCodec(new ByteArrayInputStream(
+                (line + "\r\n").getBytes("ISO-8859-1")),
+                new ByteArrayOutputStream()).readReply();
+    }
+
+    public void testFromReply() throws Exception {
+        CosignPrincipal principal = CosignPrincipal.fromReply(
+                reply("231  10.0.0.1 jdoe UMICH.EDU mtoken f2"));
+        assertEquals("10.0.0.1", principal.getAddress());
+        assertEquals("jdoe", principal.getName());
+        assertEquals("UMICH.EDU", principal.getRealm());
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU", "mtoken", "f2"}),
+                     principal.getFactors());
+        assertTrue(principal.getTimestamp() > 0);
+    }
+
+    public void testFromReplyWithFewerThanFourFields() throws Exception {
+        String[] responses = {"231 10.0.0.1 jdoe", "231", ""};
+        for (int idx = 0; idx < responses.length; idx++) {
+            try {
+                CosignPrincipal.fromReply(reply(responses[idx]));
+                fail("expected IllegalArgumentException for '" + responses[idx] + "'");
+            } catch (IllegalArgumentException iae) {
+            }
+        }
+    }
+
+    public void testNullResponse() {
+        try {
+            new CosignPrincipal(null);
+            fail("expected an exception");
+        } catch (Exception e) {
+        }
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -0,0 +1,87 @@
+package edu.umich.auth.cosign.tests;
+
+import java.util.*;
+
+import edu.umich.auth.cosign.*;
+import junit.framework.*;
+
+/**
+ * Tests how CosignRevalidator applies the reply to a background CHECK to
+ * the principal held in the user's session.
+ */
+public class TestCosignRevalidator extends TestCase {
+
+    public TestCosignRevalidator(String name) {
+        super(name);
+    }
+
+    private static Vector factors(String[] names) {
+        return new Vector(Arrays.asList(names));
+    }
+
+    public void testRefreshMovesTimestampForward() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU mtoken");
+        principal.setTimestamp(1);
+        CosignPrincipal serverPrincipal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU mtoken");
+
+        assertTrue(CosignRevalidator.INSTANCE.refresh(principal, serverPrincipal,
+                factors(new String[] {"mtoken"})));
+        assertEquals(serverPrincipal.getTimestamp(), principal.getTimestamp());
+    }
+
+    public void testDroppedFactorClearsTimestamp() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU mtoken");
+        CosignPrincipal serverPrincipal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU");
+
+        assertFalse(CosignRevalidator.INSTANCE.refresh(principal, serverPrincipal,
+                factors(new String[] {"mtoken"})));
+        assertEquals(0, principal.getTimestamp());
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU", "mtoken"}),
+                     principal.getFactors());
+    }
+
+    public void testNoRequiredFactors() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU mtoken");
+        CosignPrincipal serverPrincipal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU");
+
+        assertTrue(CosignRevalidator.INSTANCE.refresh(principal, serverPrincipal, null));
+        assertEquals(Arrays.asList(new String[] {"UMICH.EDU"}),
+                     principal.getFactors());
+    }
+
+    public void testDifferentUserClearsTimestamp() throws Exception {
+        CosignPrincipal principal = new CosignPrincipal(
+                "231 10.0.0.1 jdoe UMICH.EDU");
+        CosignPrincipal serverPrincipal = new CosignPrincipal(
+                "231 10.0.0.1 rroe UMICH.EDU");
+
+        assertFalse(CosignRevalidator.INSTANCE.refresh(principal, serverPrincipal, null));
+        assertEquals(0, principal.getTimestamp());
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
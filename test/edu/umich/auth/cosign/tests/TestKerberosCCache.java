@@ -0,0 +1,202 @@
+package edu.umich.auth.cosign.tests;
+
+import java.io.*;
+import javax.security.auth.kerberos.*;
+
+import edu.umich.auth.cosign.util.*;
+import junit.framework.*;
+
+/**
+ * Tests reading the ticket granting ticket out of version 3 and 4 MIT
+ * credential caches built in memory.
+ */
+public class TestKerberosCCache extends TestCase {
+    private static final int FLAG_FORWARDABLE = 0x40000000;
+    private static final int FLAG_RENEWABLE = 0x00800000;
+    private static final int FLAG_INITIAL = 0x00400000;
+
+    private final int now = (int) (System.currentTimeMillis() / 1000);
+
+    public TestKerberosCCache(String name) {
+        super(name);
+    }
+
+    private static void writeData(DataOutputStream out, byte[] data) throws
+            IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static void writePrincipal(DataOutputStream out, String realm,
+                                       String[] components, int nameType) throws
+            IOException {
+        out.writeInt(nameType);
+        out.writeInt(components.length);
+        writeData(out, realm.getBytes("UTF-8"));
+        for (int idx = 0; idx < components.length; idx++) {
+            writeData(out, components[idx].getBytes("UTF-8"));
+        }
+    }
+
+    private void writeCredential(DataOutputStream out, int version,
+                                 String serverRealm, String[] server,
+                                 int serverType, byte[] ticket) throws
+            IOException {
+        writePrincipal(out, "UMICH.EDU", new String[] {"jdoe"}, 1);
+        writePrincipal(out, serverRealm, server, serverType);
+        out.writeShort(18);
+        if (version == 3) {
+            out.writeShort(18);
+        }
+        writeData(out, new byte[32]);
+        out.writeInt(now);
+        out.writeInt(now);
+        out.writeInt(now + 36000);
+        out.writeInt(now + 7 * 86400);
+        out.writeByte(0);
+        out.writeInt(FLAG_FORWARDABLE | FLAG_RENEWABLE | FLAG_INITIAL);
+        out.writeInt(1);
+        out.writeShort(2);
+        writeData(out, new byte[] {10, 0, 0, 1});
+        out.writeInt(0);
+        writeData(out, ticket);
+        writeData(out, new byte[0]);
+    }
+
+    /**
+     * Builds a credential cache holding a configuration entry (version 4
+     * only) followed by the ticket granting ticket.
+     */
+    private byte[] ccache(int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(version == 4 ? 0x0504 : 0x0503);
+        if (version == 4) {
+            // One header tag: the KDC time offset
+            out.writeShort(12);
+            out.writeShort(1);
+            out.writeShort(8);
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+        writePrincipal(out, "UMICH.EDU", new String[] {"jdoe"}, 1);
+        if (version == 4) {
+            writeCredential(out, version, "X-CACHECONF:",
+                            new String[] {"krb5_ccache_conf_data", "fast_avail",
+                            "krbtgt/UMICH.EDU@UMICH.EDU"}, 0, new byte[] {1});
+        }
+        writeCredential(out, version, "UMICH.EDU",
+                        new String[] {"krbtgt", "UMICH.EDU"}, 2,
+                        new byte[] {0x61, 3, 1, 2, 3});
+        return bytes.toByteArray();
+    }
+
+    private void assertTGT(KerberosTicket tgt) {
+        assertEquals("jdoe@UMICH.EDU", tgt.getClient().getName());
+        assertEquals("krbtgt/UMICH.EDU@UMICH.EDU", tgt.getServer().getName());
+        assertEquals(18, tgt.getSessionKeyType());
+        assertEquals(now * 1000L, tgt.getAuthTime().getTime());
+        assertEquals((now + 36000) * 1000L, tgt.getEndTime().getTime());
+        assertEquals((now + 7 * 86400) * 1000L, tgt.getRenewTill().getTime());
+        assertTrue(tgt.isForwardable());
+        assertTrue(tgt.isRenewable());
+        assertTrue(tgt.isInitial());
+        assertEquals("10.0.0.1",
+                     tgt.getClientAddresses()[0].getHostAddress());
+        assertEquals(5, tgt.getEncoded().length);
+    }
+
+    public void testVersion3() throws IOException {
+        assertTGT(KerberosCCache.readTGT(ccache(3)));
+    }
+
+    public void testVersion4SkipsConfigurationEntry() throws IOException {
+        assertTGT(KerberosCCache.readTGT(ccache(4)));
+    }
+
+    public void testUnsupportedVersion() {
+        try {
+            KerberosCCache.readTGT(new byte[] {5, 2, 0, 0});
+            fail("expected IOException");
+        } catch (IOException ioe) {
+        }
+    }
+
+    public void testNoTicketGrantingTicket() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0x0503);
+        writePrincipal(out, "UMICH.EDU", new String[] {"jdoe"}, 1);
+        writeCredential(out, 3, "UMICH.EDU",
+                        new String[] {"host", "www.umich.edu"}, 3, new byte[] {1});
+        try {
+            KerberosCCache.readTGT(bytes.toByteArray());
+            fail("expected IOException");
+        } catch (IOException ioe) {
+        }
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] ccache = ccache(4);
+        // Cut off inside the header, a principal, the key and the ticket
+        int[] lengths = {1, 10, 40, ccache.length / 2, ccache.length - 5};
+        for (int idx = 0; idx < lengths.length; idx++) {
+            byte[] truncated = new byte[lengths[idx]];
+            System.arraycopy(ccache, 0, truncated, 0, truncated.length);
+            try {
+                KerberosCCache.readTGT(truncated);
+                fail("expected IOException for " + lengths[idx] + " bytes");
+            } catch (IOException ioe) {
+            }
+        }
+    }
+
+    public void testHugeAddressCount() throws IOException {
+        byte[] ccache = ccache(3);
+        // The address count follows the flags, right before the address
+        // type (2) and the 4 byte address 10.0.0.1
+        int idx = indexOf(ccache, new byte[] {0, 0, 0, 1, 0, 2, 0, 0, 0, 4,
+                                              10, 0, 0, 1});
+        assertTrue(idx > 0);
+        ccache[idx] = 0x7f;
+        try {
+            KerberosCCache.readTGT(ccache);
+            fail("expected IOException");
+        } catch (IOException ioe) {
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int idx = 0; idx + pattern.length <= data.length; idx++) {
+            int match = 0;
+            while (match < pattern.length &&
+                   data[idx + match] == pattern[match]) {
+                match++;
+            }
+            if (match == pattern.length) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
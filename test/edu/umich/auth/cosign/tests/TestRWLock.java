@@ -0,0 +1,174 @@
+package edu.umich.auth.cosign.tests;
+
+import edu.umich.auth.cosign.util.*;
+import junit.framework.*;
+
+/**
+ * Tests that RWLock keeps writers apart from readers and from each other
+ * under load, and that it fails fast instead of deadlocking when misused.
+ */
+public class TestRWLock extends TestCase {
+    private static final int READERS = 18;
+    private static final int WRITERS = 2;
+    private static final long RUN_MILLIS = 1000;
+
+    private final RWLock lock = new RWLock();
+
+    // Threads inside the lock and overlaps seen, guarded by this
+    private int inRead = 0;
+    private int inWrite = 0;
+    private int overlaps = 0;
+    private long reads = 0;
+    private long writes = 0;
+
+    public TestRWLock(String name) {
+        super(name);
+    }
+
+    private synchronized void enter(boolean write) {
+        if (write) {
+            if (inWrite != 0 || inRead != 0) {
+                overlaps++;
+            }
+            inWrite++;
+            writes++;
+        } else {
+            if (inWrite != 0) {
+                overlaps++;
+            }
+            inRead++;
+            reads++;
+        }
+    }
+
+    private synchronized void leave(boolean write) {
+        if (write) {
+            inWrite--;
+        } else {
+            inRead--;
+        }
+    }
+
+    public void testReadersAndWritersDoNotOverlap() throws Exception {
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] threads = new Thread[READERS + WRITERS];
+        for (int idx = 0; idx < threads.length; idx++) {
+            final boolean write = idx < WRITERS;
+            threads[idx] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        if (write) {
+                            lock.getWriteLock();
+                        } else {
+                            lock.getReadLock();
+                        }
+                        try {
+                            enter(write);
+                            Thread.yield();
+                            leave(write);
+                        } finally {
+                            lock.releaseLock();
+                        }
+                    }
+                }
+            };
+            threads[idx].start();
+        }
+        for (int idx = 0; idx < threads.length; idx++) {
+            threads[idx].join(RUN_MILLIS * 10);
+            assertFalse("lock deadlocked", threads[idx].isAlive());
+        }
+
+        synchronized (this) {
+            assertEquals(0, overlaps);
+            assertTrue(reads > 0);
+            assertTrue(writes > 0);
+        }
+    }
+
+    public void testReadLockWhileWritingFails() {
+        lock.getWriteLock();
+        try {
+            lock.getReadLock();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ise) {
+        } finally {
+            lock.releaseLock();
+        }
+    }
+
+    public void testWriteLockWhileReadingFails() {
+        lock.getReadLock();
+        try {
+            lock.getWriteLock();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ise) {
+        } finally {
+            lock.releaseLock();
+        }
+    }
+
+    public void testNestedReadLockPassesWaitingWriter() throws Exception {
+        lock.getReadLock();
+        assertFalse(tryWriteLock());
+
+        // A writer is waiting for this thread, so it must not wait in turn
+        lock.getReadLock();
+        lock.releaseLock();
+        lock.releaseLock();
+        assertTrue(tryWriteLock());
+    }
+
+    public void testUnbalancedReleaseIsIgnored() throws Exception {
+        lock.releaseLock();
+        lock.getReadLock();
+        lock.releaseLock();
+        lock.releaseLock();
+        assertTrue(tryWriteLock());
+
+        // The extra releases must not have let a writer past a reader
+        lock.getReadLock();
+        try {
+            assertFalse(tryWriteLock());
+        } finally {
+            lock.releaseLock();
+        }
+    }
+
+    /**
+     * Gets and releases the writer lock on another thread.
+     * @return  True if it got the lock within a second
+     */
+    private boolean tryWriteLock() throws InterruptedException {
+        Thread writer = new Thread() {
+            public void run() {
+                lock.getWriteLock();
+                lock.releaseLock();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        writer.join(1000);
+        return !writer.isAlive();
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
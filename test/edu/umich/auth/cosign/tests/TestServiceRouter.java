@@ -0,0 +1,116 @@
+package edu.umich.auth.cosign.tests;
+
+import java.util.*;
+
+import edu.umich.auth.cosign.util.*;
+import junit.framework.*;
+
+/**
+ * Tests the path matching rules of ServiceRouter against the ones
+ * hasServiceOveride used to apply by scanning every service.
+ */
+public class TestServiceRouter extends TestCase {
+    private Vector services = new Vector();
+
+    public TestServiceRouter(String name) {
+        super(name);
+    }
+
+    private ServiceConfig addService(String name, String path, String resource,
+                                     String qs) {
+        ServiceConfig serviceConfig = new ServiceConfig();
+        serviceConfig.setName(name);
+        serviceConfig.setPath(path);
+        if (resource != null) {
+            serviceConfig.setResource(resource);
+        }
+        if (qs != null) {
+            serviceConfig.setQs(qs);
+        }
+        services.add(serviceConfig);
+        return serviceConfig;
+    }
+
+    private String route(String path, String resource, String qs) {
+        ServiceConfig serviceConfig = new ServiceRouter(services).route(path,
+                resource, qs);
+        return (serviceConfig == null) ? null : serviceConfig.getName();
+    }
+
+    public void testExactPathIgnoresCase() {
+        addService("exact", "/IDM/protected/index.html", null, null);
+        assertEquals("exact", route("/IDM/protected/index.html", null, null));
+        assertEquals("exact", route("/idm/PROTECTED/index.HTML", null, null));
+        assertNull(route("/IDM/protected/index.htm", null, null));
+        assertNull(route("/IDM/protected/index.html/more", null, null));
+    }
+
+    public void testTrailingSlash() {
+        addService("dir", "/IDM/cosign-secure/", null, null);
+        assertEquals("dir", route("/IDM/cosign-secure/", null, null));
+        assertEquals("dir", route("/idm/cosign-secure", null, null));
+        assertNull(route("/IDM/cosign-secure/protected", null, null));
+    }
+
+    public void testWildcardIsPrefixMatch() {
+        addService("wild", "/IDM/open/*", null, null);
+        assertEquals("wild", route("/IDM/open/", null, null));
+        assertEquals("wild", route("/IDM/open/a/b/c.html", null, null));
+        assertNull(route("/IDM/open", null, null));
+        // Wildcard prefixes are case sensitive
+        assertNull(route("/idm/open/a", null, null));
+    }
+
+    public void testRootWildcardMatchesEverything() {
+        addService("all", "*", null, null);
+        assertEquals("all", route("", null, null));
+        assertEquals("all", route("/anything", null, null));
+    }
+
+    public void testFirstServiceInConfigWins() {
+        addService("broad", "/app/*", null, null);
+        addService("narrow", "/app/admin/", null, null);
+        assertEquals("broad", route("/app/admin/", null, null));
+
+        services.clear();
+        addService("narrow", "/app/admin/", null, null);
+        addService("broad", "/app/*", null, null);
+        assertEquals("narrow", route("/app/admin/", null, null));
+        assertEquals("broad", route("/app/other", null, null));
+    }
+
+    public void testResourceAndQueryStringDiscriminate() {
+        addService("report", "/app/", "report.jsp", null);
+        addService("edit", "/app/", null, "action=edit");
+        addService("app", "/app/", null, null);
+        assertEquals("report", route("/app/", "REPORT.jsp", null));
+        assertEquals("edit", route("/app/", "index.jsp", "action=EDIT"));
+        assertEquals("app", route("/app/", "index.jsp", "action=view"));
+        assertEquals("app", route("/app/", null, null));
+    }
+
+    public void testNoServices() {
+        assertNull(ServiceRouter.EMPTY.route("/app/", null, null));
+        assertNull(route(null, null, null));
+    }
+
+}
+
+/*Copyright (c) 2002-2008 Regents of The University of Michigan.
+All Rights Reserved.
+
+    Permission to use, copy, modify, and distribute this software and
+    its documentation for any purpose and without fee is hereby granted,
+    provided that the above copyright notice appears in all copies and
+    that both that copyright notice and this permission notice appear
+    in supporting documentation, and that the name of The University
+    of Michigan not be used in advertising or publicity pertaining to
+    distribution of the software without specific, written prior
+    permission. This software is supplied as is without expressed or
+    implied warranties of any kind.
+
+The University of Michigan
+c/o UM Webmaster Team
+Arbor Lakes
+Ann Arbor, MI  48105
+*/
@@ -23,6 +23,13 @@ public class TestSuite1 extends TestCase {
     public static Test suite() {
         TestSuite suite = new TestSuite();
         suite.addTestSuite(edu.umich.auth.cosign.tests.TestCosignConfig.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestServiceRouter.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestRWLock.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestCosignCodec.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestCosignPrincipal.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestKerberosCCache.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestCosignRevalidator.class);
+        suite.addTestSuite(edu.umich.auth.cosign.tests.TestCosignHedgedRequest.class);
         return suite;
     }
 }